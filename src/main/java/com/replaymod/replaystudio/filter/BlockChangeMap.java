@@ -0,0 +1,153 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.filter;
+
+import java.io.IOException;
+
+/**
+ * The latest block change (time and block state) for each block of a single 16x16x16 chunk section.
+ * Uses open addressing over primitive arrays, so an entry takes 14 bytes instead of the several boxed objects a
+ * {@code Map<Short, MutablePair<Long, PacketBlockChange>>} requires.
+ */
+final class BlockChangeMap {
+    private static final int INITIAL_CAPACITY = 8;
+
+    // Index of the block within the section plus one, 0 marks an empty slot
+    private short[] keys;
+    private long[] times;
+    private int[] states;
+    private int size;
+
+    BlockChangeMap() {
+        this(INITIAL_CAPACITY);
+    }
+
+    private BlockChangeMap(int capacity) {
+        keys = new short[capacity];
+        times = new long[capacity];
+        states = new int[capacity];
+    }
+
+    static int index(int x, int y, int z) {
+        return (y & 15) << 8 | (z & 15) << 4 | (x & 15);
+    }
+
+    static int x(int index) {
+        return index & 15;
+    }
+
+    static int y(int index) {
+        return index >> 8;
+    }
+
+    static int z(int index) {
+        return index >> 4 & 15;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Stores the given change unless a change to the same block with a later timestamp is already stored.
+     * @param index Index of the block, see {@link #index(int, int, int)}
+     * @param time Time of the change
+     * @param state The new block state
+     */
+    void update(int index, long time, int state) {
+        int slot = find(index);
+        if (keys[slot] == 0) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize(keys.length * 2);
+                slot = find(index);
+            }
+            keys[slot] = (short) (index + 1);
+            size++;
+        } else if (times[slot] > time) {
+            return;
+        }
+        times[slot] = time;
+        states[slot] = state;
+    }
+
+    /**
+     * Applies the changes of the given map as if they had been {@link #update updated} after the ones in this map.
+     * @param later The other map
+     */
+    void merge(BlockChangeMap later) {
+        for (int i = 0; i < later.keys.length; i++) {
+            if (later.keys[i] != 0) {
+                update(later.keys[i] - 1, later.times[i], later.states[i]);
+            }
+        }
+    }
+
+    BlockChangeMap copy() {
+        BlockChangeMap copy = new BlockChangeMap(keys.length);
+        System.arraycopy(keys, 0, copy.keys, 0, keys.length);
+        System.arraycopy(times, 0, copy.times, 0, times.length);
+        System.arraycopy(states, 0, copy.states, 0, states.length);
+        copy.size = size;
+        return copy;
+    }
+
+    void forEach(Visitor visitor) throws IOException {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != 0) {
+                visitor.visit(keys[i] - 1, times[i], states[i]);
+            }
+        }
+    }
+
+    private int find(int index) {
+        int mask = keys.length - 1;
+        int slot = (index * 0x9E3779B9 >>> 16) & mask;
+        while (keys[slot] != 0 && keys[slot] != index + 1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void resize(int capacity) {
+        short[] oldKeys = keys;
+        long[] oldTimes = times;
+        int[] oldStates = states;
+        keys = new short[capacity];
+        times = new long[capacity];
+        states = new int[capacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = find(oldKeys[i] - 1);
+                keys[slot] = oldKeys[i];
+                times[slot] = oldTimes[i];
+                states[slot] = oldStates[i];
+            }
+        }
+    }
+
+    interface Visitor {
+        void visit(int index, long time, int state) throws IOException;
+    }
+}
@@ -28,16 +28,19 @@ import com.google.common.collect.Ordering;
 import com.google.gson.JsonObject;
 import com.replaymod.replaystudio.PacketData;
 import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.io.PacketBatch;
 import com.replaymod.replaystudio.protocol.PacketType;
 import com.replaymod.replaystudio.stream.PacketStream;
-import org.apache.commons.lang3.mutable.MutableInt;
 
+import java.util.Arrays;
 import java.util.EnumMap;
 import java.util.Map;
 
 public class PacketCountFilter implements StreamFilter {
 
-    private final EnumMap<PacketType, MutableInt> count = new EnumMap<>(PacketType.class);
+    private static final PacketType[] TYPES = PacketType.values();
+
+    private final int[] count = new int[TYPES.length];
 
     @Override
     public String getName() {
@@ -51,25 +54,40 @@ public class PacketCountFilter implements StreamFilter {
 
     @Override
     public void onStart(PacketStream stream) {
-        count.clear();
+        Arrays.fill(count, 0);
     }
 
     @Override
     public boolean onPacket(PacketStream stream, PacketData data) {
-        PacketType type = data.getPacket().getType();
-
-        count.computeIfAbsent(type, key -> new MutableInt()).increment();
+        count[data.getPacket().getType().ordinal()]++;
         return true;
     }
 
+    /**
+     * Counts all packets in the given batch.
+     * Equivalent to calling {@link #onPacket(PacketStream, PacketData)} for each of them.
+     * @param batch The batch of packets
+     */
+    public void onBatch(PacketBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            count[batch.getType(i).ordinal()]++;
+        }
+    }
+
     @Override
     public void onEnd(PacketStream stream, long timestamp) {
         System.out.println();
         System.out.println();
 
-        Ordering<Map.Entry<PacketType, MutableInt>> entryOrdering = Ordering.natural().reverse().onResultOf(Map.Entry::getValue);
-        for (Map.Entry<PacketType, MutableInt> e : entryOrdering.immutableSortedCopy(count.entrySet())) {
-            System.out.println(String.format("[%dx] %s", e.getValue().intValue(), e.getKey().toString()));
+        Map<PacketType, Integer> counts = new EnumMap<>(PacketType.class);
+        for (int i = 0; i < count.length; i++) {
+            if (count[i] > 0) {
+                counts.put(TYPES[i], count[i]);
+            }
+        }
+        Ordering<Map.Entry<PacketType, Integer>> entryOrdering = Ordering.natural().reverse().onResultOf(Map.Entry::getValue);
+        for (Map.Entry<PacketType, Integer> e : entryOrdering.immutableSortedCopy(counts.entrySet())) {
+            System.out.println(String.format("[%dx] %s", e.getValue(), e.getKey().toString()));
         }
 
         System.out.println();
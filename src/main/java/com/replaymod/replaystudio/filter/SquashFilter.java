@@ -31,26 +31,31 @@ import com.replaymod.replaystudio.Studio;
 import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.protocol.PacketType;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.BlockChangeView;
+import com.replaymod.replaystudio.protocol.packets.LightUpdateView;
 import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
 import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
 import com.replaymod.replaystudio.protocol.packets.PacketChunkData.Chunk;
 import com.replaymod.replaystudio.protocol.packets.PacketChunkData.Column;
 import com.replaymod.replaystudio.protocol.packets.PacketDestroyEntities;
 import com.replaymod.replaystudio.protocol.packets.PacketEntityMovement;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityTeleport;
 import com.replaymod.replaystudio.protocol.packets.PacketMapData;
 import com.replaymod.replaystudio.protocol.packets.PacketSetSlot;
 import com.replaymod.replaystudio.protocol.packets.PacketTeam;
 import com.replaymod.replaystudio.protocol.packets.PacketUpdateLight;
 import com.replaymod.replaystudio.protocol.packets.PacketWindowItems;
+import com.replaymod.replaystudio.protocol.packets.SpawnEntity;
 import com.replaymod.replaystudio.stream.PacketStream;
 import com.replaymod.replaystudio.us.myles.ViaVersion.api.Pair;
 import com.replaymod.replaystudio.us.myles.ViaVersion.api.Triple;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
 import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
 import com.replaymod.replaystudio.util.DPosition;
 import com.replaymod.replaystudio.util.IPosition;
+import com.replaymod.replaystudio.util.Location;
 import com.replaymod.replaystudio.util.PacketUtils;
 import com.replaymod.replaystudio.util.Utils;
-import org.apache.commons.lang3.tuple.MutablePair;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -58,17 +63,16 @@ import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
 import static com.replaymod.replaystudio.util.Utils.within;
 
 public class SquashFilter implements StreamFilter {
 
-    private static final long POS_MIN = Byte.MIN_VALUE;
-    private static final long POS_MAX = Byte.MAX_VALUE;
-
     private static class Team {
         private final String name;
         private Packet create;
@@ -113,12 +117,16 @@ public class SquashFilter implements StreamFilter {
         private List<PacketData> packets = new ArrayList<>();
         private long lastTimestamp = 0;
         private Packet teleport;
+        // Relative movement since the last teleport (or spawn), in fixed-point units of the protocol (see movementScale)
         private long dx = 0;
         private long dy = 0;
         private long dz = 0;
         private Float yaw = null;
         private Float pitch = null;
         private boolean onGround = false; // 1.8+
+        private boolean moved;
+        // Whether this state continues the state at the start of the partition (see forPartition)
+        private boolean attached = true;
 
         Entity copy() {
             Entity copy = new Entity();
@@ -133,9 +141,46 @@ public class SquashFilter implements StreamFilter {
             copy.yaw = this.yaw;
             copy.pitch = this.pitch;
             copy.onGround = this.onGround;
+            copy.moved = this.moved;
+            copy.attached = this.attached;
             return copy;
         }
 
+        /**
+         * Applies the state of the same entity in the following partition.
+         * The other entity must be attached and not despawned.
+         */
+        void merge(Entity later) {
+            packets.addAll(later.packets);
+            later.packets.clear();
+            complete |= later.complete;
+            lastTimestamp = later.lastTimestamp;
+            if (later.teleport != null) {
+                if (teleport != null) {
+                    teleport.release();
+                }
+                teleport = later.teleport;
+                later.teleport = null;
+                dx = later.dx;
+                dy = later.dy;
+                dz = later.dz;
+                yaw = later.yaw;
+                pitch = later.pitch;
+            } else {
+                dx += later.dx;
+                dy += later.dy;
+                dz += later.dz;
+                if (later.yaw != null) {
+                    yaw = later.yaw;
+                    pitch = later.pitch;
+                }
+            }
+            if (later.moved) {
+                onGround = later.onGround;
+                moved = true;
+            }
+        }
+
         void release() {
             if (teleport != null) {
                 teleport.release();
@@ -168,8 +213,38 @@ public class SquashFilter implements StreamFilter {
     private final Map<Long, ChunkData> chunks = new HashMap<>();
     private final Map<Long, Long> unloadedChunks = new HashMap<>();
 
+    // Re-used for reading the packets which appear in large numbers
+    private final BlockChangeView blockChangeView = new BlockChangeView();
+    private final LightUpdateView lightUpdateView = new LightUpdateView();
+
+    // Only for partitions, see forPartition
+    private List<PacketData> deferred;
+    private final Set<Integer> destroyedEntities = new HashSet<>();
+    private final Set<Long> unloadedEverChunks = new HashSet<>();
+
+    /**
+     * Creates a filter for squashing only one partition (i.e. a time range) of a replay.
+     * The state of consecutive partitions can be combined via {@link #merge(SquashFilter)}, so partitions may be
+     * squashed independently of each other (e.g. in parallel).
+     * Entity and chunk state (which make up most of the work) is tracked as usual, with just enough extra information
+     * to merge it with the state of the previous partition. All other packets are cheap to handle but depend heavily
+     * on the previous state, so they are only collected and are then handled while merging.
+     * @return A new filter for one partition
+     */
+    public static SquashFilter forPartition() {
+        SquashFilter filter = new SquashFilter();
+        filter.deferred = new ArrayList<>();
+        return filter;
+    }
+
     public SquashFilter copy() {
         SquashFilter copy = new SquashFilter();
+        if (this.deferred != null) {
+            copy.deferred = new ArrayList<>();
+            this.deferred.forEach(it -> copy.deferred.add(it.copy()));
+        }
+        copy.destroyedEntities.addAll(this.destroyedEntities);
+        copy.unloadedEverChunks.addAll(this.unloadedEverChunks);
         copy.registry = this.registry;
         copy.forgeHandshake = this.forgeHandshake;
         this.teams.forEach((key, value) -> copy.teams.put(key, value.copy()));
@@ -198,6 +273,111 @@ public class SquashFilter implements StreamFilter {
         currentWindow.forEach(PacketData::release);
         closeWindows.forEach(PacketData::release);
         latestOnly.values().forEach(PacketData::release);
+        if (deferred != null) {
+            deferred.forEach(PacketData::release);
+        }
+    }
+
+    /**
+     * Merges the state of the filter for the partition directly following the partition of this filter into this
+     * filter. Afterwards, this filter is in the same state as if it had seen the packets of both partitions.
+     * This filter may either be a partition filter itself or a regular one.
+     * @param later Filter for the following partition, created by {@link #forPartition()}. Its state is moved into
+     *              this filter, so it must not be used afterwards.
+     * @throws IOException if a packet cannot be read
+     */
+    public void merge(SquashFilter later) throws IOException {
+        if (later.deferred == null) {
+            throw new IllegalArgumentException("Can only merge filters created via forPartition()");
+        }
+        for (PacketData data : later.deferred) {
+            onPacket(null, data);
+            data.release();
+        }
+        later.deferred.clear();
+        if (later.registry != null) {
+            registry = later.registry;
+        }
+
+        Set<Integer> entityIds = new HashSet<>(later.entities.keySet());
+        entityIds.addAll(later.destroyedEntities);
+        for (int id : entityIds) {
+            mergeEntity(id, later.entities.get(id), later.destroyedEntities.contains(id));
+        }
+        later.entities.clear();
+        later.destroyedEntities.clear();
+
+        // Chunks which have been unloaded in the later partition do not depend on our state
+        for (long coord : later.unloadedEverChunks) {
+            ChunkData chunk = later.chunks.remove(coord);
+            Long time = later.unloadedChunks.remove(coord);
+            if (chunk != null) {
+                chunks.put(coord, chunk);
+            } else {
+                chunks.remove(coord);
+            }
+            if (time != null) {
+                unloadedChunks.put(coord, time);
+            } else {
+                unloadedChunks.remove(coord);
+            }
+            unloadedEverChunks.add(coord);
+        }
+        for (Map.Entry<Long, ChunkData> e : later.chunks.entrySet()) {
+            ChunkData chunk = e.getValue();
+            if (chunk.loaded) {
+                unloadedChunks.remove(e.getKey());
+            }
+            ChunkData ours = chunks.get(e.getKey());
+            if (ours == null) {
+                chunks.put(e.getKey(), chunk);
+            } else {
+                ours.merge(chunk);
+            }
+        }
+        later.chunks.clear();
+        later.unloadedChunks.clear();
+        later.unloadedEverChunks.clear();
+    }
+
+    private void mergeEntity(int id, Entity later, boolean destroyed) {
+        Entity entity = entities.get(id);
+        boolean live = entity != null && !entity.despawned;
+        if (!destroyed) {
+            if (live) {
+                entity.merge(later);
+            } else {
+                if (entity != null) {
+                    entity.release();
+                }
+                later.attached = !destroyedEntities.contains(id);
+                entities.put(id, later);
+            }
+            return;
+        }
+
+        // The first destroy in the later partition has reset our state
+        if (entity != null) {
+            entity.release();
+        }
+        if (later != null && later.attached && live && entity.complete) {
+            // Had the destroy seen our state, it would have removed the entity instead of keeping it as despawned
+            later.release();
+            later = null;
+        }
+        if (later != null) {
+            later.attached &= !destroyedEntities.contains(id);
+            entities.put(id, later);
+        } else {
+            entities.remove(id);
+        }
+        destroyedEntities.add(id);
+    }
+
+    private Entity newEntity(int id) {
+        Entity entity = new Entity();
+        entity.attached = !destroyedEntities.contains(id);
+        return entity;
     }
 
     @Override
@@ -219,20 +399,23 @@ public class SquashFilter implements StreamFilter {
                 for (int id : PacketUtils.getEntityIds(packet)) {
                     Entity entity;
                     if (type == PacketType.DestroyEntities) {
-                        entity = entities.computeIfAbsent(id, i -> new Entity());
+                        entity = entities.computeIfAbsent(id, this::newEntity);
                         entity.release();
                         entity.despawned = true;
+                        if (deferred != null && !destroyedEntities.add(id)) {
+                            entity.attached = false; // Not the first destroy, so independent of previous partitions
+                        }
                         if (entity.complete) {
                             entities.remove(id);
                         }
                     } else {
-                        entity = entities.compute(id, (i, e) -> e == null || e.despawned ? new Entity() : e);
+                        entity = entities.compute(id, (i, e) -> e == null || e.despawned ? newEntity(i) : e);
                         entity.packets.add(data.retain());
                     }
                     entity.lastTimestamp = lastTimestamp;
                 }
             } else { // Only one entity
-                Entity entity = entities.compute(entityId, (i, e) -> e == null || e.despawned ? new Entity() : e);
+                Entity entity = entities.compute(entityId, (i, e) -> e == null || e.despawned ? newEntity(i) : e);
                 if (type == PacketType.EntityMovement
                         || type == PacketType.EntityPosition
                         || type == PacketType.EntityRotation
@@ -241,15 +424,18 @@ public class SquashFilter implements StreamFilter {
                     DPosition deltaPos = movement.getFirst();
                     Pair<Float, Float> yawPitch = movement.getSecond();
                     if (deltaPos != null) {
-                        entity.dx += deltaPos.getX() * 32;
-                        entity.dy += deltaPos.getY() * 32;
-                        entity.dz += deltaPos.getZ() * 32;
+                        // The deltas are fixed-point on the wire, so this is exact
+                        int scale = movementScale(packet.getRegistry());
+                        entity.dx += Math.round(deltaPos.getX() * scale);
+                        entity.dy += Math.round(deltaPos.getY() * scale);
+                        entity.dz += Math.round(deltaPos.getZ() * scale);
                     }
                     if (yawPitch != null) {
                         entity.yaw = yawPitch.getKey();
                         entity.pitch = yawPitch.getValue();
                     }
                     entity.onGround = movement.getThird();
+                    entity.moved = true;
                 } else if (type == PacketType.EntityTeleport) {
                     if (entity.teleport != null) {
                         entity.teleport.release();
@@ -268,6 +454,33 @@ public class SquashFilter implements StreamFilter {
             return false;
         }
 
+        if (deferred != null) {
+            switch (type) {
+                case UpdateLight:
+                case ChunkData:
+                case UnloadChunk:
+                case BulkChunkData:
+                case BlockChange:
+                case MultiBlockChange:
+                case PlayerActionAck:
+                case SpawnParticle:
+                case ConfirmTransaction:
+                    break; // Independent of previous partitions, handled as usual
+                case Respawn:
+                    // Once merged, this also resets the world of previous partitions
+                    chunks.clear();
+                    unloadedChunks.clear();
+                    unloadedEverChunks.clear();
+                    entities.values().forEach(Entity::release);
+                    entities.clear();
+                    destroyedEntities.clear();
+                    // fallthrough
+                default:
+                    deferred.add(data.retain());
+                    return false;
+            }
+        }
+
         switch (type) {
             //
             // World
@@ -302,7 +515,7 @@ public class SquashFilter implements StreamFilter {
                 break;
             }
             case UpdateLight:
-                PacketUpdateLight updateLight = PacketUpdateLight.read(packet);
+                LightUpdateView updateLight = lightUpdateView.wrap(packet);
                 chunks.computeIfAbsent(
                         ChunkData.coordToLong(updateLight.getX(), updateLight.getZ()),
                         idx -> new ChunkData(data.getTime(), updateLight.getX(), updateLight.getZ())
@@ -323,10 +536,9 @@ public class SquashFilter implements StreamFilter {
                 }
                 break;
             case BlockChange:
-                updateBlock(data.getTime(), PacketBlockChange.read(packet));
-                break;
             case MultiBlockChange:
-                for (PacketBlockChange change : PacketBlockChange.readBulk(packet)) {
+                BlockChangeView change = blockChangeView.wrap(packet);
+                while (change.next()) {
                     updateBlock(data.getTime(), change);
                 }
                 break;
@@ -444,21 +656,68 @@ public class SquashFilter implements StreamFilter {
         return false;
     }
 
+    /**
+     * Inserts the squashed state into the stream, see {@link #end(long, Output)}.
+     * Note that the stream collects all packets inserted at its end until {@link PacketStream#end()} returns them, so
+     * on this path the whole output is held in memory at once. Where that matters, call {@link #end(long, Output)}
+     * directly instead.
+     */
     @Override
     public void onEnd(PacketStream stream, long timestamp) throws IOException {
+        end(timestamp, stream::insert);
+    }
+
+    /**
+     * Writes the squashed state to the given output, in the same order in which {@link #onEnd} inserts it.
+     * Packets which are part of the state are sorted by merging the (already sorted) parts of the state, and packets
+     * which need to be created (e.g. for chunks) are only created once the merge reaches them. So as long as the output
+     * does not collect the packets (as a {@link PacketStream} does with those of {@link #onEnd}), this does not need to
+     * hold the whole output in memory at once.
+     * The state of this filter is consumed in the process, so it must not be used afterwards.
+     * @param timestamp Timestamp of all written packets
+     * @param output The output, takes ownership of the written packets
+     * @throws IOException if a packet cannot be read or written, or if the output throws one
+     */
+    public void end(long timestamp, Output output) throws IOException {
+        end(timestamp, false, output);
+    }
+
+    /**
+     * Writes the squashed state to the given output such that passing it through a new filter recreates this state.
+     * Unlike with {@link #end(long, Output)}, packets keep their original time (packets of teams and maps, which have
+     * none, get the given timestamp), relative movement is never replaced by a teleport and packets referring to
+     * entities which do not exist (yet) are kept. So a new filter which is first passed this output and then any
+     * further packets produces exactly the same output as this filter would have after those packets.
+     * The state of this filter is consumed in the process, so it must not be used afterwards.
+     * @param timestamp Time of the last packet this filter has seen
+     * @param output The output, takes ownership of the written packets
+     * @throws IOException if a packet cannot be read or written, or if the output throws one
+     */
+    public void checkpoint(long timestamp, Output output) throws IOException {
+        end(timestamp, true, output);
+    }
+
+    private void end(long timestamp, boolean keepTimes, Output output) throws IOException {
+        if (deferred != null) {
+            SquashFilter full = new SquashFilter();
+            full.merge(this);
+            full.end(timestamp, keepTimes, output);
+            return;
+        }
+
         // If we have any login-phase packets, those need to be sent before regular play-phase ones
         for (PacketData data : loginPhase) {
-            stream.insert(timestamp, data.getPacket());
+            output.write(new PacketData(keepTimes ? data.getTime() : timestamp, data.getPacket()));
         }
 
         // Join/respawn packet must be the first packet
         PacketData join = latestOnly.remove(PacketType.JoinGame);
         PacketData respawn = latestOnly.remove(PacketType.Respawn);
         if (join != null) {
-            stream.insert(timestamp, join.getPacket());
+            output.write(new PacketData(keepTimes ? join.getTime() : timestamp, join.getPacket()));
         }
         if (respawn != null) {
-            stream.insert(timestamp, respawn.getPacket());
+            output.write(new PacketData(keepTimes ? respawn.getTime() : timestamp, respawn.getPacket()));
         }
 
         // These must always come before any chunk packets because otherwise those may get rejected.
@@ -466,115 +725,267 @@ public class SquashFilter implements StreamFilter {
         PacketData updateViewPosition = latestOnly.remove(PacketType.UpdateViewPosition);
         PacketData updateViewDistance = latestOnly.remove(PacketType.UpdateViewDistance);
         if (updateViewPosition != null) {
-            stream.insert(timestamp, updateViewPosition.getPacket());
+            output.write(new PacketData(keepTimes ? updateViewPosition.getTime() : timestamp,
+                    updateViewPosition.getPacket()));
         }
         if (updateViewDistance != null) {
-            stream.insert(timestamp, updateViewDistance.getPacket());
+            output.write(new PacketData(keepTimes ? updateViewDistance.getTime() : timestamp,
+                    updateViewDistance.getPacket()));
         }
 
-        List<PacketData> result = new ArrayList<>();
-
-        result.addAll(unhandled);
-        result.addAll(currentWorld);
-        result.addAll(currentWindow);
-        result.addAll(closeWindows);
-        result.addAll(mainInventoryChanges.values());
-        result.addAll(latestOnly.values());
-
+        // Everything else is written ordered by time, on ties in the order in which the sources are added here
+        PriorityQueue<Source> sources = new PriorityQueue<>();
+        sources.add(new Source(sources.size(), Long.MIN_VALUE, () -> unhandled));
+        sources.add(new Source(sources.size(), Long.MIN_VALUE, () -> currentWorld));
+        sources.add(new Source(sources.size(), Long.MIN_VALUE, () -> currentWindow));
+        sources.add(new Source(sources.size(), Long.MIN_VALUE, () -> closeWindows));
+        sources.add(new Source(sources.size(), Long.MIN_VALUE, () -> new ArrayList<>(mainInventoryChanges.values())));
+        sources.add(new Source(sources.size(), Long.MIN_VALUE, () -> new ArrayList<>(latestOnly.values())));
         for (Map.Entry<Integer, Entity> e : entities.entrySet()) {
             Entity entity = e.getValue();
-
-            if (entity.despawned) {
-                result.add(new PacketData(entity.lastTimestamp, PacketDestroyEntities.write(registry, e.getKey())));
-                entity.release();
-                continue;
+            long firstTime = entity.despawned || entity.packets.isEmpty()
+                    ? entity.lastTimestamp : entity.packets.get(0).getTime();
+            sources.add(new Source(sources.size(), firstTime, () -> entityPackets(e.getKey(), entity, keepTimes)));
+        }
+        sources.add(new Source(sources.size(), Long.MIN_VALUE, () -> {
+            List<PacketData> packets = new ArrayList<>();
+            for (Map.Entry<Long, Long> e : unloadedChunks.entrySet()) {
+                int x = ChunkData.longToX(e.getKey());
+                int z = ChunkData.longToZ(e.getKey());
+                packets.add(new PacketData(e.getValue(), PacketChunkData.unload(x, z).write(registry)));
             }
+            return packets;
+        }));
+        for (ChunkData chunk : chunks.values()) {
+            // All changes to a chunk happen at or after its first appearance
+            sources.add(new Source(sources.size(), chunk.firstAppearance, () -> chunkPackets(chunk)));
+        }
 
-            FOR_PACKETS:
-            for (PacketData data : entity.packets) {
-                Packet packet = data.getPacket();
-                for (int i : PacketUtils.getEntityIds(packet)) {
-                    Entity other = entities.get(i);
-                    if (other == null || other.despawned) { // Other entity doesn't exist
-                        packet.release();
-                        continue FOR_PACKETS;
-                    }
-                }
-                result.add(data);
+        Source source;
+        while ((source = sources.poll()) != null) {
+            if (source.packets == null) {
+                List<PacketData> packets = source.contents.get();
+                packets.sort(Comparator.comparingLong(PacketData::getTime));
+                source.packets = packets.iterator();
+            } else {
+                output.write(new PacketData(keepTimes ? source.next.getTime() : timestamp, source.next.getPacket()));
             }
+            if (source.packets.hasNext()) {
+                source.next = source.packets.next();
+                source.time = source.next.getTime();
+                sources.add(source);
+            }
+        }
 
-            if (entity.teleport != null) {
-                result.add(new PacketData(entity.lastTimestamp, entity.teleport));
+        for (Team team : teams.values()) {
+            if (team.create != null) {
+                output.write(new PacketData(timestamp, team.create));
             }
-            while (entity.dx != 0 && entity.dy != 0 && entity.dz != 0) {
-                long mx = within(entity.dx, POS_MIN, POS_MAX);
-                long my = within(entity.dy, POS_MIN, POS_MAX);
-                long mz = within(entity.dz, POS_MIN, POS_MAX);
-                entity.dx -= mx;
-                entity.dy -= my;
-                entity.dz -= mz;
-                DPosition deltaPos = new DPosition(mx / 32.0, my / 32.0, mz / 32.0);
-                result.add(new PacketData(entity.lastTimestamp, PacketEntityMovement.write(
-                        registry, e.getKey(), deltaPos, null, entity.onGround)));
+            if (team.update != null) {
+                output.write(new PacketData(timestamp, team.update));
             }
-            if (entity.yaw != null && entity.pitch != null) {
-                result.add(new PacketData(entity.lastTimestamp, PacketEntityMovement.write(
-                        registry, e.getKey(), null, new Pair<>(entity.yaw, entity.pitch), entity.onGround)));
+            if (team.remove != null) {
+                output.write(new PacketData(timestamp, team.remove));
+            } else {
+                if (!team.added.isEmpty()) {
+                    output.write(new PacketData(timestamp, PacketTeam.addPlayers(registry, team.name, team.added)));
+                }
+                if (!team.removed.isEmpty()) {
+                    output.write(new PacketData(timestamp, PacketTeam.removePlayers(registry, team.name, team.removed)));
+                }
             }
         }
 
-        for (Map.Entry<Long, Long> e : unloadedChunks.entrySet()) {
-            int x = ChunkData.longToX(e.getKey());
-            int z = ChunkData.longToZ(e.getKey());
-            result.add(new PacketData(e.getValue(), PacketChunkData.unload(x, z).write(registry)));
+        for (Packet packet : maps.values()) {
+            output.write(new PacketData(timestamp, packet));
         }
+    }
 
-        for (ChunkData chunk : chunks.values()) {
-            Column column = new Column(
-                    chunk.x, chunk.z, chunk.changes, chunk.biomeData, chunk.tileEntities, chunk.heightmaps, chunk.biomes, chunk.useExistingLightData
-            );
-            if (column.isFull() || !Utils.containsOnlyNull(chunk.changes)) {
-                result.add(new PacketData(chunk.firstAppearance, PacketChunkData.load(column).write(registry)));
-            }
-            for (Map<Short, MutablePair<Long, PacketBlockChange>> e : chunk.blockChanges) {
-                if (e != null) {
-                    for (MutablePair<Long, PacketBlockChange> pair : e.values()) {
-                        result.add(new PacketData(pair.getLeft(), pair.getRight().write(registry)));
-                    }
+    private List<PacketData> entityPackets(int id, Entity entity, boolean keepAll) throws IOException {
+        List<PacketData> result = new ArrayList<>();
+
+        if (entity.despawned) {
+            result.add(new PacketData(entity.lastTimestamp, PacketDestroyEntities.write(registry, id)));
+            entity.release();
+            return result;
+        }
+
+        FOR_PACKETS:
+        for (PacketData data : entity.packets) {
+            Packet packet = data.getPacket();
+            for (int i : PacketUtils.getEntityIds(packet)) {
+                Entity other = entities.get(i);
+                if (!keepAll && (other == null || other.despawned)) { // Other entity doesn't exist
+                    packet.release();
+                    continue FOR_PACKETS;
                 }
             }
-            if (chunk.hasLight()) {
-                result.add(new PacketData(chunk.firstAppearance, new PacketUpdateLight(
-                        chunk.x, chunk.z, Arrays.asList(chunk.skyLight), Arrays.asList(chunk.blockLight)).write(registry)));
+            result.add(data);
+        }
+
+        addMovement(result, id, entity, keepAll);
+        return result;
+    }
+
+    /**
+     * Adds the packets which move the entity from its last teleport (or its spawn) to its current location.
+     * That is either a single teleport to the absolute location, if that location is known, or the shortest sequence
+     * of relative moves, whichever is smaller once encoded.
+     * With {@code relative}, relative moves are kept as such.
+     */
+    private void addMovement(List<PacketData> result, int id, Entity entity, boolean relative) throws IOException {
+        long time = entity.lastTimestamp;
+        boolean moved = entity.dx != 0 || entity.dy != 0 || entity.dz != 0;
+        boolean rotated = entity.yaw != null && entity.pitch != null;
+        if (entity.teleport != null) {
+            if (moved || rotated) {
+                // We need to send a teleport anyway, so it might as well go straight to the current location
+                Location location = moveBy(PacketEntityTeleport.getLocation(entity.teleport), entity);
+                entity.teleport.release();
+                entity.teleport = PacketEntityTeleport.write(registry, id, location, entity.onGround);
             }
+            result.add(new PacketData(time, entity.teleport));
+            entity.teleport = null;
+            return;
+        }
+        if (!moved && !rotated) {
+            return;
         }
 
-        result.sort(Comparator.comparingLong(PacketData::getTime));
-        for (PacketData data : result) {
-            add(stream, timestamp, data.getPacket());
+        int scale = movementScale(registry);
+        long max = scale == 4096 ? Short.MAX_VALUE : Byte.MAX_VALUE;
+        long steps = 0;
+        for (long d : new long[]{entity.dx, entity.dy, entity.dz}) {
+            steps = Math.max(steps, (Math.abs(d) + max - 1) / max);
         }
 
-        for (Team team : teams.values()) {
-            if (team.create != null) {
-                add(stream, timestamp, team.create);
+        // Requires the rotation to be known, spawn packets do not all encode it the same way
+        Location spawnLocation = rotated && !relative ? getSpawnLocation(result) : null;
+        if (spawnLocation != null) {
+            // Each packet is preceded by its time and length in the replay, then packet and entity id
+            int overhead = 8 + 1 + (registry.atLeast(ProtocolVersion.v1_8) ? Utils.varIntLength(id) : 4);
+            int onGround = registry.atLeast(ProtocolVersion.v1_8) ? 1 : 0;
+            int teleportSize = overhead + (scale == 4096 ? 3 * 8 : 3 * 4) + 2 + onGround;
+            long relativeSize = steps * (overhead + (scale == 4096 ? 3 * 2 : 3) + onGround)
+                    + (steps > 0 ? 2 : overhead + 2 + onGround);
+            if (teleportSize < relativeSize) {
+                Location location = moveBy(spawnLocation, entity);
+                result.add(new PacketData(time, PacketEntityTeleport.write(registry, id, location, entity.onGround)));
+                return;
             }
-            if (team.update != null) {
-                add(stream, timestamp, team.update);
+        }
+
+        // Rotation is sent along with the last move
+        Pair<Float, Float> rotation = rotated ? new Pair<>(entity.yaw, entity.pitch) : null;
+        long dx = entity.dx, dy = entity.dy, dz = entity.dz;
+        if (!moved) {
+            result.add(new PacketData(time, PacketEntityMovement.write(registry, id, null, rotation, entity.onGround)));
+        }
+        while (dx != 0 || dy != 0 || dz != 0) {
+            long mx = within(dx, -max - 1, max);
+            long my = within(dy, -max - 1, max);
+            long mz = within(dz, -max - 1, max);
+            dx -= mx;
+            dy -= my;
+            dz -= mz;
+            boolean last = dx == 0 && dy == 0 && dz == 0;
+            DPosition deltaPos = new DPosition(mx / (double) scale, my / (double) scale, mz / (double) scale);
+            result.add(new PacketData(time, PacketEntityMovement.write(
+                    registry, id, deltaPos, last ? rotation : null, entity.onGround)));
+        }
+    }
+
+    private Location moveBy(Location location, Entity entity) {
+        double scale = movementScale(registry);
+        return new Location(
+                location.getX() + entity.dx / scale,
+                location.getY() + entity.dy / scale,
+                location.getZ() + entity.dz / scale,
+                entity.yaw != null ? entity.yaw : location.getYaw(),
+                entity.pitch != null ? entity.pitch : location.getPitch()
+        );
+    }
+
+    private static Location getSpawnLocation(List<PacketData> packets) throws IOException {
+        Location location = null;
+        for (PacketData data : packets) {
+            if (PacketUtils.isSpawnEntityPacket(data.getPacket())) {
+                location = SpawnEntity.getLocation(data.getPacket());
             }
-            if (team.remove != null) {
-                add(stream, timestamp, team.remove);
-            } else {
-                if (!team.added.isEmpty()) {
-                    add(stream, timestamp, PacketTeam.addPlayers(registry, team.name, team.added));
-                }
-                if (!team.removed.isEmpty()) {
-                    add(stream, timestamp, PacketTeam.removePlayers(registry, team.name, team.removed));
-                }
+        }
+        return location;
+    }
+
+    /**
+     * Returns the fixed-point scale with which relative entity movement is encoded in the given protocol.
+     */
+    private static int movementScale(PacketTypeRegistry registry) {
+        return registry.atLeast(ProtocolVersion.v1_9) ? 4096 : 32;
+    }
+
+    private List<PacketData> chunkPackets(ChunkData chunk) throws IOException {
+        List<PacketData> result = new ArrayList<>();
+        Column column = new Column(
+                chunk.x, chunk.z, chunk.changes, chunk.biomeData, chunk.tileEntities, chunk.heightmaps, chunk.biomes, chunk.useExistingLightData
+        );
+        if (column.isFull() || !Utils.containsOnlyNull(chunk.changes)) {
+            result.add(new PacketData(chunk.firstAppearance, PacketChunkData.load(column).write(registry)));
+        }
+        for (int section = 0; section < chunk.blockChanges.length; section++) {
+            BlockChangeMap changes = chunk.blockChanges[section];
+            if (changes != null) {
+                int sectionY = section << 4;
+                changes.forEach((index, time, state) -> result.add(new PacketData(time, PacketBlockChange.write(
+                        registry,
+                        new IPosition(
+                                chunk.x << 4 | BlockChangeMap.x(index),
+                                sectionY | BlockChangeMap.y(index),
+                                chunk.z << 4 | BlockChangeMap.z(index)
+                        ),
+                        state
+                ))));
             }
         }
+        if (chunk.hasLight()) {
+            result.add(new PacketData(chunk.firstAppearance, new PacketUpdateLight(
+                    chunk.x, chunk.z, Arrays.asList(chunk.skyLight), Arrays.asList(chunk.blockLight)).write(registry)));
+        }
+        return result;
+    }
 
-        for (Packet packet : maps.values()) {
-            add(stream, timestamp, packet);
+    /**
+     * Receives the output of {@link #end(long, Output)}.
+     */
+    public interface Output {
+        void write(PacketData data) throws IOException;
+    }
+
+    /**
+     * One part of the state whose packets are merged with the other parts by {@link #end(long, Output)}.
+     * Its packets are only created once the merge reaches the time at which they can start.
+     */
+    private static final class Source implements Comparable<Source> {
+        private final int order;
+        private final Contents contents;
+        // Time of the next packet, or the earliest possible time before the packets have been created
+        private long time;
+        private Iterator<PacketData> packets;
+        private PacketData next;
+
+        Source(int order, long time, Contents contents) {
+            this.order = order;
+            this.time = time;
+            this.contents = contents;
+        }
+
+        @Override
+        public int compareTo(Source o) {
+            int result = Long.compare(time, o.time);
+            return result != 0 ? result : Integer.compare(order, o.order);
+        }
+
+        interface Contents {
+            List<PacketData> get() throws IOException;
         }
     }
 
@@ -587,15 +998,12 @@ public class SquashFilter implements StreamFilter {
     public void init(Studio studio, JsonObject config) {
     }
 
-    private void add(PacketStream stream, long timestamp, Packet packet) {
-        stream.insert(new PacketData(timestamp, packet));
-    }
-
-    private void updateBlock(long time, PacketBlockChange record) {
-        IPosition pos = record.getPosition();
+    private void updateBlock(long time, BlockChangeView record) {
+        int chunkX = record.getX() >> 4;
+        int chunkZ = record.getZ() >> 4;
         chunks.computeIfAbsent(
-                ChunkData.coordToLong(pos.getX() >> 4, pos.getZ() >> 4),
-                idx -> new ChunkData(time, pos.getX() >> 4, pos.getZ() >> 4)
+                ChunkData.coordToLong(chunkX, chunkZ),
+                idx -> new ChunkData(time, chunkX, chunkZ)
         ).updateBlock(time, record);
     }
 
@@ -603,6 +1011,9 @@ public class SquashFilter implements StreamFilter {
         long coord = ChunkData.coordToLong(x, z);
         chunks.remove(coord);
         unloadedChunks.put(coord, time);
+        if (deferred != null) {
+            unloadedEverChunks.add(coord);
+        }
     }
 
     private void updateChunk(long time, Column column) {
@@ -612,6 +1023,7 @@ public class SquashFilter implements StreamFilter {
         if (chunk == null) {
             chunks.put(coord, chunk = new ChunkData(time, column.x, column.z));
         }
+        chunk.loaded = true;
         chunk.update(
                 column.chunks,
                 column.biomeData,
@@ -628,8 +1040,7 @@ public class SquashFilter implements StreamFilter {
         private final int z;
         private final Chunk[] changes = new Chunk[16];
         private byte[] biomeData; // pre 1.15
-        @SuppressWarnings("unchecked")
-        private Map<Short, MutablePair<Long, PacketBlockChange>>[] blockChanges = new Map[16];
+        private final BlockChangeMap[] blockChanges = new BlockChangeMap[16];
         // 1.9+
         private CompoundTag[] tileEntities;
         // 1.14+
@@ -640,6 +1051,8 @@ public class SquashFilter implements StreamFilter {
         private int[] biomes;
         // 1.16+
         private boolean useExistingLightData = true;
+        // Whether a full chunk packet has been received for this chunk (rather than just block or light updates)
+        private boolean loaded;
 
          ChunkData(long firstAppearance, int x, int z) {
             this.firstAppearance = firstAppearance;
@@ -654,11 +1067,7 @@ public class SquashFilter implements StreamFilter {
             }
             copy.biomeData = this.biomeData;
             for (int i = 0; i < this.blockChanges.length; i++) {
-                if (this.blockChanges[i] != null) {
-                    Map<Short, MutablePair<Long, PacketBlockChange>> copyMap = new HashMap<>();
-                    copy.blockChanges[i] = copyMap;
-                    this.blockChanges[i].forEach((key, value) -> copyMap.put(key, new MutablePair<>(value.left, value.right)));
-                }
+                copy.blockChanges[i] = this.blockChanges[i] != null ? this.blockChanges[i].copy() : null;
             }
             copy.tileEntities = this.tileEntities;
             copy.heightmaps = this.heightmaps;
@@ -666,9 +1075,52 @@ public class SquashFilter implements StreamFilter {
             copy.blockLight = this.blockLight.clone();
             copy.biomes = this.biomes;
             copy.useExistingLightData = this.useExistingLightData;
+            copy.loaded = this.loaded;
             return copy;
         }
 
+        /**
+         * Applies the state of the same chunk in the following partition.
+         */
+        void merge(ChunkData later) {
+            for (int i = 0; i < changes.length; i++) {
+                if (later.changes[i] != null) {
+                    changes[i] = later.changes[i];
+                    blockChanges[i] = later.blockChanges[i];
+                } else if (later.blockChanges[i] != null) {
+                    if (blockChanges[i] == null) {
+                        blockChanges[i] = later.blockChanges[i];
+                    } else {
+                        blockChanges[i].merge(later.blockChanges[i]);
+                    }
+                }
+            }
+            if (later.biomeData != null) {
+                biomeData = later.biomeData;
+            }
+            if (later.tileEntities != null) {
+                tileEntities = later.tileEntities;
+            }
+            if (later.heightmaps != null) {
+                heightmaps = later.heightmaps;
+            }
+            if (later.biomes != null) {
+                biomes = later.biomes;
+            }
+            for (int i = 0; i < skyLight.length; i++) {
+                if (later.skyLight[i] != null) {
+                    skyLight[i] = later.skyLight[i];
+                }
+            }
+            for (int i = 0; i < blockLight.length; i++) {
+                if (later.blockLight[i] != null) {
+                    blockLight[i] = later.blockLight[i];
+                }
+            }
+            useExistingLightData &= later.useExistingLightData;
+            loaded |= later.loaded;
+        }
+
         void update(
                 Chunk[] newChunks,
                 byte[] newBiomeData, // pre 1.15
@@ -701,20 +1153,18 @@ public class SquashFilter implements StreamFilter {
             }
         }
 
-        private void updateLight(PacketUpdateLight packet) { // 1.14+
-            int i = 0;
-            for (byte[] light : packet.getSkyLight()) {
+        private void updateLight(LightUpdateView packet) throws IOException { // 1.14+
+            for (int i = 0; i < skyLight.length; i++) {
+                byte[] light = packet.getSkyLight(i);
                 if (light != null) {
                     skyLight[i] = light;
                 }
-                i++;
             }
-            i = 0;
-            for (byte[] light : packet.getBlockLight()) {
+            for (int i = 0; i < blockLight.length; i++) {
+                byte[] light = packet.getBlockLight(i);
                 if (light != null) {
                     blockLight[i] = light;
                 }
-                i++;
             }
         }
 
@@ -732,27 +1182,17 @@ public class SquashFilter implements StreamFilter {
             return false;
         }
 
-        private MutablePair<Long, PacketBlockChange> blockChanges(IPosition pos) {
-            int x = pos.getX();
-            int y = pos.getY();
+        void updateBlock(long time, BlockChangeView change) {
+            int y = change.getY();
             int chunkY = y / 16;
-            int z = pos.getZ();
             if (chunkY < 0 || chunkY >= blockChanges.length) {
-                return null;
-            }
-            if (blockChanges[chunkY] == null) {
-                blockChanges[chunkY] = new HashMap<>();
+                return;
             }
-            short index = (short) ((x & 15) << 10 | (y & 15) << 5 | (z & 15));
-            return blockChanges[chunkY].computeIfAbsent(index, k -> MutablePair.of(0L, null));
-        }
-
-        void updateBlock(long time, PacketBlockChange change) {
-            MutablePair<Long, PacketBlockChange> pair = blockChanges(change.getPosition());
-            if (pair != null && pair.getLeft() < time) {
-                pair.setLeft(time);
-                pair.setRight(change);
+            BlockChangeMap changes = blockChanges[chunkY];
+            if (changes == null) {
+                blockChanges[chunkY] = changes = new BlockChangeMap();
             }
+            changes.update(BlockChangeMap.index(change.getX(), y, change.getZ()), time, change.getId());
         }
 
         private static long coordToLong(int x, int z) {
@@ -0,0 +1,186 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.io;
+
+import com.github.steveice10.netty.buffer.ByteBuf;
+import com.github.steveice10.netty.buffer.Unpooled;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Input stream reading uncompressed data directly from a memory-mapped region of a file.
+ * In addition to the regular {@link InputStream} methods, it can hand out {@link #readRetainedSlice(int) slices} of
+ * the mapping, allowing for packets to be read without copying their content.
+ *
+ * The region is mapped in windows of at most {@link #WINDOW_SIZE} bytes (a single mapping is limited to 2GB), the
+ * next window is mapped once a read would exceed the current one.
+ */
+public class MappedInputStream extends InputStream {
+    private static final long WINDOW_SIZE = 256 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long start;
+    private final long end;
+
+    /**
+     * Absolute position in the file of the first byte in the current window.
+     */
+    private long windowStart;
+
+    /**
+     * The current window. Its reader index is the current position relative to {@link #windowStart}.
+     */
+    private ByteBuf window;
+
+    /**
+     * Creates a new input stream for the specified region of a file.
+     * @param file The file
+     * @param offset Offset of the first byte of the region
+     * @param length Length of the region
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public MappedInputStream(Path file, long offset, long length) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.start = offset;
+        this.end = offset + length;
+        try {
+            map(offset);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void map(long position) throws IOException {
+        if (window != null) {
+            window.release();
+        }
+        long size = Math.min(WINDOW_SIZE, end - position);
+        window = Unpooled.wrappedBuffer(channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+        windowStart = position;
+    }
+
+    /**
+     * Makes sure the current window contains at least the given amount of readable bytes.
+     * @return {@code false} if the end of the region is reached before that many bytes are available
+     */
+    private boolean ensureReadable(int length) throws IOException {
+        if (window.readableBytes() >= length) {
+            return true;
+        }
+        long position = getPosition();
+        if (end - position < length) {
+            return false;
+        }
+        map(position);
+        return true;
+    }
+
+    /**
+     * Returns the current position relative to the start of the mapped region.
+     * @return The position in bytes
+     */
+    public long getPosition() {
+        return windowStart + window.readerIndex() - start;
+    }
+
+    /**
+     * Returns the total length of the mapped region.
+     * @return The length in bytes
+     */
+    public long getLength() {
+        return end - start;
+    }
+
+    /**
+     * Reads a slice of the mapping. The slice is read-only and has to be released by the caller.
+     * @param length Length of the slice
+     * @return The slice
+     * @throws EOFException if fewer than {@code length} bytes are remaining
+     */
+    public ByteBuf readRetainedSlice(int length) throws IOException {
+        if (!ensureReadable(length)) {
+            throw new EOFException();
+        }
+        return window.readRetainedSlice(length);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureReadable(1)) {
+            return -1;
+        }
+        return window.readUnsignedByte();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        len = (int) Math.min(len, end - start - getPosition());
+        if (len <= 0) {
+            return -1;
+        }
+        len = Math.min(len, (int) Math.min(WINDOW_SIZE, Integer.MAX_VALUE));
+        ensureReadable(len);
+        window.readBytes(b, off, len);
+        return len;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long position = getPosition();
+        n = Math.min(n, end - start - position);
+        if (n <= 0) {
+            return 0;
+        }
+        if (n <= window.readableBytes()) {
+            window.skipBytes((int) n);
+        } else {
+            map(start + position + n);
+        }
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(end - start - getPosition(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (window != null) {
+            window.release();
+            window = null;
+        }
+        channel.close();
+    }
+}
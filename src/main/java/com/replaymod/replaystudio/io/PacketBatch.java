@@ -0,0 +1,194 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.io;
+
+import com.github.steveice10.netty.buffer.ByteBuf;
+import com.github.steveice10.netty.buffer.ByteBufAllocator;
+import com.github.steveice10.netty.buffer.PooledByteBufAllocator;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+
+/**
+ * A reusable block of packets read via {@link ReplayInputStream#readBatch(PacketBatch)}.
+ * The content of all packets is stored in one shared buffer and their metadata in arrays, so reading packets in
+ * batches does not allocate any objects per packet.
+ *
+ * The content of a batch is only valid until the next call to {@link ReplayInputStream#readBatch(PacketBatch)}.
+ * Use {@link #toPacket(int)} to get a packet which outlives the batch.
+ */
+public class PacketBatch {
+    private static final ByteBufAllocator ALLOC = PooledByteBufAllocator.DEFAULT;
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * Amount of bytes after which a batch is considered full even if it has not yet reached its capacity.
+     */
+    private static final int MAX_BYTES = 1024 * 1024;
+
+    private final int capacity;
+    private final long[] times;
+    private final PacketTypeRegistry[] registries;
+    private final int[] ids;
+    private final PacketType[] types;
+    private final int[] offsets;
+    private final int[] lengths;
+    private int size;
+    private ByteBuf buf;
+
+    public PacketBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Maximum amount of packets in this batch
+     */
+    public PacketBatch(int capacity) {
+        this.capacity = capacity;
+        this.times = new long[capacity];
+        this.registries = new PacketTypeRegistry[capacity];
+        this.ids = new int[capacity];
+        this.types = new PacketType[capacity];
+        this.offsets = new int[capacity];
+        this.lengths = new int[capacity];
+    }
+
+    /**
+     * @return Amount of packets in this batch
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean isFull() {
+        return size == capacity || (buf != null && buf.writerIndex() >= MAX_BYTES);
+    }
+
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    public PacketTypeRegistry getRegistry(int index) {
+        return registries[index];
+    }
+
+    public int getId(int index) {
+        return ids[index];
+    }
+
+    public PacketType getType(int index) {
+        return types[index];
+    }
+
+    /**
+     * Returns the buffer shared by all packets in this batch.
+     * The content of each packet (excluding its id) can be found at {@link #getOffset(int)} and is
+     * {@link #getLength(int)} bytes long. The reader and writer index of the buffer must not be modified.
+     * @return The shared buffer
+     */
+    public ByteBuf getBuf() {
+        return buf;
+    }
+
+    public int getOffset(int index) {
+        return offsets[index];
+    }
+
+    public int getLength(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * Creates a packet for the specified entry of this batch.
+     * The packet retains a slice of the shared buffer, it remains valid after the batch is cleared and must be
+     * released by the caller.
+     * @param index Index of the packet in this batch
+     * @return The packet
+     */
+    public Packet toPacket(int index) {
+        return new Packet(registries[index], ids[index], types[index], buf.retainedSlice(offsets[index], lengths[index]));
+    }
+
+    /**
+     * Removes all packets from this batch.
+     * If no packets of this batch are still in use, the shared buffer is re-used for the next batch.
+     */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            registries[i] = null;
+            types[i] = null;
+        }
+        size = 0;
+        if (buf != null && buf.refCnt() > 1) {
+            // Some slices are still in use, we mustn't overwrite them
+            buf.release();
+            buf = null;
+        }
+        if (buf == null) {
+            buf = ALLOC.buffer(64 * 1024);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Adds a packet whose content has just been written to the end of the shared buffer.
+     */
+    void add(long time, PacketTypeRegistry registry, int id, PacketType type, int offset, int length) {
+        times[size] = time;
+        registries[size] = registry;
+        ids[size] = id;
+        types[size] = type;
+        offsets[size] = offset;
+        lengths[size] = length;
+        size++;
+    }
+
+    /**
+     * Adds a copy of the specified packet.
+     */
+    void add(long time, Packet packet) {
+        ByteBuf content = packet.getBuf();
+        int offset = buf.writerIndex();
+        int length = content.readableBytes();
+        buf.writeBytes(content, content.readerIndex(), length);
+        add(time, packet.getRegistry(), packet.getId(), packet.getType(), offset, length);
+    }
+
+    /**
+     * Releases the shared buffer of this batch. Packets created via {@link #toPacket(int)} remain valid.
+     */
+    public void release() {
+        size = 0;
+        if (buf != null) {
+            buf.release();
+            buf = null;
+        }
+    }
+}
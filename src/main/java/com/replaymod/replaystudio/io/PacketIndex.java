@@ -0,0 +1,187 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.io;
+
+import com.github.steveice10.packetlib.io.NetInput;
+import com.github.steveice10.packetlib.io.NetOutput;
+import com.github.steveice10.packetlib.io.stream.StreamNetInput;
+import com.github.steveice10.packetlib.io.stream.StreamNetOutput;
+import com.google.common.io.ByteStreams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static com.replaymod.replaystudio.util.Utils.readInt;
+import static com.replaymod.replaystudio.util.Utils.readVarInt;
+import static com.replaymod.replaystudio.util.Utils.varIntLength;
+
+/**
+ * Sparse index of the {@code [time][length][payload]} framing of raw packet data (i.e. the recording.tmcpr entry),
+ * mapping timestamps to byte offsets.
+ * Each point in the index is the offset of the first frame at or after its timestamp. All frames before that offset
+ * have a smaller timestamp, so reading may start at the offset of the last point before the desired time.
+ *
+ * Only frames in the play phase are indexed, i.e. starting at any point skips the whole login phase.
+ */
+public class PacketIndex {
+    /**
+     * Default minimum distance in milliseconds between two points in the index.
+     */
+    public static final int DEFAULT_INTERVAL = 1000;
+
+    private static final int VERSION = 1;
+    private static final int LOGIN_SUCCESS_ID = 0x02;
+
+    private final long[] times;
+    private final long[] offsets;
+
+    private PacketIndex(long[] times, long[] offsets) {
+        this.times = times;
+        this.offsets = offsets;
+    }
+
+    /**
+     * Builds a new index by scanning the framing of the given raw packet data.
+     * The packets themselves are not decoded.
+     * @param in The raw packet data, read until its end but not closed
+     * @param fileFormatVersion The file format version of the packet data
+     * @param interval Minimum distance in milliseconds between two points in the index
+     * @return The index
+     * @throws IOException if an I/O error occurs
+     */
+    public static PacketIndex build(InputStream in, int fileFormatVersion, int interval) throws IOException {
+        long[] times = new long[64];
+        long[] offsets = new long[64];
+        int size = 0;
+
+        boolean loginPhase = fileFormatVersion >= 14;
+        long nextPoint = Long.MIN_VALUE;
+        long offset = 0;
+        while (true) {
+            int time = readInt(in);
+            int length = readInt(in);
+            if (time == -1 || length == -1) {
+                break;
+            }
+
+            if (loginPhase) {
+                int remaining = length;
+                if (length > 0) {
+                    int id = readVarInt(in);
+                    if (id == LOGIN_SUCCESS_ID) {
+                        loginPhase = false;
+                    }
+                    remaining -= varIntLength(id);
+                }
+                ByteStreams.skipFully(in, remaining);
+            } else {
+                if (time >= nextPoint) {
+                    if (size == times.length) {
+                        times = Arrays.copyOf(times, size * 2);
+                        offsets = Arrays.copyOf(offsets, size * 2);
+                    }
+                    times[size] = time;
+                    offsets[size] = offset;
+                    size++;
+                    nextPoint = time + interval;
+                }
+                ByteStreams.skipFully(in, length);
+            }
+            offset += 8 + length;
+        }
+
+        return new PacketIndex(Arrays.copyOf(times, size), Arrays.copyOf(offsets, size));
+    }
+
+    /**
+     * Reads an index previously written via {@link #write(OutputStream)}.
+     * @param rawIn The input stream
+     * @return The index or {@code null} if it was written by an incompatible version
+     * @throws IOException if an I/O error occurs
+     */
+    public static PacketIndex read(InputStream rawIn) throws IOException {
+        NetInput in = new StreamNetInput(rawIn);
+        if (in.readVarInt() != VERSION) {
+            return null;
+        }
+        int size = in.readVarInt();
+        long[] times = new long[size];
+        long[] offsets = new long[size];
+        long time = 0;
+        long offset = 0;
+        for (int i = 0; i < size; i++) {
+            times[i] = time += in.readVarLong();
+            offsets[i] = offset += in.readVarLong();
+        }
+        return new PacketIndex(times, offsets);
+    }
+
+    /**
+     * Writes this index to the given output stream.
+     * @param rawOut The output stream
+     * @throws IOException if an I/O error occurs
+     */
+    public void write(OutputStream rawOut) throws IOException {
+        NetOutput out = new StreamNetOutput(rawOut);
+        out.writeVarInt(VERSION);
+        out.writeVarInt(times.length);
+        long time = 0;
+        long offset = 0;
+        for (int i = 0; i < times.length; i++) {
+            out.writeVarLong(times[i] - time);
+            out.writeVarLong(offsets[i] - offset);
+            time = times[i];
+            offset = offsets[i];
+        }
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    public long getOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Returns the index of the last point at or before the specified time.
+     * @param time The timestamp in milliseconds
+     * @return Index of the point or {@code -1} if there is no such point
+     */
+    public int floorIndex(long time) {
+        int index = Arrays.binarySearch(times, time);
+        if (index < 0) {
+            return -index - 2;
+        }
+        // Multiple points cannot share the same time (the interval is always positive), so this is the one
+        return index;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream which compresses its data into a raw DEFLATE stream (as used in zip files) on multiple threads.
+ *
+ * The input is split into blocks which are compressed independently by the given executor. Each block is primed
+ * with the last 32KB of the previous block as preset dictionary and ends with a sync flush (the last one with a final
+ * block instead), so the compressed blocks can simply be concatenated and the result is a single valid DEFLATE
+ * stream, decompressing to the same data as if it had been compressed in one go.
+ *
+ * The CRC-32 of the uncompressed data is computed on the calling thread, one block at a time.
+ * Compressed blocks are written to the underlying stream on the calling thread, in order.
+ */
+public class ParallelDeflaterOutputStream extends FilterOutputStream {
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private final ExecutorService executor;
+    private final int level;
+    private final int blockSize;
+    private final int maxPending;
+    private final Queue<Future<byte[]>> pending = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+
+    private byte[] block;
+    private int blockLength;
+    // Number of bytes at the start of the current block which have already been added to the CRC
+    private int crcLength;
+    private byte[] dictionary;
+    private long size;
+    private long compressedSize;
+    private boolean finished;
+
+    /**
+     * Creates a new parallel deflater output stream with default compression level and block size.
+     * @param out The output stream to which the compressed data is written
+     * @param executor The executor on which blocks are compressed
+     * @param threads The number of threads of the executor, used to limit the amount of buffered blocks
+     */
+    public ParallelDeflaterOutputStream(OutputStream out, ExecutorService executor, int threads) {
+        this(out, executor, threads, Deflater.DEFAULT_COMPRESSION, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new parallel deflater output stream.
+     * @param out The output stream to which the compressed data is written
+     * @param executor The executor on which blocks are compressed
+     * @param threads The number of threads of the executor, used to limit the amount of buffered blocks
+     * @param level The compression level, see {@link Deflater#setLevel(int)}
+     * @param blockSize Size of uncompressed blocks, should be significantly larger than 32KB
+     */
+    public ParallelDeflaterOutputStream(OutputStream out, ExecutorService executor, int threads, int level, int blockSize) {
+        super(out);
+        this.executor = executor;
+        this.level = level;
+        this.blockSize = blockSize;
+        this.maxPending = Math.max(1, threads) * 2;
+        this.block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (finished) {
+            throw new IOException("Stream already finished");
+        }
+        block[blockLength++] = (byte) b;
+        size++;
+        if (blockLength == blockSize) {
+            submitBlock(false);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("Stream already finished");
+        }
+        size += len;
+        while (len > 0) {
+            int n = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == blockSize) {
+                submitBlock(false);
+            }
+        }
+    }
+
+    /**
+     * Compresses all remaining data and writes the end of the DEFLATE stream without closing the underlying stream.
+     * Has no effect if the stream has already been finished.
+     * @throws IOException if an I/O error occurs or compression failed
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        submitBlock(true);
+        while (!pending.isEmpty()) {
+            writeCompleted();
+        }
+        out.flush();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        // Only completed blocks are written, flushing a partial block would hurt compression
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(false);
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+
+    private void updateCrc() {
+        crc.update(block, crcLength, blockLength - crcLength);
+        crcLength = blockLength;
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        updateCrc();
+        byte[] input = block;
+        int length = blockLength;
+        byte[] dict = dictionary;
+        if (!last) {
+            int dictLength = Math.min(length, DICTIONARY_SIZE);
+            dictionary = Arrays.copyOfRange(input, length - dictLength, length);
+            block = new byte[blockSize];
+            blockLength = 0;
+            crcLength = 0;
+        }
+        pending.add(executor.submit(() -> compress(input, length, dict, last)));
+        while (pending.size() > maxPending || (!pending.isEmpty() && pending.peek().isDone())) {
+            writeCompleted();
+        }
+    }
+
+    private void writeCompleted() throws IOException {
+        byte[] compressed;
+        try {
+            compressed = pending.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress block", e.getCause());
+        }
+        out.write(compressed);
+        compressedSize += compressed.length;
+    }
+
+    private byte[] compress(byte[] input, int length, byte[] dict, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dict != null) {
+                deflater.setDictionary(dict);
+            }
+            deflater.setInput(input, 0, length);
+            byte[] output = new byte[length + length / 1000 + 64];
+            int outputLength = 0;
+            if (last) {
+                deflater.finish();
+            }
+            while (true) {
+                if (outputLength == output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                int n = deflater.deflate(output, outputLength, output.length - outputLength,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                outputLength += n;
+                if (last ? deflater.finished() : outputLength < output.length) {
+                    break;
+                }
+            }
+            return Arrays.copyOf(output, outputLength);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return CRC-32 of all data written so far
+     */
+    public long getCrc() {
+        if (!finished) {
+            updateCrc();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * @return Number of uncompressed bytes written so far
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return Number of compressed bytes written to the underlying stream so far
+     */
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+}
@@ -28,6 +28,8 @@ import com.github.steveice10.netty.buffer.ByteBuf;
 import com.github.steveice10.netty.buffer.ByteBufAllocator;
 import com.github.steveice10.netty.buffer.PooledByteBufAllocator;
 import com.github.steveice10.packetlib.tcp.io.ByteBufNetInput;
+import com.github.steveice10.packetlib.tcp.io.ByteBufNetOutput;
+import com.google.common.io.ByteStreams;
 import com.replaymod.replaystudio.PacketData;
 import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.protocol.PacketType;
@@ -41,13 +43,21 @@ import com.replaymod.replaystudio.viaversion.ViaVersionPacketConverter;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.ArrayDeque;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import static com.replaymod.replaystudio.util.Utils.readInt;
+import static com.replaymod.replaystudio.util.Utils.readVarInt;
+import static com.replaymod.replaystudio.util.Utils.varIntLength;
 
 /**
  * Input stream for reading packet data.
@@ -56,13 +66,34 @@ public class ReplayInputStream extends InputStream {
 
     private static final ByteBufAllocator ALLOC = PooledByteBufAllocator.DEFAULT;
 
-    private PacketTypeRegistry registry;
+    /**
+     * Default amount of packets handed from the read-ahead thread to the consumer at once.
+     */
+    public static final int DEFAULT_READ_AHEAD_BATCH_SIZE = 256;
+
+    /**
+     * Default amount of batches the read-ahead thread may be ahead of the consumer.
+     */
+    public static final int DEFAULT_READ_AHEAD_CAPACITY = 16;
+
+    /**
+     * Marks the end of the stream in the {@link #readAheadQueue}.
+     */
+    private static final List<PacketData> END_OF_STREAM = Collections.emptyList();
+
+    private volatile PacketTypeRegistry registry;
 
     /**
      * The actual input stream.
      */
     private final InputStream in;
 
+    /**
+     * Same as {@link #in} if the input is memory-mapped, {@code null} otherwise.
+     * Packets are then read as slices of the mapping instead of being copied into a new buffer.
+     */
+    private final MappedInputStream mappedIn;
+
     /**
      * The instance of the ViaVersion packet converter in use.
      */
@@ -79,23 +110,97 @@ public class ReplayInputStream extends InputStream {
      */
     private boolean outputLoginPhase;
 
+    /**
+     * The types of packets in the play phase which are returned from this stream, {@code null} for all types.
+     * Packets of the login phase are not affected.
+     * Unless packets need to be converted from another version, frames of other types are skipped without
+     * reading their content.
+     */
+    private final EnumSet<PacketType> types;
+
     /**
      * Packets which have already been read from the input but have not yet been requested via {@link #readPacket()}.
      */
     private Queue<PacketData> buffer = new ArrayDeque<>();
 
+    /**
+     * The thread reading packets ahead of the consumer, {@code null} unless {@link #startReadAhead(int, int)} has
+     * been called.
+     */
+    private Thread readAheadThread;
+
+    /**
+     * Batches of packets read by the {@link #readAheadThread} which have not yet been consumed.
+     */
+    private BlockingQueue<List<PacketData>> readAheadQueue;
+
+    /**
+     * Remaining packets of the batch currently being consumed.
+     */
+    private Queue<PacketData> readAheadBatch = new ArrayDeque<>();
+
+    /**
+     * The exception thrown on the {@link #readAheadThread}, re-thrown to the consumer after all prior packets.
+     */
+    private volatile Throwable readAheadError;
+
+    private volatile boolean closed;
+
     /**
      * Creates a new replay input stream for reading raw packet data.
      * @param registry The registry used for the first packet produced.
      *                 Further packets may be using a registry for the same version but PLAY state instead.
      *                 Should generally start in LOGIN state, even if the file doesn't not include the LOGIN phase,
      *                 the ReplayInputStream will handle it.
-     * @param in The actual input stream.
+     * @param in The actual input stream. If this is a {@link MappedInputStream}, packets will share its memory.
      * @param fileFormatVersion The file format version of the replay packet data
      * @param fileProtocol The MC protocol version of the replay packet data
      */
     public ReplayInputStream(PacketTypeRegistry registry, InputStream in, int fileFormatVersion, int fileProtocol) throws IOException {
-        boolean includeLoginPhase = fileFormatVersion >= 14;
+        this(registry, in, fileFormatVersion, fileProtocol, fileFormatVersion >= 14);
+    }
+
+    /**
+     * Creates a new replay input stream for reading raw packet data which may not start at the beginning of the
+     * recording (e.g. when starting at a point of a {@link PacketIndex}).
+     * @param registry The registry used for the first packet produced, see
+     *                 {@link #ReplayInputStream(PacketTypeRegistry, InputStream, int, int)}
+     * @param in The actual input stream. If this is a {@link MappedInputStream}, packets will share its memory.
+     * @param fileFormatVersion The file format version of the replay packet data
+     * @param fileProtocol The MC protocol version of the replay packet data
+     * @param includeLoginPhase Whether the input starts with the login phase. If it does not, it must start at the
+     *                          beginning of a packet in the play phase.
+     */
+    public ReplayInputStream(PacketTypeRegistry registry, InputStream in, int fileFormatVersion, int fileProtocol, boolean includeLoginPhase) throws IOException {
+        this(registry, in, fileFormatVersion, fileProtocol, includeLoginPhase, null);
+    }
+
+    /**
+     * Creates a new replay input stream for reading only some types of packets from raw packet data.
+     * @param registry The registry used for the first packet produced, see
+     *                 {@link #ReplayInputStream(PacketTypeRegistry, InputStream, int, int)}
+     * @param in The actual input stream. If this is a {@link MappedInputStream}, packets will share its memory.
+     * @param fileFormatVersion The file format version of the replay packet data
+     * @param fileProtocol The MC protocol version of the replay packet data
+     * @param types The types of play phase packets to be returned, see {@link #types}
+     */
+    public ReplayInputStream(PacketTypeRegistry registry, InputStream in, int fileFormatVersion, int fileProtocol, EnumSet<PacketType> types) throws IOException {
+        this(registry, in, fileFormatVersion, fileProtocol, fileFormatVersion >= 14, types);
+    }
+
+    /**
+     * Creates a new replay input stream for reading raw packet data.
+     * @param registry The registry used for the first packet produced, see
+     *                 {@link #ReplayInputStream(PacketTypeRegistry, InputStream, int, int)}
+     * @param in The actual input stream. If this is a {@link MappedInputStream}, packets will share its memory.
+     * @param fileFormatVersion The file format version of the replay packet data
+     * @param fileProtocol The MC protocol version of the replay packet data
+     * @param includeLoginPhase Whether the input starts with the login phase, see
+     *                          {@link #ReplayInputStream(PacketTypeRegistry, InputStream, int, int, boolean)}
+     * @param types The types of play phase packets to be returned or {@code null} for all, see {@link #types}
+     */
+    public ReplayInputStream(PacketTypeRegistry registry, InputStream in, int fileFormatVersion, int fileProtocol, boolean includeLoginPhase, EnumSet<PacketType> types) throws IOException {
+        this.types = types == null ? null : EnumSet.copyOf(types);
         this.registry = registry;
         this.loginPhase = includeLoginPhase;
         this.outputLoginPhase = registry.getState() == State.LOGIN;
@@ -107,6 +212,7 @@ public class ReplayInputStream extends InputStream {
             this.registry = PacketTypeRegistry.get(registry.getVersion(), State.LOGIN);
         }
         this.in = in;
+        this.mappedIn = in instanceof MappedInputStream ? (MappedInputStream) in : null;
         this.viaVersionConverter = ViaVersionPacketConverter.createForFileVersion(fileFormatVersion, fileProtocol, registry.getVersion().getId());
     }
 
@@ -117,9 +223,41 @@ public class ReplayInputStream extends InputStream {
 
     @Override
     public void close() throws IOException {
+        closed = true;
+        if (readAheadThread != null) {
+            readAheadThread.interrupt();
+            boolean interrupted = false;
+            while (readAheadThread.isAlive()) {
+                // Make room in case it's waiting to hand over a batch
+                drainReadAhead();
+                try {
+                    readAheadThread.join(100);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            drainReadAhead();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (PacketData data : buffer) {
+            data.release();
+        }
+        buffer.clear();
+        viaVersionConverter.release();
         in.close();
     }
 
+    private void drainReadAhead() {
+        List<PacketData> batch;
+        while ((batch = readAheadQueue.poll()) != null) {
+            batch.forEach(PacketData::release);
+        }
+        readAheadBatch.forEach(PacketData::release);
+        readAheadBatch.clear();
+    }
+
     public PacketTypeRegistry getRegistry() {
         return registry;
     }
@@ -130,12 +268,35 @@ public class ReplayInputStream extends InputStream {
      * @throws IOException if an I/O error occurs.
      */
     public PacketData readPacket() throws IOException {
+        if (readAheadThread != null) {
+            return readAheadPacket();
+        }
         fillBuffer();
         return buffer.poll();
     }
 
-    private void fillBuffer() throws IOException {
-        while (buffer.isEmpty()) {
+    /**
+     * Reads the next packets from this input stream into the given batch, replacing its previous content.
+     * When the packets neither need to be converted nor are part of the login phase, they are copied from the input
+     * directly into the shared buffer of the batch without allocating any objects per packet. Otherwise they are
+     * read via {@link #readPacket()} and then copied into the batch.
+     * @param batch The batch
+     * @return The amount of packets read, {@code 0} only if the end of the stream has been reached
+     * @throws IOException if an I/O error occurs.
+     */
+    public int readBatch(PacketBatch batch) throws IOException {
+        batch.clear();
+        while (!batch.isFull()) {
+            if (readAheadThread != null || !buffer.isEmpty() || loginPhase || viaVersionConverter.isConverting()) {
+                PacketData data = readPacket();
+                if (data == null) {
+                    break;
+                }
+                batch.add(data.getTime(), data.getPacket());
+                data.release();
+                continue;
+            }
+
             int next = readInt(in);
             int length = readInt(in);
             if (next == -1 || length == -1) {
@@ -145,43 +306,298 @@ public class ReplayInputStream extends InputStream {
                 continue; // skip empty segments
             }
 
-            ByteBuf buf = ALLOC.buffer(length);
-            while (length > 0) {
-                int read = buf.writeBytes(in, length);
+            int packetId = readVarInt(in);
+            length -= varIntLength(packetId);
+            PacketType type = registry.getType(packetId);
+            if (type == PacketType.KeepAlive || types != null && !types.contains(type)) {
+                ByteStreams.skipFully(in, length);
+                continue;
+            }
+
+            ByteBuf buf = batch.getBuf();
+            int offset = buf.writerIndex();
+            buf.ensureWritable(length);
+            int remaining = length;
+            while (remaining > 0) {
+                int read = buf.writeBytes(in, remaining);
                 if (read == -1) {
                     throw new EOFException();
                 }
-                length -= read;
+                remaining -= read;
+            }
+            batch.add(next, registry, packetId, type, offset, length);
+        }
+        return batch.size();
+    }
+
+    /**
+     * Starts reading, decompressing, converting and decoding packets on a background thread with default batch size
+     * and capacity.
+     * @see #startReadAhead(int, int)
+     */
+    public void startReadAhead() {
+        startReadAhead(DEFAULT_READ_AHEAD_BATCH_SIZE, DEFAULT_READ_AHEAD_CAPACITY);
+    }
+
+    /**
+     * Starts reading, decompressing, converting and decoding packets on a background thread.
+     * The thread hands over packets to {@link #readPacket()} in batches and blocks when it is too far ahead.
+     * Exceptions thrown on the background thread are re-thrown by {@link #readPacket()} after all packets read
+     * before the exception have been returned.
+     * Once started, {@link #skipTo(long)} can no longer be used.
+     * @param batchSize Amount of packets handed over at once
+     * @param capacity Amount of batches which may be read ahead
+     */
+    public void startReadAhead(int batchSize, int capacity) {
+        if (readAheadThread != null) {
+            throw new IllegalStateException("Read-ahead already started");
+        }
+        readAheadQueue = new ArrayBlockingQueue<>(capacity);
+        readAheadThread = new Thread(() -> readAhead(batchSize), "ReplayInputStream read-ahead");
+        readAheadThread.setDaemon(true);
+        readAheadThread.start();
+    }
+
+    private void readAhead(int batchSize) {
+        List<PacketData> batch = new ArrayList<>(batchSize);
+        try {
+            while (!closed) {
+                fillBuffer();
+                if (buffer.isEmpty()) {
+                    break;
+                }
+                PacketData data;
+                while (batch.size() < batchSize && (data = buffer.poll()) != null) {
+                    batch.add(data);
+                }
+                if (batch.size() == batchSize) {
+                    readAheadQueue.put(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                readAheadQueue.put(batch);
             }
+        } catch (InterruptedException e) {
+            batch.forEach(PacketData::release);
+            return; // Stream has been closed
+        } catch (Throwable t) {
+            batch.forEach(PacketData::release);
+            readAheadError = t;
+        }
+        try {
+            readAheadQueue.put(END_OF_STREAM);
+        } catch (InterruptedException ignored) {
+        }
+    }
 
-            List<Packet> decoded = new LinkedList<>();
+    private PacketData readAheadPacket() throws IOException {
+        while (readAheadBatch.isEmpty()) {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            List<PacketData> batch;
             try {
-                for (ByteBuf packet : viaVersionConverter.convertPacket(buf, loginPhase ? State.LOGIN : State.PLAY)) {
-                    int packetId = new ByteBufNetInput(packet).readVarInt();
-                    decoded.add(new Packet(registry, packetId, registry.getType(packetId), packet));
+                batch = readAheadQueue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (batch == END_OF_STREAM) {
+                readAheadQueue.offer(END_OF_STREAM); // in case we get called again
+                Throwable error = readAheadError;
+                if (error != null) {
+                    throw error instanceof IOException ? (IOException) error : new IOException("read-ahead", error);
                 }
-            } catch (Exception e) {
-                throw e instanceof IOException ? (IOException) e : new IOException("decoding", e);
+                return null;
             }
-            buf.release();
+            readAheadBatch.addAll(batch);
+        }
+        return readAheadBatch.poll();
+    }
+
+    /**
+     * Returns whether packets read from this stream are converted from another protocol version.
+     * Skipping packets of a converted stream requires all of them to be decoded.
+     */
+    public boolean isConverting() {
+        return viaVersionConverter.isConverting();
+    }
 
-            for (Packet packet : decoded) {
-                PacketType type = packet.getType();
-                if (type == PacketType.KeepAlive) {
-                    packet.release();
-                    continue; // They aren't needed in a replay
+    /**
+     * Returns the amount of packets read so far which did not need to be converted.
+     * @see ViaVersionPacketConverter#getFastPathCount()
+     */
+    public long getFastPathCount() {
+        return viaVersionConverter.getFastPathCount();
+    }
+
+    /**
+     * Returns the amount of packets read so far which went through the ViaVersion conversion pipeline.
+     * @see ViaVersionPacketConverter#getFullPathCount()
+     */
+    public long getFullPathCount() {
+        return viaVersionConverter.getFullPathCount();
+    }
+
+    /**
+     * Skips all packets of the play phase which have a timestamp before the specified time.
+     * Packets of the login phase are never skipped.
+     * Where possible, skipped packets are neither decoded nor converted.
+     * @param time The timestamp in milliseconds of the first packet which should no longer be skipped
+     * @throws IOException if an I/O error occurs.
+     */
+    public void skipTo(long time) throws IOException {
+        if (readAheadThread != null) {
+            throw new IllegalStateException("Cannot skip once read-ahead has been started");
+        }
+        while (true) {
+            for (Iterator<PacketData> iter = buffer.iterator(); iter.hasNext(); ) {
+                PacketData data = iter.next();
+                if (data.getPacket().getRegistry().getState() == State.LOGIN) {
+                    continue;
                 }
+                if (data.getTime() >= time) {
+                    return;
+                }
+                iter.remove();
+                data.release();
+            }
 
-                if (type == PacketType.LoginSuccess) {
-                    loginPhase = false;
-                    registry = PacketTypeRegistry.get(registry.getVersion(), State.PLAY);
+            if (loginPhase || viaVersionConverter.isConverting()) {
+                // The converter is stateful and needs to see every packet
+                if (!readFrame()) {
+                    return;
                 }
-                if ((loginPhase || type == PacketType.LoginSuccess) && !outputLoginPhase) {
-                    packet.release();
-                    continue;
+                continue;
+            }
+
+            int next = readInt(in);
+            int length = readInt(in);
+            if (next == -1 || length == -1) {
+                return; // reached end of stream
+            }
+            if (next < time) {
+                ByteStreams.skipFully(in, length);
+            } else {
+                readFrame(next, length);
+            }
+        }
+    }
+
+    private void fillBuffer() throws IOException {
+        while (buffer.isEmpty()) {
+            if (!readFrame()) {
+                break;
+            }
+        }
+    }
+
+    private boolean readFrame() throws IOException {
+        int next = readInt(in);
+        int length = readInt(in);
+        if (next == -1 || length == -1) {
+            return false; // reached end of stream
+        }
+        readFrame(next, length);
+        return true;
+    }
+
+    private void readFrame(int next, int length) throws IOException {
+        if (length == 0) {
+            return; // skip empty segments
+        }
+
+        if (!loginPhase) {
+            // Packets which aren't converted are returned as is, so we can check the type before reading the rest
+            int packetId = readVarInt(in);
+            length -= varIntLength(packetId);
+            if (viaVersionConverter.passThrough(packetId, State.PLAY)) {
+                PacketType type = registry.getType(packetId);
+                if (type == PacketType.KeepAlive || types != null && !types.contains(type)) {
+                    ByteStreams.skipFully(in, length);
+                    return;
+                }
+                buffer.offer(new PacketData(next, new Packet(registry, packetId, type, readBuf(length))));
+                return;
+            }
+            ByteBuf buf = ALLOC.buffer(varIntLength(packetId) + length);
+            try {
+                new ByteBufNetOutput(buf).writeVarInt(packetId);
+                readBytes(buf, length);
+                convertFrame(next, buf);
+            } finally {
+                buf.release();
+            }
+            return;
+        }
+
+        ByteBuf buf = readBuf(length);
+        try {
+            convertFrame(next, buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    private void convertFrame(int next, ByteBuf buf) throws IOException {
+        List<ByteBuf> converted = viaVersionConverter.convertPacket(buf, loginPhase ? State.LOGIN : State.PLAY);
+        for (int i = 0; i < converted.size(); i++) {
+            ByteBuf convertedBuf = converted.get(i);
+            Packet packet;
+            try {
+                int packetId = new ByteBufNetInput(convertedBuf).readVarInt();
+                packet = new Packet(registry, packetId, registry.getType(packetId), convertedBuf);
+            } catch (Exception e) {
+                for (int j = i; j < converted.size(); j++) {
+                    converted.get(j).release();
                 }
-                buffer.offer(new PacketData(next, packet));
+                throw e instanceof IOException ? (IOException) e : new IOException("decoding", e);
+            }
+
+            PacketType type = packet.getType();
+            if (type == PacketType.KeepAlive) {
+                packet.release();
+                continue; // They aren't needed in a replay
+            }
+
+            if (type == PacketType.LoginSuccess) {
+                loginPhase = false;
+                registry = PacketTypeRegistry.get(registry.getVersion(), State.PLAY);
+            }
+            if ((loginPhase || type == PacketType.LoginSuccess) && !outputLoginPhase) {
+                packet.release();
+                continue;
+            }
+            if (types != null && packet.getRegistry().getState() != State.LOGIN && !types.contains(type)) {
+                packet.release();
+                continue;
+            }
+            buffer.offer(new PacketData(next, packet));
+        }
+    }
+
+    private ByteBuf readBuf(int length) throws IOException {
+        if (mappedIn != null) {
+            return mappedIn.readRetainedSlice(length);
+        }
+        ByteBuf buf = ALLOC.buffer(length);
+        try {
+            readBytes(buf, length);
+        } catch (IOException e) {
+            buf.release();
+            throw e;
+        }
+        return buf;
+    }
+
+    private void readBytes(ByteBuf buf, int length) throws IOException {
+        while (length > 0) {
+            int read = buf.writeBytes(in, length);
+            if (read == -1) {
+                throw new EOFException();
             }
+            length -= read;
         }
     }
 
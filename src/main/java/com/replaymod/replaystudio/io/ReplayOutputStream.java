@@ -39,10 +39,12 @@ import com.replaymod.replaystudio.replay.ReplayMetaData;
 import com.replaymod.replaystudio.studio.ReplayStudio;
 import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
 import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import com.replaymod.replaystudio.util.RawZipWriter;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -65,14 +67,26 @@ public class ReplayOutputStream extends OutputStream {
     /**
      * The actual output stream.
      * If we write to a ZIP output stream, this is the same as {@link #zipOut}.
+     * If we write via a {@link RawZipWriter}, this is the output stream of the current entry.
      */
-    private final OutputStream out;
+    private OutputStream out;
 
     /**
      * If we write to a ZIP output stream instead of just raw data, this holds a reference to that output stream.
      */
     private final ZipOutputStream zipOut;
 
+    /**
+     * If we compress entries on multiple threads, this holds a reference to the zip writer.
+     */
+    private final RawZipWriter rawZipOut;
+
+    /**
+     * Executor on which entries are compressed if {@link #rawZipOut} is used.
+     */
+    private final ExecutorService executor;
+    private final int threads;
+
     /**
      * Duration of the replay written. This gets updated with each packet and is afterwards used to set the
      * duration in the replay meta data.
@@ -89,6 +103,9 @@ public class ReplayOutputStream extends OutputStream {
     public ReplayOutputStream(OutputStream out) {
         this.out = out;
         this.zipOut = null;
+        this.rawZipOut = null;
+        this.executor = null;
+        this.threads = 0;
         this.metaData = null;
     }
 
@@ -101,6 +118,41 @@ public class ReplayOutputStream extends OutputStream {
      * @throws IOException If an exception occurred while writing the first entry to the zip output stream
      */
     public ReplayOutputStream(ProtocolVersion version, OutputStream out, ReplayMetaData metaData) throws IOException {
+        this.metaData = initMetaData(version, metaData);
+        this.rawZipOut = null;
+        this.executor = null;
+        this.threads = 0;
+
+        this.out = zipOut = new ZipOutputStream(out);
+
+        zipOut.putNextEntry(new ZipEntry("recording.tmcpr"));
+
+    }
+
+    /**
+     * Creates a new replay output stream which will write its packets and the specified meta data
+     * in a zip file according to the MCPR format.
+     * Entries are split into blocks which are compressed in parallel on the given executor.
+     *
+     * @param out The actual output stream
+     * @param metaData The meta data written to the output
+     * @param executor The executor on which data is compressed
+     * @param threads The number of threads of the executor
+     * @throws IOException If an exception occurred while writing the first entry to the zip output stream
+     * @see ParallelDeflaterOutputStream
+     */
+    public ReplayOutputStream(ProtocolVersion version, OutputStream out, ReplayMetaData metaData,
+                              ExecutorService executor, int threads) throws IOException {
+        this.metaData = initMetaData(version, metaData);
+        this.zipOut = null;
+        this.executor = executor;
+        this.threads = threads;
+
+        this.rawZipOut = new RawZipWriter(out);
+        this.out = rawZipOut.putNextEntry("recording.tmcpr", executor, threads);
+    }
+
+    private static ReplayMetaData initMetaData(ProtocolVersion version, ReplayMetaData metaData) {
         Studio studio = new ReplayStudio();
         if (metaData == null) {
             metaData = new ReplayMetaData();
@@ -112,12 +164,7 @@ public class ReplayOutputStream extends OutputStream {
         metaData.setFileFormatVersion(ReplayMetaData.CURRENT_FILE_FORMAT_VERSION);
         metaData.setProtocolVersion(version.getId());
         metaData.setGenerator("ReplayStudio v" + studio.getVersion());
-        this.metaData = metaData;
-
-        this.out = zipOut = new ZipOutputStream(out);
-
-        zipOut.putNextEntry(new ZipEntry("recording.tmcpr"));
-
+        return metaData;
     }
 
     @Override
@@ -125,6 +172,11 @@ public class ReplayOutputStream extends OutputStream {
         out.write(b);
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+    }
+
     /**
      * Writes the specified packet data to the underlying output stream.
      * @param data The packet data
@@ -169,7 +221,7 @@ public class ReplayOutputStream extends OutputStream {
             packet.getBuf().getBytes(packet.getBuf().readerIndex(), out, packetBufLen);
         } finally {
             packetIdBuf.release();
-            packet.getBuf().release();
+            packet.release();
         }
 
         if (packet.getType() == PacketType.LoginSuccess) {
@@ -186,6 +238,8 @@ public class ReplayOutputStream extends OutputStream {
         if (zipOut != null) {
             zipOut.closeEntry();
             zipOut.putNextEntry(new ZipEntry(name));
+        } else if (rawZipOut != null) {
+            out = rawZipOut.putNextEntry(name, executor, threads);
         } else {
             throw new UnsupportedOperationException("Cannot start new entry when writing raw replay output.");
         }
@@ -200,7 +254,14 @@ public class ReplayOutputStream extends OutputStream {
             zipOut.putNextEntry(new ZipEntry("metaData.json"));
             zipOut.write(GSON.toJson(metaData).getBytes());
             zipOut.closeEntry();
+            zipOut.close();
+        } else if (rawZipOut != null) {
+            metaData.setDuration(duration);
+            out = rawZipOut.putNextEntry("metaData.json");
+            out.write(GSON.toJson(metaData).getBytes());
+            rawZipOut.close();
+        } else {
+            out.close();
         }
-        out.close();
     }
 }
@@ -62,6 +62,17 @@ public class Launcher {
                 "to the specified output file. Note that the output file if raw packet data, not a zipped replay with meta data.");
         options.addOption("d", "daemon", true, "Runs replay studio as a daemon listening for requests. Pass in the amount" +
                 "of concurrent worker threads. The port of the daemon is defined by the environment variable 'replaystudio.port' (default 4002).");
+        options.addOption("t", "threads", true, "Amount of threads used to compress the output of stream and squash operations." +
+                " Defaults to 1 (compression on the main thread). For squash, also the amount of threads which squash" +
+                " separate time partitions of the replay in parallel. For upgrade, the amount of replays converted in parallel" +
+                " (defaults to the amount of processors).");
+        options.addOption("l", "pipeline", false, "Runs each filter of stream and squash operations on its own thread.");
+        options.addOption("u", "upgrade", true, "Converts all replays in the first folder to the given protocol version" +
+                " (e.g. 753 for 1.16.3) and saves them in the second folder. Replays which already are on that version" +
+                " are copied unchanged.");
+        options.addOption("k", "registry-cache", true, "Caches the packet id tables of all protocol versions in the" +
+                " given file, so they do not have to be computed again on the next run. Only use a file which no" +
+                " other user can write to.");
 
         CommandLineParser parser = new GnuParser();
         CommandLine cmd;
@@ -72,6 +83,11 @@ public class Launcher {
             throw new CriticalException(2);
         }
 
+        if (cmd.hasOption('k')) {
+            // Must happen before PacketTypeRegistry is first used
+            System.setProperty("replaystudio.registryCache", cmd.getOptionValue('k'));
+        }
+
         if (cmd.hasOption('h')) {
             HelpFormatter formatter = new HelpFormatter();
             String footer = "Output files can be suffixed with \"!<name>!<singleplayer>!<time>\"\n" +
@@ -97,6 +113,8 @@ public class Launcher {
             new ReverseLauncher().launch(cmd);
         } else if (cmd.hasOption('d')) {
             new DaemonLauncher().launch(cmd);
+        } else if (cmd.hasOption('u')) {
+            new UpgradeLauncher().launch(cmd);
         }
     }
 
@@ -24,25 +24,34 @@
  */
 package com.replaymod.replaystudio.launcher;
 
+import com.google.common.io.Closeables;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.replaymod.replaystudio.PacketData;
 import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.filter.PacketCountFilter;
 import com.replaymod.replaystudio.filter.StreamFilter;
+import com.replaymod.replaystudio.io.PacketBatch;
+import com.replaymod.replaystudio.io.ReplayInputStream;
 import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.protocol.PacketAccounting;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
-import com.replaymod.replaystudio.replay.ReplayFile;
 import com.replaymod.replaystudio.replay.ReplayMetaData;
 import com.replaymod.replaystudio.replay.ZipReplayFile;
 import com.replaymod.replaystudio.stream.PacketStream;
 import com.replaymod.replaystudio.studio.ReplayStudio;
+import com.replaymod.replaystudio.studio.StudioPacketStream;
 import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
 import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import com.replaymod.replaystudio.util.ParallelSquash;
 import org.apache.commons.cli.CommandLine;
 
 import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 
 import static java.lang.System.in;
 
@@ -60,6 +69,8 @@ public class StreamLauncher {
         } else {
             instructions = cmd.getOptionValue('s').split(",");
         }
+        // Leading packets which are removed entirely are skipped via the packet index instead of being read
+        long skipUntil = 0;
         for (String instruction : instructions) {
             long start, end;
             if (instruction.charAt(instruction.length()-1) == ')') {
@@ -80,6 +91,11 @@ public class StreamLauncher {
             } else {
                 config = new JsonObject();
             }
+            if (filters.isEmpty() && skipUntil == 0 && "remove".equals(instruction)
+                    && config.entrySet().isEmpty() && start == -1 && end != -1) {
+                skipUntil = end + 1;
+                continue;
+            }
             StreamFilter filter = studio.loadStreamFilter(instruction);
             if (filter == null) {
                 throw new IllegalStateException("Filter not found: " + instruction);
@@ -94,47 +110,134 @@ public class StreamLauncher {
         long start = System.nanoTime();
         System.out.println("Generating " + ("x".equals(output) ? 0 : 1) + " replay via 1 stream from 1 input applying " + filters.size() + " filter(s)");
 
-        ReplayFile inFile = new ZipReplayFile(studio, new File(input));
+        ZipReplayFile inFile = new ZipReplayFile(studio, new File(input));
         ReplayMetaData meta = inFile.getMetaData();
         ProtocolVersion inputVersion = meta.getProtocolVersion();
+        int threads = cmd.hasOption('t') ? Integer.parseInt(cmd.getOptionValue('t')) : 1;
+        ExecutorService executor = null;
         ReplayOutputStream out;
         if (!"x".equals(output)) {
             OutputStream buffOut = new BufferedOutputStream(new FileOutputStream(output));
-            out = new ReplayOutputStream(inputVersion, buffOut, null);
+            if (threads > 1) {
+                executor = Executors.newFixedThreadPool(threads);
+                out = new ReplayOutputStream(inputVersion, buffOut, null, executor, threads);
+            } else {
+                out = new ReplayOutputStream(inputVersion, buffOut, null);
+            }
         } else {
             out = null;
         }
-        PacketStream stream = inFile.getPacketData(PacketTypeRegistry.get(inputVersion, State.LOGIN)).asPacketStream();
 
-        // Process stream
-        stream.start();
-
-        stream.addFilter(new ProgressFilter(meta.getDuration()));
-        for (PacketStream.FilterInfo info : filters) {
-            stream.addFilter(info.getFilter(), info.getFrom(), info.getTo());
-        }
+        try {
+            if (cmd.hasOption('q') && threads > 1) {
+                System.out.println("Squashing time partitions in parallel using " + threads + " threads");
+                ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    new ParallelSquash(inFile, pool).squash(out != null ? out::write : PacketData::release);
+                } finally {
+                    pool.shutdown();
+                }
+                if (out != null) {
+                    out.close();
+                    out = null;
+                }
+                System.out.println("Done after " + (System.nanoTime() - start) + "ns");
+                if (PacketAccounting.isEnabled()) {
+                    System.out.println(PacketAccounting.getReport());
+                }
+                return;
+            }
 
-        System.out.println("Built pipeline: " + stream);
+            ReplayInputStream replayIn;
+            if (skipUntil > 0) {
+                // Login phase packets would have been removed as well
+                replayIn = inFile.getPacketData(PacketTypeRegistry.get(inputVersion, State.PLAY), skipUntil);
+            } else {
+                replayIn = inFile.getPacketData(PacketTypeRegistry.get(inputVersion, State.LOGIN));
+            }
 
-        PacketData data;
-        if (out != null) { // Write output
-            while ((data = stream.next()) != null) {
-                out.write(data);
+            if (out == null && !filters.isEmpty() && filters.stream().allMatch(info -> info.getFrom() == -1
+                    && info.getTo() == -1 && info.getFilter() instanceof PacketCountFilter)) {
+                // Only counting packets, no need to decode them
+                System.out.println("Counting packets in batches");
+                countPackets(replayIn, filters);
+                System.out.println("Done after " + (System.nanoTime() - start) + "ns");
+                return;
             }
 
-            for (PacketData d : stream.end()) {
-                out.write(d);
+            StudioPacketStream stream = new StudioPacketStream(replayIn);
+            stream.setPipelined(cmd.hasOption('l'));
+
+            // Process stream
+            stream.start();
+
+            stream.addFilter(new ProgressFilter(meta.getDuration()));
+            for (PacketStream.FilterInfo info : filters) {
+                stream.addFilter(info.getFilter(), info.getFrom(), info.getTo());
             }
 
-            out.close();
-        } else { // Drop output
-            while (stream.next() != null);
-            stream.end();
+            System.out.println("Built pipeline: " + stream);
+
+            PacketData data;
+            if (out != null) { // Write output
+                while ((data = stream.next()) != null) {
+                    out.write(data);
+                }
+
+                for (PacketData d : stream.end()) {
+                    out.write(d);
+                }
+
+                out.close();
+                out = null;
+            } else { // Drop output
+                while ((data = stream.next()) != null) {
+                    data.release();
+                }
+                for (PacketData d : stream.end()) {
+                    d.release();
+                }
+            }
+        } finally {
+            try {
+                // Only still open if processing failed, so that failure is what should be reported
+                Closeables.close(out, true);
+            } finally {
+                if (executor != null) {
+                    // Its threads would otherwise keep the JVM alive
+                    executor.shutdown();
+                }
+            }
         }
 
         in.close();
 
         System.out.println("Done after " + (System.nanoTime() - start) + "ns");
+
+        if (PacketAccounting.isEnabled()) {
+            System.out.println(PacketAccounting.getReport());
+        }
+    }
+
+    private void countPackets(ReplayInputStream replayIn, List<PacketStream.FilterInfo> filters) throws IOException {
+        PacketBatch batch = new PacketBatch();
+        try (ReplayInputStream in = replayIn) {
+            for (PacketStream.FilterInfo info : filters) {
+                info.getFilter().onStart(null);
+            }
+            long lastTimestamp = 0;
+            while (in.readBatch(batch) > 0) {
+                for (PacketStream.FilterInfo info : filters) {
+                    ((PacketCountFilter) info.getFilter()).onBatch(batch);
+                }
+                lastTimestamp = batch.getTime(batch.size() - 1);
+            }
+            for (PacketStream.FilterInfo info : filters) {
+                info.getFilter().onEnd(null, lastTimestamp);
+            }
+        } finally {
+            batch.release();
+        }
     }
 
     private long timeStampToMillis(String string) {
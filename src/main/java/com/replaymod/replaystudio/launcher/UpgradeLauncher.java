@@ -0,0 +1,196 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.launcher;
+
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.protocol.PacketAccounting;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.replay.ReplayMetaData;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import org.apache.commons.cli.CommandLine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Launcher which converts all replays in a folder to another protocol version in parallel and writes the results
+ * to another folder. Each replay is converted on a single thread with its own ViaVersion converter.
+ * Replays which already are on the target version are copied to the output folder as is.
+ */
+public class UpgradeLauncher {
+
+    private final Studio studio = new ReplayStudio();
+
+    private final AtomicInteger upgraded = new AtomicInteger();
+    private final AtomicInteger upToDate = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    public void launch(CommandLine cmd) throws Exception {
+        int protocol;
+        try {
+            protocol = Integer.parseInt(cmd.getOptionValue('u'));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid protocol version: " + cmd.getOptionValue('u'));
+        }
+        // getProtocol would silently return an unknown version which every replay then fails to convert to
+        if (!ProtocolVersion.isRegistered(protocol)) {
+            throw new IllegalArgumentException("Unknown protocol version: " + protocol);
+        }
+        ProtocolVersion target = ProtocolVersion.getProtocol(protocol);
+        File inputDir = new File(cmd.getArgs()[0]);
+        File outputDir = new File(cmd.getArgs()[1]);
+        int threads = cmd.hasOption('t') ? Integer.parseInt(cmd.getOptionValue('t')) : Runtime.getRuntime().availableProcessors();
+
+        File[] files = inputDir.listFiles((dir, name) -> name.endsWith(".mcpr"));
+        if (files == null) {
+            throw new IOException("Input is not a directory: " + inputDir);
+        }
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Could not create output directory: " + outputDir);
+        }
+        // Largest replays first, so we don't end up waiting for a single large one which happened to be started last
+        Arrays.sort(files, Comparator.comparingLong(File::length).reversed());
+
+        System.out.println("Upgrading " + files.length + " replay(s) to " + target + " using " + threads + " thread(s)");
+        long start = System.nanoTime();
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (File file : files) {
+                tasks.add(pool.submit(() -> upgrade(file, new File(outputDir, file.getName()), target)));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        long time = System.nanoTime() - start;
+        double seconds = time / 1e9;
+        System.out.println("Upgraded " + upgraded + ", already up to date " + upToDate + ", failed " + failed);
+        System.out.println(String.format("Converted %d packets from %.1f MB in %.1fs (%.0f packets/s, %.1f MB/s)",
+                packets.get(), bytes.get() / 1e6, seconds, packets.get() / seconds, bytes.get() / 1e6 / seconds));
+        System.out.println("Done after " + time + "ns");
+
+        if (PacketAccounting.isEnabled()) {
+            System.out.println(PacketAccounting.getReport());
+        }
+    }
+
+    private void upgrade(File input, File output, ProtocolVersion target) {
+        Path cache = null;
+        try {
+            // The cache (e.g. the packet index) is of no use after the upgrade, so don't leave it next to the output
+            cache = Files.createTempDirectory("replaystudio-upgrade");
+            ZipReplayFile replayFile = new ZipReplayFile(studio, input, output, cache.toFile());
+            try {
+                ReplayMetaData metaData = replayFile.getMetaData();
+                if (metaData.getProtocolVersion().equals(target)) {
+                    if (!input.getCanonicalFile().equals(output.getCanonicalFile())) {
+                        Files.copy(input.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    upToDate.incrementAndGet();
+                    return;
+                }
+                if (!studio.isCompatible(metaData.getFileFormatVersion(), metaData.getRawProtocolVersionOr0(), target.getId())) {
+                    throw new IOException("Cannot convert from " + metaData.getProtocolVersion());
+                }
+
+                PacketTypeRegistry registry = PacketTypeRegistry.get(target, State.LOGIN);
+                long count = 0;
+                try (ReplayInputStream in = replayFile.getPacketData(registry);
+                     ReplayOutputStream out = replayFile.writePacketData()) {
+                    PacketData data;
+                    while ((data = in.readPacket()) != null) {
+                        out.write(data);
+                        count++;
+                    }
+                }
+                replayFile.writeMetaData(registry, metaData);
+                replayFile.save();
+
+                packets.addAndGet(count);
+                bytes.addAndGet(input.length());
+                upgraded.incrementAndGet();
+            } finally {
+                replayFile.close();
+            }
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            synchronized (System.err) {
+                System.err.println("Failed to upgrade " + input + ":");
+                e.printStackTrace();
+            }
+        } finally {
+            if (cache != null) {
+                deleteRecursively(cache);
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path path) {
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Failed to delete temporary cache " + path + ": " + e);
+        }
+    }
+}
@@ -25,7 +25,10 @@
 package com.replaymod.replaystudio.protocol;
 
 import com.github.steveice10.netty.buffer.ByteBuf;
-import com.github.steveice10.netty.buffer.Unpooled;
+import com.github.steveice10.netty.buffer.ByteBufAllocator;
+import com.github.steveice10.netty.buffer.ByteBufInputStream;
+import com.github.steveice10.netty.buffer.ByteBufOutputStream;
+import com.github.steveice10.netty.buffer.PooledByteBufAllocator;
 import com.github.steveice10.opennbt.NBTIO;
 import com.github.steveice10.opennbt.tag.builtin.CompoundTag;
 import com.github.steveice10.packetlib.io.NetInput;
@@ -37,6 +40,8 @@ import com.replaymod.replaystudio.util.IPosition;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -45,17 +50,51 @@ import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 public class Packet {
+    private static volatile ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+
+    /**
+     * Returns the allocator used for the buffers of newly created packets.
+     * Defaults to the pooled allocator (same as used by the replay input stream).
+     * @return The allocator
+     */
+    public static ByteBufAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * Sets the allocator used for the buffers of packets created via {@link #Packet(PacketTypeRegistry, PacketType)}.
+     * Note that with a pooled allocator, a packet which is not {@link #release() released} leaks its buffer. Set
+     * {@code -Dio.netty.leakDetection.level=paranoid} to find such packets.
+     * @param allocator The allocator
+     */
+    public static void setAllocator(ByteBufAllocator allocator) {
+        Packet.allocator = Objects.requireNonNull(allocator, "allocator");
+    }
+
     private final PacketTypeRegistry registry;
     private final int id;
     private final PacketType type;
     private final ByteBuf buf;
+    private final PacketAccounting.Record record;
 
     public Packet(PacketTypeRegistry registry, PacketType type) {
-        this(registry, type, Unpooled.buffer());
+        this(registry, type, allocator);
+    }
+
+    public Packet(PacketTypeRegistry registry, PacketType type, ByteBufAllocator allocator) {
+        this(registry, type, allocator.buffer());
     }
 
     public Packet(PacketTypeRegistry registry, PacketType type, ByteBuf buf) {
-        this(registry, registry.getId(type), type, buf);
+        this(registry, getId(registry, type), type, buf);
+    }
+
+    private static int getId(PacketTypeRegistry registry, PacketType type) {
+        int id = registry.getIdOrMinusOne(type);
+        if (id == -1) {
+            throw new IllegalArgumentException(type + " does not exist in " + registry.getVersion() + " " + registry.getState());
+        }
+        return id;
     }
 
     public Packet(PacketTypeRegistry registry, int packetId, ByteBuf buf) {
@@ -67,6 +106,7 @@ public class Packet {
         this.id = id;
         this.type = type;
         this.buf = buf;
+        this.record = PacketAccounting.track(type, buf);
     }
 
     public PacketTypeRegistry getRegistry() {
@@ -91,6 +131,9 @@ public class Packet {
 
     public Packet retain() {
         buf.retain();
+        if (record != null) {
+            record.retain();
+        }
         return this;
     }
 
@@ -99,6 +142,9 @@ public class Packet {
     }
 
     public boolean release() {
+        if (record != null) {
+            record.release();
+        }
         return buf.release();
     }
 
@@ -156,18 +202,32 @@ public class Packet {
         }
 
         public static IPosition readPosition(PacketTypeRegistry registry, NetInput in) throws IOException {
-            long val = in.readLong();
-            long x, y, z;
+            return IPosition.unpack(readPackedPosition(registry, in));
+        }
+
+        /**
+         * Reads a block position without allocating an {@link IPosition}.
+         * @return The position packed as per {@link IPosition#pack(int, int, int)}
+         */
+        public long readPackedPosition() throws IOException {
+            return readPackedPosition(packet.registry, this);
+        }
+
+        public static long readPackedPosition(PacketTypeRegistry registry, NetInput in) throws IOException {
+            return fromWirePosition(registry, in.readLong());
+        }
+
+        /**
+         * Converts a block position in the format used on the wire by the given version into a packed position.
+         * @param val The position as read from the packet
+         * @return The position packed as per {@link IPosition#pack(int, int, int)}
+         */
+        public static long fromWirePosition(PacketTypeRegistry registry, long val) {
             if (registry.atLeast(ProtocolVersion.v1_14)) {
-                x = val >> 38;
-                y = val;
-                z = val >> 12;
+                return val; // same layout
             } else {
-                x = val >> 38;
-                y = val >> 26;
-                z = val;
+                return IPosition.pack((int) (val >> 38), (int) (val >> 26), (int) (val << 38 >> 38));
             }
-            return new IPosition((int) (x << 38 >> 38), (int) (y & 0xfff), (int) (z << 38 >> 38));
         }
 
         public CompoundTag readNBT() throws IOException {
@@ -176,6 +236,15 @@ public class Packet {
 
         public static CompoundTag readNBT(PacketTypeRegistry registry, NetInput in) throws IOException {
             if (registry.atLeast(ProtocolVersion.v1_8)) {
+                if (in instanceof Reader) {
+                    // Read directly from the buffer instead of byte by byte through the NetInput
+                    ByteBuf buf = ((Reader) in).buf;
+                    if (buf.getByte(buf.readerIndex()) == 0) {
+                        buf.skipBytes(1);
+                        return null;
+                    }
+                    return (CompoundTag) NBTIO.readTag((DataInput) new ByteBufInputStream(buf));
+                }
                 byte b = in.readByte();
                 if (b == 0) {
                     return null;
@@ -207,10 +276,12 @@ public class Packet {
 
     public static class Writer extends ByteBufNetOutput implements AutoCloseable {
         private final Packet packet;
+        private final ByteBuf buf;
 
         private Writer(Packet packet, ByteBuf buf) {
             super(buf);
             this.packet = packet;
+            this.buf = buf;
         }
 
         @Override
@@ -222,12 +293,24 @@ public class Packet {
         }
 
         public static void writePosition(PacketTypeRegistry registry, NetOutput out, IPosition pos) throws IOException {
-            long x = pos.getX() & 0x3ffffff;
-            long y = pos.getY() & 0xfff;
-            long z = pos.getZ() & 0x3ffffff;
+            writePackedPosition(registry, out, pos.pack());
+        }
+
+        /**
+         * Writes a block position without requiring an {@link IPosition}.
+         * @param packed The position packed as per {@link IPosition#pack(int, int, int)}
+         */
+        public void writePackedPosition(long packed) throws IOException {
+            writePackedPosition(packet.registry, this, packed);
+        }
+
+        public static void writePackedPosition(PacketTypeRegistry registry, NetOutput out, long packed) throws IOException {
             if (registry.atLeast(ProtocolVersion.v1_14)) {
-                out.writeLong(x << 38 | z << 12 | y);
+                out.writeLong(packed); // same layout
             } else {
+                long x = IPosition.unpackX(packed) & 0x3ffffff;
+                long y = IPosition.unpackY(packed);
+                long z = IPosition.unpackZ(packed) & 0x3ffffff;
                 out.writeLong(x << 38 | y << 26 | z);
             }
         }
@@ -240,6 +323,9 @@ public class Packet {
             if (registry.atLeast(ProtocolVersion.v1_8)) {
                 if(tag == null) {
                     out.writeByte(0);
+                } else if (out instanceof Writer) {
+                    // Write directly into the buffer instead of byte by byte through the NetOutput
+                    NBTIO.writeTag((DataOutput) new ByteBufOutputStream(((Writer) out).buf), tag);
                 } else {
                     NBTIO.writeTag(new OutputStream() {
                         @Override
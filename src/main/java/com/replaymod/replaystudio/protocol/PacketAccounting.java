@@ -0,0 +1,195 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.protocol;
+
+import com.github.steveice10.netty.buffer.ByteBuf;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opt-in accounting of outstanding {@link Packet} buffers.
+ * When enabled (either via {@link #setEnabled(boolean)} or by setting the {@code replaystudio.packetAccounting}
+ * system property to {@code true}), every packet created from then on is tracked together with the site it was
+ * created at until it has been released as often as it has been retained.
+ * This is fairly expensive (a stack trace is captured for every packet) and therefore disabled by default.
+ */
+public final class PacketAccounting {
+    private static final String PACKAGE = PacketAccounting.class.getPackage().getName() + ".";
+    private static final Set<Record> live = ConcurrentHashMap.newKeySet();
+    private static volatile boolean enabled = Boolean.getBoolean("replaystudio.packetAccounting");
+
+    private PacketAccounting() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables accounting for packets created after this call.
+     * Packets which are already being tracked remain tracked.
+     * @param enabled Whether to track new packets
+     */
+    public static void setEnabled(boolean enabled) {
+        PacketAccounting.enabled = enabled;
+    }
+
+    /**
+     * Stops tracking all currently live packets.
+     */
+    public static void reset() {
+        live.clear();
+    }
+
+    /**
+     * @return Number of tracked packets which have not yet been released
+     */
+    public static int getLiveCount() {
+        return live.size();
+    }
+
+    /**
+     * Returns count and size of all tracked packets which have not yet been released, grouped by their type.
+     * @return Map from packet type to statistics
+     */
+    public static Map<PacketType, Stats> getLiveByType() {
+        Map<PacketType, Stats> result = new EnumMap<>(PacketType.class);
+        for (Record record : live) {
+            result.computeIfAbsent(record.type, k -> new Stats()).add(record);
+        }
+        return result;
+    }
+
+    /**
+     * Returns count and size of all tracked packets which have not yet been released, grouped by the site (first
+     * stack frame outside of the protocol package) which created them.
+     * @return Map from creation site to statistics
+     */
+    public static Map<String, Stats> getLiveBySite() {
+        Map<String, Stats> result = new HashMap<>();
+        for (Record record : live) {
+            result.computeIfAbsent(record.site, k -> new Stats()).add(record);
+        }
+        return result;
+    }
+
+    /**
+     * Throws an exception listing all live packets if any tracked packet has not yet been released.
+     * @throws IllegalStateException if there are live packets
+     */
+    public static void checkNoLeaks() {
+        if (!live.isEmpty()) {
+            throw new IllegalStateException(getReport());
+        }
+    }
+
+    /**
+     * @return Human readable summary of all live packets by type and by creation site
+     */
+    public static String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(live.size()).append(" live packet(s)");
+        appendStats(sb, "by type", getLiveByType());
+        appendStats(sb, "by creation site", getLiveBySite());
+        return sb.toString();
+    }
+
+    private static void appendStats(StringBuilder sb, String title, Map<?, Stats> stats) {
+        if (stats.isEmpty()) {
+            return;
+        }
+        sb.append("\n ").append(title).append(':');
+        stats.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<?, Stats> e) -> e.getValue().bytes).reversed())
+                .forEach(e -> sb.append("\n  ").append(e.getKey())
+                        .append(": ").append(e.getValue().count).append(" packet(s), ")
+                        .append(e.getValue().bytes).append(" byte(s)"));
+    }
+
+    static Record track(PacketType type, ByteBuf buf) {
+        if (!enabled) {
+            return null;
+        }
+        Record record = new Record(type, buf, findSite());
+        live.add(record);
+        return record;
+    }
+
+    private static String findSite() {
+        for (StackTraceElement element : new Throwable().getStackTrace()) {
+            if (!element.getClassName().startsWith(PACKAGE)) {
+                return element.toString();
+            }
+        }
+        return "unknown";
+    }
+
+    static final class Record {
+        private final PacketType type;
+        private final ByteBuf buf;
+        private final String site;
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private Record(PacketType type, ByteBuf buf, String site) {
+            this.type = type;
+            this.buf = buf;
+            this.site = site;
+        }
+
+        void retain() {
+            refs.incrementAndGet();
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0) {
+                live.remove(this);
+            }
+        }
+    }
+
+    public static final class Stats {
+        private int count;
+        private long bytes;
+
+        private void add(Record record) {
+            count++;
+            bytes += record.buf.capacity();
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+    }
+}
@@ -35,48 +35,132 @@ import com.replaymod.replaystudio.us.myles.ViaVersion.protocols.protocol1_16to1_
 import com.replaymod.replaystudio.us.myles.ViaVersion.protocols.protocol1_9to1_8.Protocol1_9To1_8;
 import com.replaymod.replaystudio.viaversion.CustomViaManager;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
 
 public class PacketTypeRegistry {
-    private static Map<ProtocolVersion, EnumMap<State, PacketTypeRegistry>> forVersionAndState = new HashMap<>();
+    /**
+     * File in which id mappings are cached across runs, {@code null} if caching is disabled.
+     * Set via the {@code replaystudio.registryCache} system property.
+     */
+    private static final File CACHE_FILE = System.getProperty("replaystudio.registryCache") != null
+            ? new File(System.getProperty("replaystudio.registryCache")) : null;
+    private static final int CACHE_VERSION = 2;
+
+    private static final Map<ProtocolVersion, EnumMap<State, PacketTypeRegistry>> forVersionAndState = new ConcurrentHashMap<>();
     private static Field outgoing;
 
-    static {
-        CustomViaManager.initialize();
-        for (ProtocolVersion version : ProtocolVersion.getProtocols()) {
-            if (ProtocolVersion.getIndex(version) < ProtocolVersion.getIndex(ProtocolVersion.v1_7_1)) {
-                continue;
-            }
-            EnumMap<State, PacketTypeRegistry> forState = new EnumMap<>(State.class);
-            for (State state : State.values()) {
-                forState.put(state, new PacketTypeRegistry(version, state));
-            }
-            forVersionAndState.put(version, forState);
+    /**
+     * Cached ids indexed by protocol version id, state and packet type ordinal. Loaded on first use.
+     */
+    private static Map<Integer, EnumMap<State, int[]>> cachedIds;
+
+    public static PacketTypeRegistry get(ProtocolVersion version, State state) {
+        EnumMap<State, PacketTypeRegistry> forState = forVersionAndState.get(version);
+        if (forState == null) {
+            forState = load(version);
         }
+        return forState.get(state);
     }
 
-    public static PacketTypeRegistry get(ProtocolVersion version, State state) {
+    private static synchronized EnumMap<State, PacketTypeRegistry> load(ProtocolVersion version) {
         EnumMap<State, PacketTypeRegistry> forState = forVersionAndState.get(version);
-        return forState != null ? forState.get(state) : new PacketTypeRegistry(version, state);
+        if (forState != null) {
+            return forState;
+        }
+
+        if (cachedIds == null) {
+            cachedIds = readCache();
+        }
+        EnumMap<State, int[]> ids = cachedIds.get(version.getId());
+        if (ids == null) {
+            ids = new EnumMap<>(State.class);
+            for (State state : State.values()) {
+                ids.put(state, computeIds(version, state));
+            }
+            cachedIds.put(version.getId(), ids);
+            writeCache(cachedIds);
+        }
+
+        forState = new EnumMap<>(State.class);
+        for (State state : State.values()) {
+            forState.put(state, new PacketTypeRegistry(version, state, ids.get(state)));
+        }
+        forVersionAndState.put(version, forState);
+        return forState;
     }
 
     private final ProtocolVersion version;
     private final State state;
     private final PacketType unknown;
-    private final Map<Integer, PacketType> typeForId = new HashMap<>();
-    private final Map<PacketType, Integer> idForType = new HashMap<>();
+    /**
+     * Packet types indexed by their id, {@code null} where there is no known type for an id.
+     */
+    private final PacketType[] typeForId;
+    /**
+     * Packet ids indexed by the {@link PacketType#ordinal()} of their type, {@code -1} where the type does not exist.
+     */
+    private final int[] idForType;
 
-    private PacketTypeRegistry(ProtocolVersion version, State state) {
+    private PacketTypeRegistry(ProtocolVersion version, State state, int[] idForType) {
         this.version = version;
         this.state = state;
+        this.idForType = idForType;
 
         PacketType unknown = null;
+        PacketType[] typeForId = new PacketType[0];
+        for (PacketType packetType : PacketType.values()) {
+            if (packetType.getState() == state && packetType.isUnknown()) {
+                unknown = packetType; // "unknown" type exists for all versions
+            }
+            int id = idForType[packetType.ordinal()];
+            if (id == -1) {
+                continue;
+            }
+            if (id >= typeForId.length) {
+                typeForId = Arrays.copyOf(typeForId, id + 1);
+            }
+            typeForId[id] = packetType;
+        }
+        this.unknown = unknown;
+        this.typeForId = typeForId;
+    }
+
+    /**
+     * Computes the ids of all packet types in the given version and state by walking the ViaVersion protocols
+     * between the version in which each packet type was introduced and the given version.
+     * @return Packet ids indexed by packet type ordinal, {@code -1} for types which do not exist
+     */
+    private static int[] computeIds(ProtocolVersion version, State state) {
+        CustomViaManager.initialize();
+
+        int[] idForType = new int[PacketType.values().length];
+        Arrays.fill(idForType, -1);
         int versionIndex = ProtocolVersion.getIndex(version);
         packets: for (PacketType packetType : PacketType.values()) {
             if (packetType.getState() != state) {
@@ -84,7 +168,6 @@ public class PacketTypeRegistry {
             }
 
             if (packetType.isUnknown()) {
-                unknown = packetType;
                 continue; // "unknown" type exists for all versions
             }
 
@@ -140,10 +223,9 @@ public class PacketTypeRegistry {
                 }
             }
 
-            typeForId.put(id, packetType);
-            idForType.put(packetType, id);
+            idForType[packetType.ordinal()] = id;
         }
-        this.unknown = unknown;
+        return idForType;
     }
 
     private static List<Pair<Integer, Protocol>> getProtocolPath(int clientVersion, int serverVersion) {
@@ -170,12 +252,31 @@ public class PacketTypeRegistry {
         return state;
     }
 
+    /**
+     * @param type The packet type
+     * @return The id of the packet type or {@code null} if it does not exist in this version and state
+     * @see #getIdOrMinusOne(PacketType)
+     */
     public Integer getId(PacketType type) {
-        return idForType.get(type);
+        int id = idForType[type.ordinal()];
+        return id == -1 ? null : id;
+    }
+
+    /**
+     * Same as {@link #getId(PacketType)} but without boxing.
+     * @param type The packet type
+     * @return The id of the packet type or {@code -1} if it does not exist in this version and state
+     */
+    public int getIdOrMinusOne(PacketType type) {
+        return idForType[type.ordinal()];
     }
 
     public PacketType getType(int id) {
-        return typeForId.getOrDefault(id, unknown);
+        if (id < 0 || id >= typeForId.length) {
+            return unknown;
+        }
+        PacketType type = typeForId[id];
+        return type != null ? type : unknown;
     }
 
     public boolean atLeast(ProtocolVersion protocolVersion) {
@@ -206,4 +307,138 @@ public class PacketTypeRegistry {
         }
         return result;
     }
+
+    /**
+     * Computes a fingerprint of everything the cached ids depend on: the packet types, the known protocol versions
+     * and the versions of ReplayStudio and ViaVersion.
+     */
+    private static long getCacheFingerprint() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(getVersion(PacketTypeRegistry.class)).append(';');
+        sb.append(getVersion(Protocol.class)).append(';');
+        for (PacketType type : PacketType.values()) {
+            sb.append(type.name()).append(',').append(type.getState()).append(',')
+                    .append(type.getInitialVersion().getId()).append(',').append(type.getInitialId()).append(';');
+        }
+        for (ProtocolVersion version : ProtocolVersion.getProtocols()) {
+            sb.append(version.getId()).append(';');
+        }
+        CRC32 crc = new CRC32();
+        crc.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    /**
+     * Returns the implementation version of the jar containing the given class.
+     * Without a version in the manifest (e.g. when running from a development environment), falls back to the
+     * location and modification time of the jar or directory containing the class, so the cache is at worst
+     * invalidated too often.
+     */
+    private static String getVersion(Class<?> cls) {
+        Package pkg = cls.getPackage();
+        String version = pkg != null ? pkg.getImplementationVersion() : null;
+        if (version != null) {
+            return version;
+        }
+        CodeSource source = cls.getProtectionDomain().getCodeSource();
+        if (source == null || source.getLocation() == null) {
+            return "unknown";
+        }
+        URL location = source.getLocation();
+        try {
+            return location + "@" + new File(location.toURI()).lastModified();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return location.toString();
+        }
+    }
+
+    private static Map<Integer, EnumMap<State, int[]>> readCache() {
+        Map<Integer, EnumMap<State, int[]>> result = new HashMap<>();
+        if (CACHE_FILE == null || !CACHE_FILE.exists()) {
+            return result;
+        }
+        try (DataInputStream fileIn = new DataInputStream(new BufferedInputStream(new FileInputStream(CACHE_FILE)))) {
+            if (fileIn.readInt() != CACHE_VERSION || fileIn.readLong() != getCacheFingerprint()) {
+                return result; // outdated, will be overwritten
+            }
+            int length = fileIn.readInt();
+            if (length < 0 || length > CACHE_FILE.length()) {
+                return result; // corrupted, will be overwritten
+            }
+            byte[] payload = new byte[length];
+            fileIn.readFully(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if (fileIn.readLong() != crc.getValue()) {
+                return result; // corrupted, will be overwritten
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            PacketType[] types = PacketType.values();
+            int versions = in.readInt();
+            for (int i = 0; i < versions; i++) {
+                int versionId = in.readInt();
+                EnumMap<State, int[]> forState = new EnumMap<>(State.class);
+                for (State state : State.values()) {
+                    int[] ids = new int[types.length];
+                    for (int j = 0; j < ids.length; j++) {
+                        ids[j] = in.readShort();
+                    }
+                    forState.put(state, ids);
+                }
+                result.put(versionId, forState);
+            }
+        } catch (IOException e) {
+            result.clear(); // corrupted, will be overwritten
+        }
+        return result;
+    }
+
+    private static void writeCache(Map<Integer, EnumMap<State, int[]>> ids) {
+        if (CACHE_FILE == null) {
+            return;
+        }
+        Path target = CACHE_FILE.getAbsoluteFile().toPath();
+        Path tmpFile = null;
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(payload)) {
+                out.writeInt(ids.size());
+                for (Map.Entry<Integer, EnumMap<State, int[]>> entry : ids.entrySet()) {
+                    out.writeInt(entry.getKey());
+                    for (State state : State.values()) {
+                        for (int id : entry.getValue().get(state)) {
+                            out.writeShort(id);
+                        }
+                    }
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(payload.toByteArray());
+
+            // Unique name in the same directory, so concurrent writers don't interfere and the move can be atomic
+            Files.createDirectories(target.getParent());
+            tmpFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpFile)))) {
+                out.writeInt(CACHE_VERSION);
+                out.writeLong(getCacheFingerprint());
+                out.writeInt(payload.size());
+                payload.writeTo(out);
+                out.writeLong(crc.getValue());
+            }
+            try {
+                Files.move(tmpFile, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ignored) {
+            // The cache is only an optimization, we'll just have to compute the ids again next time
+            if (tmpFile != null) {
+                try {
+                    Files.deleteIfExists(tmpFile);
+                } catch (IOException e) {
+                    // Nothing we can do about it
+                }
+            }
+        }
+    }
 }
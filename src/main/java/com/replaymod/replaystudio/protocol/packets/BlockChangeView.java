@@ -0,0 +1,148 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.protocol.packets;
+
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.util.IPosition;
+
+import java.io.IOException;
+
+/**
+ * Flyweight view of the records in a BlockChange or MultiBlockChange packet.
+ * Unlike {@link PacketBlockChange#readSingleOrBulk(Packet)}, records are read one at a time straight from the
+ * packet buffer without allocating any objects. A single instance can be re-used for any number of packets:
+ * <pre>
+ * view.wrap(packet);
+ * while (view.next()) {
+ *     ... view.getX(), view.getY(), view.getZ(), view.getId() ...
+ * }
+ * </pre>
+ */
+public class BlockChangeView extends PacketView {
+    private boolean bulk;
+    private int remaining;
+    private int chunkX, chunkY, chunkZ;
+    private int x, y, z;
+    private int id;
+
+    /**
+     * Points this view at the given packet. Call {@link #next()} to move to its first record.
+     * @param packet BlockChange or MultiBlockChange packet, must not be released while this view is in use
+     * @return this view
+     */
+    public BlockChangeView wrap(Packet packet) throws IOException {
+        reset(packet);
+        if (packet.getType() == PacketType.BlockChange) {
+            bulk = false;
+            remaining = 1;
+            return this;
+        }
+        if (packet.getType() != PacketType.MultiBlockChange) {
+            throw new IllegalArgumentException("Can only read packets of type BlockChange or MultiBlockChange.");
+        }
+        bulk = true;
+        if (atLeast(ProtocolVersion.v1_16_2)) {
+            long coord = readLong();
+            chunkX = (int) (coord >> 42);
+            chunkY = (int) (coord << 44 >> 44);
+            chunkZ = (int) (coord << 22 >> 42);
+            readBoolean(); // we don't care about "skip light updates"
+        } else {
+            chunkX = readInt();
+            chunkY = 0;
+            chunkZ = readInt();
+        }
+        if (atLeast(ProtocolVersion.v1_8)) {
+            remaining = readVarInt();
+        } else {
+            remaining = readShort();
+            readInt(); // Unneeded size variable
+        }
+        return this;
+    }
+
+    /**
+     * Moves to the next record.
+     * @return {@code true} if there was another record, {@code false} if all records have been read
+     */
+    public boolean next() throws IOException {
+        if (remaining <= 0) {
+            return false;
+        }
+        remaining--;
+        if (!bulk) {
+            if (atLeast(ProtocolVersion.v1_8)) {
+                long pos = Packet.Reader.fromWirePosition(registry, readLong());
+                x = IPosition.unpackX(pos);
+                y = IPosition.unpackY(pos);
+                z = IPosition.unpackZ(pos);
+                id = readVarInt();
+            } else {
+                x = readInt();
+                y = readUnsignedByte();
+                z = readInt();
+                id = (readVarInt() << 4) | (readUnsignedByte() & 0xf);
+            }
+        } else if (atLeast(ProtocolVersion.v1_16_2)) {
+            long change = readVarLong();
+            x = (chunkX << 4) + (int) (change >> 8 & 15);
+            y = (chunkY << 4) + (int) (change & 15);
+            z = (chunkZ << 4) + (int) (change >> 4 & 15);
+            id = (int) (change >>> 12);
+        } else {
+            short coords = readShort();
+            x = (chunkX << 4) + (coords >> 12 & 15);
+            y = coords & 255;
+            z = (chunkZ << 4) + (coords >> 8 & 15);
+            id = atLeast(ProtocolVersion.v1_8) ? readVarInt() : readShort();
+        }
+        return true;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    /**
+     * @return The position of the current record packed as per {@link IPosition#pack(int, int, int)}
+     */
+    public long getPackedPosition() {
+        return IPosition.pack(x, y, z);
+    }
+
+    public int getId() {
+        return id;
+    }
+}
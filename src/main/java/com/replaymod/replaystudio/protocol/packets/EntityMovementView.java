@@ -0,0 +1,141 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.protocol.packets;
+
+import com.github.steveice10.netty.buffer.ByteBuf;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.util.Location;
+
+import java.io.IOException;
+
+/**
+ * Flyweight view of an EntityMovement, EntityPosition, EntityRotation, EntityPositionRotation or EntityTeleport
+ * packet.
+ * Unlike {@code PacketUtils.updateLocation}, this reads straight from a buffer, so it can also be used on the
+ * content of a {@link com.replaymod.replaystudio.io.PacketBatch} without creating a packet for each entry.
+ * A single instance can be re-used for any number of packets.
+ */
+public class EntityMovementView extends PacketView {
+    private PacketType type;
+    private int entityId;
+    private int dataStart;
+
+    /**
+     * @param type Type of packet
+     * @return Whether packets of the given type can be read by this view
+     */
+    public static boolean supports(PacketType type) {
+        switch (type) {
+            case EntityMovement:
+            case EntityPosition:
+            case EntityRotation:
+            case EntityPositionRotation:
+            case EntityTeleport:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Points this view at the given packet.
+     * @param packet Packet of one of the {@link #supports(PacketType) supported} types, must not be released while this
+     *               view is in use
+     * @return this view
+     */
+    public EntityMovementView wrap(Packet packet) throws IOException {
+        return wrap(packet.getRegistry(), packet.getType(), packet.getBuf(), packet.getBuf().readerIndex());
+    }
+
+    /**
+     * Points this view at the packet content in the given buffer.
+     * @param registry Registry of the packet
+     * @param type Type of the packet, one of the {@link #supports(PacketType) supported} types
+     * @param buf Buffer containing the packet content (excluding its id), must not be released while this view is in
+     *            use
+     * @param offset Index in the buffer at which the packet content starts
+     * @return this view
+     */
+    public EntityMovementView wrap(PacketTypeRegistry registry, PacketType type, ByteBuf buf, int offset) throws IOException {
+        if (!supports(type)) {
+            throw new IllegalArgumentException("Cannot read entity movement from packets of type " + type + ".");
+        }
+        reset(registry, buf, offset);
+        this.type = type;
+        entityId = atLeast(ProtocolVersion.v1_8) ? readVarInt() : readInt();
+        dataStart = index;
+        return this;
+    }
+
+    public int getEntityId() {
+        return entityId;
+    }
+
+    /**
+     * Applies the movement to the given location, same as {@code PacketUtils.updateLocation(loc, packet)}.
+     * @param loc The previous location of the entity, may be {@code null}
+     * @return The new location
+     */
+    public Location update(Location loc) {
+        index = dataStart;
+        if (type == PacketType.EntityTeleport) {
+            if (atLeast(ProtocolVersion.v1_9)) {
+                return new Location(readDouble(), readDouble(), readDouble(),
+                        readByte() / 256f * 360, readByte() / 256f * 360);
+            } else {
+                return new Location(readInt() / 32.0, readInt() / 32.0, readInt() / 32.0,
+                        readByte() / 256f * 360, readByte() / 256f * 360);
+            }
+        }
+
+        if (loc == null) {
+            loc = Location.NULL;
+        }
+        double x = loc.getX();
+        double y = loc.getY();
+        double z = loc.getZ();
+        float yaw = loc.getYaw();
+        float pitch = loc.getPitch();
+        if (type == PacketType.EntityPosition || type == PacketType.EntityPositionRotation) {
+            if (atLeast(ProtocolVersion.v1_9)) {
+                x += readShort() / 4096.0;
+                y += readShort() / 4096.0;
+                z += readShort() / 4096.0;
+            } else {
+                x += readByte() / 32.0;
+                y += readByte() / 32.0;
+                z += readByte() / 32.0;
+            }
+        }
+        if (type == PacketType.EntityRotation || type == PacketType.EntityPositionRotation) {
+            yaw = readByte() / 256f * 360;
+            pitch = readByte() / 256f * 360;
+        }
+        return new Location(x, y, z, yaw, pitch);
+    }
+}
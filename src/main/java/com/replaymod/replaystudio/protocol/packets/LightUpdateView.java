@@ -0,0 +1,118 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.protocol.packets;
+
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+
+import java.io.IOException;
+
+/**
+ * Flyweight view of an UpdateLight packet.
+ * Unlike {@link PacketUpdateLight#read(Packet)}, only the header is parsed when wrapping a packet, light arrays
+ * are only copied out of the packet buffer when requested. A single instance can be re-used for any number of packets.
+ */
+public class LightUpdateView extends PacketView {
+    private static final int SECTIONS = 18;
+    private static final int ARRAY_LENGTH = 2048;
+    private static final int ENTRY_LENGTH = 2 + ARRAY_LENGTH; // VarInt length prefix + data
+
+    private int x;
+    private int z;
+    private int skyLightMask;
+    private int blockLightMask;
+    private int emptySkyLightMask;
+    private int emptyBlockLightMask;
+    private int skyLightStart;
+    private int blockLightStart;
+
+    /**
+     * Points this view at the given packet.
+     * @param packet UpdateLight packet, must not be released while this view is in use
+     * @return this view
+     */
+    public LightUpdateView wrap(Packet packet) throws IOException {
+        if (packet.getType() != PacketType.UpdateLight) {
+            throw new IllegalArgumentException("Can only read packets of type UpdateLight.");
+        }
+        reset(packet);
+        x = readVarInt();
+        z = readVarInt();
+        if (atLeast(ProtocolVersion.v1_16)) {
+            readBoolean(); // unknown
+        }
+        skyLightMask = readVarInt();
+        blockLightMask = readVarInt();
+        emptySkyLightMask = readVarInt();
+        emptyBlockLightMask = readVarInt();
+        skyLightStart = index;
+        blockLightStart = skyLightStart + Integer.bitCount(skyLightMask & (1 << SECTIONS) - 1) * ENTRY_LENGTH;
+        return this;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    /**
+     * Returns the sky light of the given section, same as {@code PacketUpdateLight.getSkyLight().get(section)}.
+     * @param section Section index (0 to 17, 0 being the section below the world)
+     * @return A new array with the light data or {@code null} if the packet has no sky light for the section
+     */
+    public byte[] getSkyLight(int section) throws IOException {
+        return getLight(section, skyLightMask, emptySkyLightMask, skyLightStart);
+    }
+
+    /**
+     * Returns the block light of the given section, same as {@code PacketUpdateLight.getBlockLight().get(section)}.
+     * @param section Section index (0 to 17, 0 being the section below the world)
+     * @return A new array with the light data or {@code null} if the packet has no block light for the section
+     */
+    public byte[] getBlockLight(int section) throws IOException {
+        return getLight(section, blockLightMask, emptyBlockLightMask, blockLightStart);
+    }
+
+    private byte[] getLight(int section, int mask, int emptyMask, int start) throws IOException {
+        int bit = 1 << section;
+        if ((mask & bit) != 0) {
+            index = start + Integer.bitCount(mask & (bit - 1)) * ENTRY_LENGTH;
+            if (readVarInt() != ARRAY_LENGTH) {
+                throw new IOException("Expected light byte array to be of length " + ARRAY_LENGTH);
+            }
+            byte[] light = new byte[ARRAY_LENGTH];
+            buf.getBytes(index, light);
+            return light;
+        } else if ((emptyMask & bit) != 0) {
+            return new byte[ARRAY_LENGTH];
+        } else {
+            return null;
+        }
+    }
+}
@@ -42,6 +42,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
@@ -535,7 +536,9 @@ public class PacketChunkData {
         private final PacketTypeRegistry registry;
         private int blockCount;
         private int bitsPerEntry;
-        private List<Integer> states;
+        // Palette, only the first stateCount entries are used
+        private int[] states;
+        private int stateCount;
         private FlexibleStorage storage;
         private long[] metadata; // 1.7 only
         private long[] extended; // 1.7 only
@@ -545,7 +548,8 @@ public class PacketChunkData {
             this.blockCount = from.blockCount;
             this.bitsPerEntry = from.bitsPerEntry;
             if (from.states != null) {
-                this.states = new ArrayList<>(from.states);
+                this.states = Arrays.copyOf(from.states, from.stateCount);
+                this.stateCount = from.stateCount;
             }
             if (from.storage != null) {
                 this.storage = FlexibleStorage.from(registry, bitsPerEntry, from.storage.entries, from.storage.data.clone());
@@ -566,8 +570,8 @@ public class PacketChunkData {
             this.blockCount = 0;
             this.bitsPerEntry = 4;
 
-            this.states = new ArrayList<>();
-            this.states.add(0);
+            this.states = new int[]{0};
+            this.stateCount = 1;
 
             this.storage = FlexibleStorage.empty(registry, bitsPerEntry, 4096);
         }
@@ -584,10 +588,10 @@ public class PacketChunkData {
                 this.blockCount = in.readShort();
             }
             this.bitsPerEntry = in.readUnsignedByte();
-            this.states = new ArrayList<>();
-            int stateCount = this.bitsPerEntry > 8 && packet.atLeast(ProtocolVersion.v1_13) ? 0 : in.readVarInt();
-            for(int i = 0; i < stateCount; ++i) {
-                this.states.add(in.readVarInt());
+            this.stateCount = this.bitsPerEntry > 8 && packet.atLeast(ProtocolVersion.v1_13) ? 0 : in.readVarInt();
+            this.states = new int[this.stateCount];
+            for(int i = 0; i < this.stateCount; ++i) {
+                this.states[i] = in.readVarInt();
             }
 
             this.storage = FlexibleStorage.from(registry, bitsPerEntry, 4096, in.readLongs(in.readVarInt()));
@@ -600,9 +604,9 @@ public class PacketChunkData {
             }
             out.writeByte(this.bitsPerEntry);
             if (this.bitsPerEntry <= 8 || !packet.atLeast(ProtocolVersion.v1_13)) {
-                out.writeVarInt(this.states.size());
-                for (Integer state : this.states) {
-                    out.writeVarInt(state);
+                out.writeVarInt(this.stateCount);
+                for (int i = 0; i < this.stateCount; i++) {
+                    out.writeVarInt(this.states[i]);
                 }
             }
 
@@ -619,34 +623,37 @@ public class PacketChunkData {
          */
         public int get(int x, int y, int z) {
             int id = this.storage.get(index(x, y, z));
-            return this.bitsPerEntry <= 8 ? (id >= 0 && id < this.states.size() ? this.states.get(id) : 0) : id;
+            return this.bitsPerEntry <= 8 ? (id >= 0 && id < this.stateCount ? this.states[id] : 0) : id;
         }
 
         /**
          * Only 1.9+
          */
         public void set(int x, int y, int z, int state) {
-            int id = this.bitsPerEntry <= 8 ? this.states.indexOf(state) : state;
+            int id = this.bitsPerEntry <= 8 ? indexOfState(state) : state;
             if(id == -1) {
-                this.states.add(state);
-                if(this.states.size() > 1 << this.bitsPerEntry) {
+                if (this.stateCount == this.states.length) {
+                    this.states = Arrays.copyOf(this.states, Math.max(this.stateCount * 2, 4));
+                }
+                this.states[this.stateCount++] = state;
+                if(this.stateCount > 1 << this.bitsPerEntry) {
                     this.bitsPerEntry++;
 
-                    List<Integer> oldStates = this.states;
+                    int[] oldStates = null;
                     if(this.bitsPerEntry > 8) {
-                        oldStates = new ArrayList<Integer>(this.states);
-                        this.states.clear();
+                        oldStates = Arrays.copyOf(this.states, this.stateCount);
+                        this.stateCount = 0;
                         this.bitsPerEntry = 13;
                     }
 
                     FlexibleStorage oldStorage = this.storage;
                     this.storage = FlexibleStorage.empty(this.registry, this.bitsPerEntry, this.storage.entries);
                     for(int index = 0; index < this.storage.entries; index++) {
-                        this.storage.set(index, this.bitsPerEntry <= 8 ? oldStorage.get(index) : oldStates.get(index));
+                        this.storage.set(index, oldStates == null ? oldStorage.get(index) : oldStates[oldStorage.get(index)]);
                     }
                 }
 
-                id = this.bitsPerEntry <= 8 ? this.states.indexOf(state) : state;
+                id = this.bitsPerEntry <= 8 ? indexOfState(state) : state;
             }
 
             int ind = index(x, y, z);
@@ -660,6 +667,15 @@ public class PacketChunkData {
             this.storage.set(ind, id);
         }
 
+        private int indexOfState(int state) {
+            for (int i = 0; i < this.stateCount; i++) {
+                if (this.states[i] == state) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
         public BlockStorage copy() {
             return new BlockStorage(this);
         }
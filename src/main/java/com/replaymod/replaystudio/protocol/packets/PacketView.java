@@ -0,0 +1,122 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.protocol.packets;
+
+import com.github.steveice10.netty.buffer.ByteBuf;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+
+import java.io.IOException;
+
+/**
+ * Base class for flyweight views which read fields directly out of the buffer of a packet.
+ * Views keep their own read position and never modify the buffer, so they may be used on packets which are
+ * concurrently read by other code. They do not retain the packet, it must stay alive while the view is in use.
+ */
+abstract class PacketView {
+    protected PacketTypeRegistry registry;
+    protected ByteBuf buf;
+    protected int index;
+
+    protected void reset(Packet packet) {
+        reset(packet.getRegistry(), packet.getBuf(), packet.getBuf().readerIndex());
+    }
+
+    /**
+     * @param registry Registry of the packet
+     * @param buf Buffer containing the packet content (excluding its id)
+     * @param index Index in the buffer at which the packet content starts
+     */
+    protected void reset(PacketTypeRegistry registry, ByteBuf buf, int index) {
+        this.registry = registry;
+        this.buf = buf;
+        this.index = index;
+    }
+
+    protected boolean atLeast(ProtocolVersion protocolVersion) {
+        return registry.atLeast(protocolVersion);
+    }
+
+    protected boolean readBoolean() {
+        return buf.getBoolean(index++);
+    }
+
+    protected byte readByte() {
+        return buf.getByte(index++);
+    }
+
+    protected int readUnsignedByte() {
+        return buf.getUnsignedByte(index++);
+    }
+
+    protected short readShort() {
+        short value = buf.getShort(index);
+        index += 2;
+        return value;
+    }
+
+    protected int readInt() {
+        int value = buf.getInt(index);
+        index += 4;
+        return value;
+    }
+
+    protected long readLong() {
+        long value = buf.getLong(index);
+        index += 8;
+        return value;
+    }
+
+    protected int readVarInt() throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buf.getByte(index++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarInt too long (length must be <= 5)");
+    }
+
+    protected double readDouble() {
+        double value = buf.getDouble(index);
+        index += 8;
+        return value;
+    }
+
+    protected long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buf.getByte(index++);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarLong too long (length must be <= 10)");
+    }
+}
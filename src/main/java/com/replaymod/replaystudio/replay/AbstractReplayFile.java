@@ -27,6 +27,7 @@ package com.replaymod.replaystudio.replay;
 import com.google.common.base.Optional;
 import com.google.common.io.Closeables;
 import com.google.gson.*;
+import com.replaymod.replaystudio.PacketData;
 import com.replaymod.replaystudio.Studio;
 import com.replaymod.replaystudio.data.Marker;
 import com.replaymod.replaystudio.data.ModInfo;
@@ -36,7 +37,9 @@ import com.replaymod.replaystudio.io.ReplayOutputStream;
 import com.replaymod.replaystudio.pathing.PathingRegistry;
 import com.replaymod.replaystudio.pathing.path.Timeline;
 import com.replaymod.replaystudio.pathing.serialize.TimelineSerialization;
+import com.replaymod.replaystudio.protocol.PacketType;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
@@ -58,15 +61,35 @@ public abstract class AbstractReplayFile implements ReplayFile {
     private static final String ENTRY_ASSET = "asset/%s_%s.%s";
     private static final Pattern PATTERN_ASSETS = Pattern.compile("asset/.*");
     private static final String ENTRY_MODS = "mods.json";
+    private static final String ENTRY_CONVERTED_RECORDING = "converted/%s_%d.tmcpr";
+    private static final String ENTRY_CONVERTED_RECORDING_DONE = "converted/%s_%d.done";
 
     private static final byte[] THUMB_MAGIC_NUMBERS = {0, 1, 1, 2, 3, 5, 8};
 
     protected final Studio studio;
 
+    private boolean conversionCache = Boolean.getBoolean("replaystudio.conversionCache");
+
     public AbstractReplayFile(Studio studio) throws IOException {
         this.studio = studio;
     }
 
+    public boolean isConversionCache() {
+        return conversionCache;
+    }
+
+    /**
+     * Sets whether packet data which has to be converted to another protocol version should be stored in the cache
+     * after conversion, such that subsequent calls to {@link #getPacketData(PacketTypeRegistry)} for the same version
+     * can read it without converting it again.
+     * This is only supported if the replay file provides a {@link #getRecordingHash() recording hash}.
+     * Defaults to the value of the {@code replaystudio.conversionCache} system property.
+     * @param conversionCache {@code true} to enable the conversion cache
+     */
+    public void setConversionCache(boolean conversionCache) {
+        this.conversionCache = conversionCache;
+    }
+
     @Override
     public ReplayMetaData getMetaData() throws IOException {
         Optional<InputStream> in = get(ENTRY_META_DATA);
@@ -97,12 +120,81 @@ public abstract class AbstractReplayFile implements ReplayFile {
 
     @Override
     public ReplayInputStream getPacketData(PacketTypeRegistry registry) throws IOException {
-        Optional<InputStream> in = get(ENTRY_RECORDING);
+        return getPacketData(registry, null);
+    }
+
+    @Override
+    public ReplayInputStream getPacketData(PacketTypeRegistry registry, EnumSet<PacketType> types) throws IOException {
+        Optional<InputStream> in = getRecording();
         if (!in.isPresent()) {
             return null;
         }
         ReplayMetaData metaData = getMetaData();
-        return new ReplayInputStream(registry, in.get(), metaData.getFileFormatVersion(), metaData.getRawProtocolVersionOr0());
+        String hash;
+        if (conversionCache && !metaData.getProtocolVersion().equals(registry.getVersion())
+                && (hash = getRecordingHash()) != null) {
+            in.get().close();
+            return getConvertedPacketData(registry, types, metaData, hash);
+        }
+        return new ReplayInputStream(registry, in.get(), metaData.getFileFormatVersion(), metaData.getRawProtocolVersionOr0(), types);
+    }
+
+    /**
+     * Returns the packet data converted to the version of the given registry from the cache.
+     * If it is not yet cached, the whole recording is converted and written to the cache first.
+     */
+    private ReplayInputStream getConvertedPacketData(PacketTypeRegistry registry, EnumSet<PacketType> types,
+                                                     ReplayMetaData metaData, String hash) throws IOException {
+        int protocol = registry.getVersion().getId();
+        String entry = String.format(ENTRY_CONVERTED_RECORDING, hash, protocol);
+        String doneEntry = String.format(ENTRY_CONVERTED_RECORDING_DONE, hash, protocol);
+
+        Optional<InputStream> done = getCache(doneEntry);
+        if (done.isPresent()) {
+            done.get().close();
+        } else {
+            removeCache(entry); // left over from an incomplete conversion
+            PacketTypeRegistry loginRegistry = PacketTypeRegistry.get(registry.getVersion(), State.LOGIN);
+            boolean success = false;
+            try (ReplayInputStream in = new ReplayInputStream(loginRegistry, getRecording().get(),
+                    metaData.getFileFormatVersion(), metaData.getRawProtocolVersionOr0());
+                 ReplayOutputStream out = new ReplayOutputStream(writeCache(entry))) {
+                in.startReadAhead();
+                PacketData data;
+                while ((data = in.readPacket()) != null) {
+                    out.write(data);
+                }
+                success = true;
+            } finally {
+                if (!success) {
+                    removeCache(entry);
+                }
+            }
+            writeCache(doneEntry).close();
+        }
+
+        Optional<InputStream> in = getCache(entry);
+        if (!in.isPresent()) {
+            throw new IOException("Converted recording " + entry + " vanished from cache");
+        }
+        return new ReplayInputStream(registry, in.get(), ReplayMetaData.CURRENT_FILE_FORMAT_VERSION, protocol, types);
+    }
+
+    /**
+     * Returns the input stream of the raw recording.
+     * @return Optional input stream, absent if there is no recording
+     */
+    protected Optional<InputStream> getRecording() throws IOException {
+        return get(ENTRY_RECORDING);
+    }
+
+    /**
+     * Returns a hash which changes whenever the recording changes.
+     * Used to key cached data derived from the recording.
+     * @return The hash or {@code null} if not supported or unknown
+     */
+    protected String getRecordingHash() throws IOException {
+        return null;
     }
 
     @Override
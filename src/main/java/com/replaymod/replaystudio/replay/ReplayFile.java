@@ -32,6 +32,7 @@ import com.replaymod.replaystudio.io.ReplayInputStream;
 import com.replaymod.replaystudio.io.ReplayOutputStream;
 import com.replaymod.replaystudio.pathing.PathingRegistry;
 import com.replaymod.replaystudio.pathing.path.Timeline;
+import com.replaymod.replaystudio.protocol.PacketType;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
 
 import javax.imageio.ImageIO;
@@ -44,6 +45,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -132,6 +134,19 @@ public interface ReplayFile extends Closeable {
 
     ReplayInputStream getPacketData(PacketTypeRegistry registry) throws IOException;
 
+    /**
+     * Returns the packet data, only including play phase packets of the specified types.
+     * Where possible, packets of other types are skipped without being read.
+     * The default implementation cannot skip anything and returns all packets, callers must still filter by type.
+     * @param registry The registry used for the first packet produced
+     * @param types The types of play phase packets to be returned
+     * @return The packet data or {@code null} if there is no packet data
+     * @throws IOException If an I/O error occurs
+     */
+    default ReplayInputStream getPacketData(PacketTypeRegistry registry, EnumSet<PacketType> types) throws IOException {
+        return getPacketData(registry);
+    }
+
     ReplayOutputStream writePacketData() throws IOException;
 
     Map<Integer, String> getResourcePackIndex() throws IOException;
@@ -26,13 +26,22 @@ package com.replaymod.replaystudio.replay;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Closeables;
 import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.io.MappedInputStream;
+import com.replaymod.replaystudio.io.PacketIndex;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.util.RawZipFile;
+import com.replaymod.replaystudio.util.RawZipWriter;
 import com.replaymod.replaystudio.util.Utils;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.regex.Pattern;
 import java.util.zip.CRC32;
@@ -40,7 +49,6 @@ import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
-import java.util.zip.ZipOutputStream;
 
 import static com.google.common.io.Files.*;
 import static java.nio.file.Files.*;
@@ -49,6 +57,7 @@ import static java.nio.file.Files.move;
 public class ZipReplayFile extends AbstractReplayFile {
 
     private static final String ENTRY_RECORDING_HASH = "recording.tmcpr.crc32";
+    private static final String ENTRY_PACKET_INDEX = "recording.tmcpr.index";
 
     private final File input;
     private final File output;
@@ -59,6 +68,7 @@ public class ZipReplayFile extends AbstractReplayFile {
     private final File changedFiles;
     private final File removedFiles;
     private final File sourceFile;
+    private final File appendMarkerFile;
 
     private CRC32 recordingCrc;
 
@@ -72,6 +82,17 @@ public class ZipReplayFile extends AbstractReplayFile {
     private final Set<String> removedEntries = new HashSet<>();
 
     private ZipFile zipFile;
+    private RawZipFile rawZipFile;
+
+    /**
+     * Whether {@link #save()} should append changes to the existing file instead of rewriting it.
+     */
+    private boolean incrementalSave;
+
+    /**
+     * Whether uncompressed recording data should be memory-mapped instead of being read through an input stream.
+     */
+    private boolean memoryMapped = Boolean.getBoolean("replaystudio.mmap");
 
     public ZipReplayFile(Studio studio, File file) throws IOException {
         this(studio, file, file);
@@ -88,6 +109,7 @@ public class ZipReplayFile extends AbstractReplayFile {
         changedFiles = new File(tmpFiles, "changed");
         removedFiles = new File(tmpFiles, "removed");
         sourceFile = new File(tmpFiles, "source");
+        appendMarkerFile = new File(tmpFiles, "append");
 
         if (input != null && input.exists()) {
             // Save input file path in case of crash
@@ -104,6 +126,17 @@ public class ZipReplayFile extends AbstractReplayFile {
         this.input = input;
         this.cache = cache;
 
+        if (appendMarkerFile.exists()) {
+            // Crashed during incremental save, drop the partially appended data
+            long length = Long.parseLong(new String(readAllBytes(appendMarkerFile.toPath()), Charsets.UTF_8));
+            if (output.exists()) {
+                try (FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(length);
+                }
+            }
+            Files.delete(appendMarkerFile.toPath());
+        }
+
         if (input != null && input.exists()) {
             this.zipFile = new ZipFile(input);
         }
@@ -188,6 +221,187 @@ public class ZipReplayFile extends AbstractReplayFile {
         return Optional.of(new BufferedInputStream(zipFile.getInputStream(zipEntry)));
     }
 
+    /**
+     * Returns a memory-mapped input stream for the specified entry if its content is stored uncompressed on disk.
+     * That is the case for entries which have been changed (and therefore live in the temporary folder) and for
+     * entries which are STORED in the zip file.
+     * @param entry The entry
+     * @return Optional mapped input stream, absent if the entry does not exist or is compressed
+     * @throws IOException If an I/O error occurs
+     */
+    public Optional<MappedInputStream> getMapped(String entry) throws IOException {
+        File changedFile = changedEntries.get(entry);
+        if (changedFile != null) {
+            return Optional.of(new MappedInputStream(changedFile.toPath(), 0, changedFile.length()));
+        }
+        if (zipFile == null || removedEntries.contains(entry)) {
+            return Optional.absent();
+        }
+        RawZipFile rawZipFile = getRawZipFile();
+        RawZipFile.Entry zipEntry = rawZipFile.getEntry(entry);
+        if (zipEntry == null || zipEntry.getMethod() != ZipEntry.STORED) {
+            return Optional.absent();
+        }
+        long offset = rawZipFile.getDataOffset(zipEntry);
+        return Optional.of(new MappedInputStream(rawZipFile.getFile().toPath(), offset, zipEntry.getSize()));
+    }
+
+    private RawZipFile getRawZipFile() throws IOException {
+        if (rawZipFile == null) {
+            rawZipFile = new RawZipFile(new File(zipFile.getName()));
+        }
+        return rawZipFile;
+    }
+
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    /**
+     * Sets whether uncompressed recording data should be memory-mapped when calling
+     * {@link #getPacketData(PacketTypeRegistry)}. Packets will then share the memory of the mapping instead of being
+     * copied into separate buffers. Compressed recordings are always read through an input stream.
+     * Defaults to the value of the {@code replaystudio.mmap} system property.
+     * @param memoryMapped {@code true} to enable memory mapping
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    /**
+     * Returns the packet data starting at the specified time.
+     * Skipped packets are read but, where possible, not decoded (see {@link ReplayInputStream#skipTo(long)}).
+     * If the recording is stored uncompressed and its {@link #getPacketIndex() packet index} has already been built,
+     * the index is used to skip directly to the relevant region of the recording instead, unless packets need to be
+     * converted to another version (in which case all prior packets are read but not returned).
+     * A compressed recording has to be inflated up to that region either way, and building the index takes a full pass
+     * over the recording, so neither is worth it for a single call. Callers which seek repeatedly should call
+     * {@link #getPacketIndex()} once beforehand.
+     * Packets of the login phase are always returned, or replaced by a single LoginSuccess packet when skipping.
+     * @param registry The registry used for the first packet produced, see
+     *                 {@link #getPacketData(PacketTypeRegistry)}
+     * @param fromTime Timestamp in milliseconds of the first play phase packet to be returned
+     * @return The packet data or {@code null} if there is no recording
+     * @throws IOException If an I/O error occurs
+     */
+    public ReplayInputStream getPacketData(PacketTypeRegistry registry, long fromTime) throws IOException {
+        PacketIndex index = fromTime > 0 && isStored(ENTRY_RECORDING) ? getCachedPacketIndex() : null;
+        int point = index != null ? index.floorIndex(fromTime) : -1;
+        if (point != -1) {
+            Optional<InputStream> in = getRecording();
+            if (!in.isPresent()) {
+                return null;
+            }
+            ReplayMetaData metaData = getMetaData();
+            boolean success = false;
+            try {
+                ByteStreams.skipFully(in.get(), index.getOffset(point));
+                ReplayInputStream replayIn = new ReplayInputStream(registry, in.get(),
+                        metaData.getFileFormatVersion(), metaData.getRawProtocolVersionOr0(), false);
+                // Conversion is stateful, so converted packet data always has to be read from the very beginning
+                if (!replayIn.isConverting()) {
+                    replayIn.skipTo(fromTime);
+                    success = true;
+                    return replayIn;
+                }
+            } finally {
+                if (!success) {
+                    Closeables.close(in.get(), true);
+                }
+            }
+        }
+
+        ReplayInputStream replayIn = getPacketData(registry);
+        if (replayIn != null && fromTime > 0) {
+            try {
+                replayIn.skipTo(fromTime);
+            } catch (IOException e) {
+                Closeables.close(replayIn, true);
+                throw e;
+            }
+        }
+        return replayIn;
+    }
+
+    @Override
+    protected Optional<InputStream> getRecording() throws IOException {
+        if (memoryMapped) {
+            Optional<MappedInputStream> in = getMapped(ENTRY_RECORDING);
+            if (in.isPresent()) {
+                return Optional.of(in.get());
+            }
+        }
+        return get(ENTRY_RECORDING);
+    }
+
+    @Override
+    protected String getRecordingHash() throws IOException {
+        Optional<InputStream> in = get(ENTRY_RECORDING_HASH);
+        if (!in.isPresent()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in.get()))) {
+            return reader.readLine();
+        }
+    }
+
+    /**
+     * Returns the sparse time to byte offset index of the recording.
+     * The index is stored in the cache and built by scanning the framing of the recording if it does not yet exist.
+     * @return The packet index or {@code null} if there is no recording
+     * @throws IOException If an I/O error occurs
+     */
+    public PacketIndex getPacketIndex() throws IOException {
+        PacketIndex index = getCachedPacketIndex();
+        if (index != null) {
+            return index;
+        }
+
+        Optional<InputStream> recording = getRecording();
+        if (!recording.isPresent()) {
+            return null;
+        }
+        try (InputStream in = recording.get()) {
+            index = PacketIndex.build(in, getMetaData().getFileFormatVersion(), PacketIndex.DEFAULT_INTERVAL);
+        }
+        try (OutputStream out = writeCache(ENTRY_PACKET_INDEX)) {
+            index.write(out);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the packet index from the cache.
+     * @return The packet index or {@code null} if it has not yet been built or cannot be read
+     */
+    private PacketIndex getCachedPacketIndex() throws IOException {
+        Optional<InputStream> cached = getCache(ENTRY_PACKET_INDEX);
+        if (!cached.isPresent()) {
+            return null;
+        }
+        try (InputStream in = cached.get()) {
+            return PacketIndex.read(in);
+        } catch (IOException ignored) {
+            // Corrupted or incomplete, needs to be rebuilt
+            return null;
+        }
+    }
+
+    /**
+     * Returns whether the content of the specified entry is stored uncompressed, so it can be skipped without reading
+     * it. See {@link #getMapped(String)}.
+     */
+    private boolean isStored(String entry) {
+        if (changedEntries.containsKey(entry)) {
+            return true;
+        }
+        if (zipFile == null || removedEntries.contains(entry)) {
+            return false;
+        }
+        ZipEntry zipEntry = zipFile.getEntry(entry);
+        return zipEntry != null && zipEntry.getMethod() == ZipEntry.STORED;
+    }
+
     @Override
     public Optional<InputStream> getCache(String entry) throws IOException {
         Path path = cache.toPath().resolve(entry);
@@ -315,11 +529,34 @@ public class ZipReplayFile extends AbstractReplayFile {
         Files.deleteIfExists(path);
     }
 
+    public boolean isIncrementalSave() {
+        return incrementalSave;
+    }
+
+    /**
+     * Sets whether {@link #save()} should, where possible, append changed entries and a new central directory to the
+     * existing file instead of rewriting it completely.
+     * This is only possible if the replay is saved to the file it was loaded from. Replaced entries remain in the file
+     * as garbage until it makes up more than half of the file, at which point a full save is done to compact it.
+     * @param incrementalSave {@code true} to enable incremental saving
+     */
+    public void setIncrementalSave(boolean incrementalSave) {
+        this.incrementalSave = incrementalSave;
+    }
+
     @Override
     public void save() throws IOException {
         if (zipFile != null && changedEntries.isEmpty() && removedEntries.isEmpty()) {
             return; // No changes, no need to save
         }
+        if (incrementalSave && zipFile != null && output.exists()
+                && input.getCanonicalFile().equals(output.getCanonicalFile())) {
+            if (saveIncremental()) {
+                close();
+                zipFile = new ZipFile(output);
+                return;
+            }
+        }
         File outputFile = createTempFile("replaystudio", "replayfile").toFile();
         saveTo(outputFile);
         close();
@@ -330,6 +567,56 @@ public class ZipReplayFile extends AbstractReplayFile {
         zipFile = new ZipFile(output);
     }
 
+    /**
+     * Appends all changed entries and a new central directory to the output file.
+     * @return {@code false} if the file should be compacted instead, {@code true} if it was saved
+     */
+    private boolean saveIncremental() throws IOException {
+        for (OutputStream out : outputStreams.values()) {
+            Closeables.close(out, false);
+        }
+        outputStreams.clear();
+
+        RawZipFile rawZipFile = getRawZipFile();
+        List<RawZipFile.Entry> keptEntries = new ArrayList<>();
+        long keptSize = 0;
+        for (RawZipFile.Entry entry : rawZipFile.getEntries()) {
+            if (!changedEntries.containsKey(entry.getName()) && !removedEntries.contains(entry.getName())) {
+                keptEntries.add(entry);
+                keptSize += rawZipFile.getDataOffset(entry) - entry.getLocalHeaderOffset() + entry.getCompressedSize();
+            }
+        }
+        long length = rawZipFile.getChannel().size();
+        long changedSize = 0;
+        for (File file : changedEntries.values()) {
+            changedSize += file.length(); // upper bound for the compressed size
+        }
+        long garbage = length - keptSize;
+        if (garbage > (length + changedSize) / 2) {
+            return false;
+        }
+
+        zipFile.close();
+        createParentDirs(appendMarkerFile);
+        Files.write(appendMarkerFile.toPath(), String.valueOf(length).getBytes(Charsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.WRITE)) {
+            channel.position(length);
+            RawZipWriter out = new RawZipWriter(channel);
+            for (RawZipFile.Entry entry : keptEntries) {
+                out.keepEntry(entry);
+            }
+            for (Map.Entry<String, File> e : changedEntries.entrySet()) {
+                try (OutputStream entryOut = out.putNextEntry(e.getKey())) {
+                    Utils.copy(new BufferedInputStream(new FileInputStream(e.getValue())), entryOut);
+                }
+            }
+            out.finish();
+            channel.force(true);
+        }
+        Files.delete(appendMarkerFile.toPath());
+        return true;
+    }
+
     @Override
     public void saveTo(File target) throws IOException {
         for (OutputStream out : outputStreams.values()) {
@@ -337,18 +624,20 @@ public class ZipReplayFile extends AbstractReplayFile {
         }
         outputStreams.clear();
 
-        try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(target)))) {
+        // Unchanged entries are copied as is, only changed ones need to be compressed
+        try (RawZipWriter out = new RawZipWriter(new FileOutputStream(target).getChannel())) {
             if (zipFile != null) {
-                for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                RawZipFile rawZipFile = getRawZipFile();
+                for (RawZipFile.Entry entry : rawZipFile.getEntries()) {
                     if (!changedEntries.containsKey(entry.getName()) && !removedEntries.contains(entry.getName())) {
-                        out.putNextEntry(entry);
-                        Utils.copy(zipFile.getInputStream(entry), out);
+                        out.copyEntry(rawZipFile, entry);
                     }
                 }
             }
             for (Map.Entry<String, File> e : changedEntries.entrySet()) {
-                out.putNextEntry(new ZipEntry(e.getKey()));
-                Utils.copy(new BufferedInputStream(new FileInputStream(e.getValue())), out);
+                try (OutputStream entryOut = out.putNextEntry(e.getKey())) {
+                    Utils.copy(new BufferedInputStream(new FileInputStream(e.getValue())), entryOut);
+                }
             }
         }
     }
@@ -358,6 +647,10 @@ public class ZipReplayFile extends AbstractReplayFile {
         if (zipFile != null) {
             zipFile.close();
         }
+        if (rawZipFile != null) {
+            rawZipFile.close();
+            rawZipFile = null;
+        }
         for (OutputStream out : outputStreams.values()) {
             Closeables.close(out, true);
         }
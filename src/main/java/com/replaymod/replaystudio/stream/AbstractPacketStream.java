@@ -26,12 +26,20 @@ package com.replaymod.replaystudio.stream;
 
 import com.google.common.base.Supplier;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Longs;
 import com.replaymod.replaystudio.PacketData;
 import com.replaymod.replaystudio.filter.StreamFilter;
 import com.replaymod.replaystudio.protocol.Packet;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -55,7 +63,7 @@ public abstract class AbstractPacketStream implements PacketStream {
 
         @Override
         protected void cleanup() {
-
+            shutdownPipeline();
         }
 
         @Override
@@ -120,7 +128,8 @@ public abstract class AbstractPacketStream implements PacketStream {
     private class StreamElement {
         private final FilterInfo filter;
         private final PacketStreamContext context = new PacketStreamContext(this);
-        private final Queue<PacketData> inserted = new LinkedList<>();
+        private final Queue<PacketData> inserted = new ArrayDeque<>();
+        private int index = -1;
         private boolean active;
         private long lastTimestamp;
         private StreamElement next;
@@ -141,38 +150,54 @@ public abstract class AbstractPacketStream implements PacketStream {
             if (data != null && filter.applies(data.getTime())) {
                 if (!active) {
                     filter.getFilter().onStart(context);
-                    active = true;
+                    setActive(true);
                 }
                 keep = filter.getFilter().onPacket(context, data);
                 if (!keep) {
-                    data.getPacket().getBuf().release();
+                    data.release();
                 }
             } else if (active) {
                 filter.getFilter().onEnd(context, lastTimestamp);
-                active = false;
-                for (PacketData d : inserted) {
-                    if (d.getTime() > lastTimestamp) {
-                        lastTimestamp = d.getTime();
-                    }
-                    next.process(d);
-                }
-                inserted.clear();
+                setActive(false);
+                flushInserted();
             }
             if (data != null && keep) {
                 if (data.getTime() > lastTimestamp) {
                     lastTimestamp = data.getTime();
                 }
-                next.process(data);
+                forward(data);
+            }
+            flushInserted();
+            if (data == null) {
+                next.process(null);
             }
-            for (PacketData d : inserted) {
+        }
+
+        private void flushInserted() throws IOException {
+            PacketData d;
+            while ((d = inserted.poll()) != null) {
                 if (d.getTime() > lastTimestamp) {
                     lastTimestamp = d.getTime();
                 }
-                next.process(d);
+                forward(d);
             }
-            inserted.clear();
-            if (data == null) {
-                next.process(null);
+        }
+
+        private void setActive(boolean active) {
+            this.active = active;
+            if (routing != null) {
+                if (active) {
+                    lastTimestamp = Math.max(lastTimestamp, routing.getSkipped(index));
+                }
+                routing.active.set(index, active);
+            }
+        }
+
+        private void forward(PacketData data) throws IOException {
+            if (routing != null) {
+                routing.next(index, data.getTime()).process(data);
+            } else {
+                next.process(data);
             }
         }
 
@@ -190,7 +215,11 @@ public abstract class AbstractPacketStream implements PacketStream {
         @Override
         public void process(PacketData data) {
             if (data != null) {
-                AbstractPacketStream.this.inserted.add(data);
+                if (pipeline != null) {
+                    pipeline.output.add(data);
+                } else {
+                    AbstractPacketStream.this.inserted.add(data);
+                }
             }
         }
 
@@ -200,10 +229,354 @@ public abstract class AbstractPacketStream implements PacketStream {
         }
     }
 
-    private final Queue<PacketData> inserted = new LinkedList<>();
+    /**
+     * Index of the time windows of all filters.
+     * The windows split the time line into segments in each of which the same set of filters applies. For each segment
+     * we precompute which filter is the next one to apply after any given filter, so packets skip all filters which
+     * neither apply to them nor are still active (i.e. waiting for their onEnd call), without checking each one.
+     * Skipped filters would still have seen the timestamps of those packets, so the highest one per filter is kept
+     * in a segment tree (range update, point query) and merged into the filter's last timestamp once it becomes
+     * active.
+     */
+    private static class Routing {
+        private final StreamElement[] elements;
+        private final StreamElement end;
+        private final long[] boundaries;
+        private final int[][] nextApplicable;
+        private final BitSet active = new BitSet();
+        private final long[] skipped;
+        private int[] current;
+        private long segmentStart = Long.MAX_VALUE;
+        private long segmentEnd = Long.MIN_VALUE;
+
+        private Routing(List<StreamElement> filters, StreamElement end) {
+            this.elements = filters.toArray(new StreamElement[filters.size()]);
+            this.end = end;
+
+            SortedSet<Long> points = new TreeSet<>();
+            for (StreamElement element : elements) {
+                if (element.filter.getFrom() != -1) {
+                    points.add(element.filter.getFrom());
+                }
+                if (element.filter.getTo() != -1) {
+                    points.add(element.filter.getTo() + 1);
+                }
+            }
+            boundaries = Longs.toArray(points);
+
+            nextApplicable = new int[boundaries.length + 1][];
+            for (int segment = 0; segment <= boundaries.length; segment++) {
+                long time = segment > 0 ? boundaries[segment - 1] : boundaries.length > 0 ? boundaries[0] - 1 : 0;
+                int[] next = new int[elements.length + 1];
+                int following = elements.length;
+                for (int i = elements.length - 1; i >= -1; i--) {
+                    next[i + 1] = following;
+                    if (i >= 0 && elements[i].filter.applies(time)) {
+                        following = i;
+                    }
+                }
+                nextApplicable[segment] = next;
+            }
+
+            for (int i = 0; i < elements.length; i++) {
+                elements[i].index = i;
+                active.set(i, elements[i].active);
+            }
+            skipped = new long[elements.length * 2];
+            Arrays.fill(skipped, Long.MIN_VALUE);
+        }
+
+        /**
+         * Returns the element a packet with the given timestamp should go to after the element at the given index.
+         * @param index Index of the current element, -1 for the start of the chain
+         * @param time Timestamp of the packet
+         * @return The next element
+         */
+        private StreamElement next(int index, long time) {
+            if (time < segmentStart || time >= segmentEnd) {
+                int i = Arrays.binarySearch(boundaries, time);
+                int segment = i >= 0 ? i + 1 : -i - 1;
+                current = nextApplicable[segment];
+                segmentStart = segment > 0 ? boundaries[segment - 1] : Long.MIN_VALUE;
+                segmentEnd = segment < boundaries.length ? boundaries[segment] : Long.MAX_VALUE;
+            }
+            int next = current[index + 1];
+            if (next == index + 1) { // Common case, nothing to skip
+                return next < elements.length ? elements[next] : end;
+            }
+            int nextActive = active.nextSetBit(index + 1);
+            if (nextActive != -1 && nextActive < next) {
+                next = nextActive;
+            }
+            if (next > index + 1) {
+                markSkipped(index + 1, next, time);
+            }
+            return next < elements.length ? elements[next] : end;
+        }
+
+        private void markSkipped(int from, int to, long time) {
+            int n = elements.length;
+            for (from += n, to += n; from < to; from >>= 1, to >>= 1) {
+                if ((from & 1) == 1) {
+                    skipped[from] = Math.max(skipped[from], time);
+                    from++;
+                }
+                if ((to & 1) == 1) {
+                    to--;
+                    skipped[to] = Math.max(skipped[to], time);
+                }
+            }
+        }
+
+        /**
+         * @param index Index of the element
+         * @return Highest timestamp of all packets which have skipped the element
+         */
+        private long getSkipped(int index) {
+            long result = Long.MIN_VALUE;
+            for (int i = index + elements.length; i > 0; i >>= 1) {
+                result = Math.max(result, skipped[i]);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Hands packets over to the thread of the next filter (only used in pipelined mode).
+     */
+    private class StreamElementQueue extends StreamElement {
+        private final BlockingQueue<PacketData> queue;
+
+        public StreamElementQueue(BlockingQueue<PacketData> queue) {
+            super();
+            this.queue = queue;
+        }
+
+        @Override
+        public void process(PacketData data) throws IOException {
+            pipeline.put(queue, data == null ? END_OF_STREAM : data);
+        }
+
+        @Override
+        public String toString() {
+            return "Queue";
+        }
+    }
+
+    /**
+     * Runs each filter on its own thread, connected by bounded queues.
+     * Each queue has exactly one producer and one consumer, so packet order is preserved.
+     */
+    private class Pipeline {
+        private final Queue<PacketData> output = new ConcurrentLinkedQueue<>();
+        private final List<BlockingQueue<PacketData>> queues = new ArrayList<>();
+        private final List<Thread> threads = new ArrayList<>();
+        private final List<FutureTask<Void>> workers = new ArrayList<>();
+        private volatile Throwable failure;
+        private boolean stopped;
+
+        private void start() {
+            routing = null;
+            StreamElement prev = null;
+            for (StreamElement element : filters) {
+                BlockingQueue<PacketData> queue = new ArrayBlockingQueue<>(PIPELINE_QUEUE_CAPACITY);
+                if (prev == null) {
+                    firstElement = new StreamElementQueue(queue);
+                } else {
+                    prev.next = new StreamElementQueue(queue);
+                }
+                queues.add(queue);
+                prev = element;
+            }
+            if (prev == null) {
+                firstElement = new StreamElementEnd();
+            } else {
+                prev.next = new StreamElementEnd();
+            }
+
+            for (int i = 0; i < filters.size(); i++) {
+                StreamElement element = filters.get(i);
+                BlockingQueue<PacketData> queue = queues.get(i);
+                FutureTask<Void> worker = new FutureTask<>(() -> run(element, queue));
+                Thread thread = new Thread(worker, "PacketStream-" + element.filter.getFilter().getName());
+                thread.setDaemon(true);
+                workers.add(worker);
+                threads.add(thread);
+            }
+            threads.forEach(Thread::start);
+        }
+
+        private Void run(StreamElement element, BlockingQueue<PacketData> queue) throws Exception {
+            try {
+                PacketData data;
+                while ((data = queue.take()) != END_OF_STREAM) {
+                    element.process(data);
+                }
+                element.process(null);
+                return null;
+            } catch (Throwable t) {
+                synchronized (this) {
+                    if (failure == null) { // Keep the original cause, not the interrupts of the other workers
+                        failure = t;
+                        threads.forEach(Thread::interrupt);
+                    }
+                }
+                throw t;
+            }
+        }
+
+        private void put(BlockingQueue<PacketData> queue, PacketData data) throws IOException {
+            boolean queued = false;
+            try {
+                while (!(queued = queue.offer(data, 10, TimeUnit.MILLISECONDS))) {
+                    checkFailure();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } finally {
+                if (!queued && data != END_OF_STREAM) {
+                    data.release();
+                }
+            }
+        }
+
+        private void checkFailure() throws IOException {
+            Throwable t = failure;
+            if (t != null) {
+                throw new IOException("Filter failed in pipelined packet stream", t);
+            }
+        }
+
+        private void checkNotStopped() {
+            if (stopped) {
+                throw new IllegalStateException("Pipeline has been shut down");
+            }
+        }
+
+        private PacketData next() throws IOException {
+            checkNotStopped();
+            try {
+                while (true) {
+                    checkFailure();
+                    PacketData data = inserted.poll();
+                    if (data == null) {
+                        data = output.poll();
+                    }
+                    if (data != null) {
+                        return data;
+                    }
+                    PacketData next = nextInput();
+                    if (next == null) {
+                        return output.poll();
+                    }
+                    firstElement.process(next);
+                }
+            } catch (IOException | RuntimeException | Error e) {
+                shutdown();
+                throw e;
+            }
+        }
+
+        private List<PacketData> end() throws IOException {
+            checkNotStopped();
+            try {
+                firstElement.process(null);
+                for (FutureTask<Void> worker : workers) {
+                    worker.get();
+                }
+            } catch (InterruptedException e) {
+                shutdown();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                shutdown();
+                throw new IOException("Filter failed in pipelined packet stream", e.getCause());
+            } catch (IOException | RuntimeException | Error e) {
+                shutdown();
+                throw e;
+            }
+            List<PacketData> result = new ArrayList<>(inserted.size() + output.size());
+            result.addAll(inserted);
+            result.addAll(output);
+            inserted.clear();
+            output.clear();
+            return result;
+        }
+
+        /**
+         * Interrupts all workers, waits for them to terminate and then releases all packets which are still queued
+         * between filters or waiting to be returned. Must not be called from one of the workers.
+         */
+        private void shutdown() {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            threads.forEach(Thread::interrupt);
+            boolean interrupted = false;
+            for (Thread thread : threads) {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            // All workers have terminated, so we're the only one left accessing the queues
+            queues.forEach(this::releaseAll);
+            filters.forEach(element -> releaseAll(element.inserted));
+            releaseAll(output);
+            releaseAll(inserted);
+        }
+
+        private void releaseAll(Queue<PacketData> queue) {
+            PacketData data;
+            while ((data = queue.poll()) != null) {
+                if (data != END_OF_STREAM) {
+                    data.release();
+                }
+            }
+        }
+    }
+
+    private static final int PIPELINE_QUEUE_CAPACITY = 1024;
+    private static final PacketData END_OF_STREAM = new PacketData(-1, null);
+
+    private final Queue<PacketData> inserted = new ArrayDeque<>();
     private final List<StreamElement> filters = new ArrayList<>();
 
     private StreamElement firstElement;
+    private Routing routing;
+    private boolean routingDisabled;
+
+    private boolean pipelined;
+    private Pipeline pipeline;
+
+    /**
+     * Enables or disables pipelined execution.
+     * When enabled, each filter runs on its own thread and passes its output on to the next filter via a bounded
+     * queue. Packet order, inserted packets and the start and end of each filter's time window are the same as when
+     * running sequentially. However, filters can no longer be added or removed once the first packet has been
+     * requested and packets still in the pipeline when the input runs out are returned by {@link #end()} instead of
+     * {@link #next()}.
+     * @param pipelined {@code true} to run each filter on its own thread
+     */
+    public void setPipelined(boolean pipelined) {
+        if (pipeline != null) {
+            throw new IllegalStateException("Pipeline has already been started");
+        }
+        this.pipelined = pipelined;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
 
     @Override
     public void insert(PacketData packet) {
@@ -227,13 +600,32 @@ public abstract class AbstractPacketStream implements PacketStream {
             }
             l = e;
         }
+        if (routing != null) {
+            for (StreamElement e : routing.elements) {
+                e.lastTimestamp = Math.max(e.lastTimestamp, routing.getSkipped(e.index));
+            }
+        }
+        StreamElement end = new StreamElementEnd();
         if (l == null) {
-            firstElement = new StreamElementEnd();
+            firstElement = end;
         } else {
-            l.next = new StreamElementEnd();
+            l.next = end;
+        }
+        routing = new Routing(filters, end);
+        if (routing.boundaries.length == 0 || routingDisabled) {
+            routing = null; // All filters apply to the whole stream, nothing to skip
         }
     }
 
+    /**
+     * Disables skipping of filters which do not apply, so every packet passes through every filter.
+     * Only used to verify that skipping does not change the result.
+     */
+    void disableRouting() {
+        routingDisabled = true;
+        buildPipe();
+    }
+
     @Override
     public void addFilter(StreamFilter filter) {
         addFilter(filter, -1, -1);
@@ -241,12 +633,14 @@ public abstract class AbstractPacketStream implements PacketStream {
 
     @Override
     public void addFilter(StreamFilter filter, long from, long to) {
+        checkNotPipelined();
         filters.add(new StreamElement(new FilterInfo(filter, from, to)));
         buildPipe();
     }
 
     @Override
     public void removeFilter(StreamFilter filter) {
+        checkNotPipelined();
         Iterator<StreamElement> iter = filters.iterator();
         while (iter.hasNext()) {
             if (filter == iter.next().filter.getFilter()) {
@@ -256,16 +650,33 @@ public abstract class AbstractPacketStream implements PacketStream {
         buildPipe();
     }
 
+    private void checkNotPipelined() {
+        if (pipeline != null) {
+            throw new IllegalStateException("Cannot change filters of a running pipelined stream");
+        }
+    }
+
     protected abstract PacketData nextInput();
 
     @Override
     public PacketData next() throws IOException {
+        if (pipelined) {
+            if (pipeline == null) {
+                pipeline = new Pipeline();
+                pipeline.start();
+            }
+            return pipeline.next();
+        }
         while (inserted.isEmpty()) {
             PacketData next = nextInput();
             if (next == null) {
                 break;
             }
-            firstElement.process(next);
+            if (routing != null) {
+                routing.next(-1, next.getTime()).process(next);
+            } else {
+                firstElement.process(next);
+            }
         }
         return inserted.poll();
     }
@@ -277,14 +688,33 @@ public abstract class AbstractPacketStream implements PacketStream {
 
     @Override
     public List<PacketData> end() throws IOException {
+        if (pipelined) {
+            if (pipeline == null) {
+                pipeline = new Pipeline();
+                pipeline.start();
+            }
+            return pipeline.end();
+        }
         firstElement.process(null);
-        List<PacketData> result = new LinkedList<>(inserted);
+        List<PacketData> result = new ArrayList<>(inserted);
         inserted.clear();
         return result;
     }
 
+    /**
+     * Stops the threads of a pipelined stream and releases all packets still in the pipeline.
+     * Has no effect if the stream is not pipelined or the pipeline has not yet been started.
+     * Implementations of {@link #cleanup()} should call this.
+     */
+    protected void shutdownPipeline() {
+        if (pipeline != null) {
+            pipeline.shutdown();
+        }
+    }
+
     /**
      * Clean up this packet stream (e.g. close input streams, etc.)
+     * Implementations should call {@link #shutdownPipeline()}, so no threads of a pipelined stream remain.
      */
     protected abstract void cleanup();
 
@@ -116,7 +116,7 @@ public class IteratorStream implements PacketStream {
         }
         if (!keep) {
             iterator.remove();
-            next.getPacket().getBuf().release();
+            next.release();
             if (lastTimestamp == -1) {
                 lastTimestamp = next.getTime();
             }
@@ -54,6 +54,7 @@ public class StudioPacketStream extends AbstractPacketStream {
 
     @Override
     protected void cleanup() {
+        shutdownPipeline();
         try {
             in.close();
         } catch (IOException e) {
@@ -29,10 +29,12 @@ import com.github.steveice10.packetlib.io.NetOutput;
 import com.github.steveice10.packetlib.io.stream.StreamNetInput;
 import com.github.steveice10.packetlib.io.stream.StreamNetOutput;
 import com.google.common.base.Optional;
-import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.io.PacketBatch;
 import com.replaymod.replaystudio.io.ReplayInputStream;
 import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.EntityMovementView;
 import com.replaymod.replaystudio.replay.ReplayFile;
 import com.replaymod.replaystudio.replay.ReplayMetaData;
 import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
@@ -42,6 +44,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.NavigableMap;
@@ -63,6 +66,18 @@ import java.util.function.Consumer;
 public class EntityPositionTracker {
     private static final String CACHE_ENTRY = "entity_positions.bin";
     private static final String OLD_CACHE_ENTRY = "entity_positions.json";
+    private static final EnumSet<PacketType> LOCATION_PACKETS = EnumSet.of(
+            PacketType.SpawnExpOrb,
+            PacketType.SpawnObject,
+            PacketType.SpawnMob,
+            PacketType.SpawnPlayer,
+            PacketType.SpawnPainting,
+            PacketType.EntityMovement,
+            PacketType.EntityPosition,
+            PacketType.EntityRotation,
+            PacketType.EntityPositionRotation,
+            PacketType.EntityTeleport
+    );
 
     private final ReplayFile replayFile;
 
@@ -159,38 +174,58 @@ public class EntityPositionTracker {
         synchronized (replayFile) {
             ReplayMetaData metaData = replayFile.getMetaData();
             replayLength = Math.max(1, metaData.getDuration());
-            origIn = replayFile.getPacketData(PacketTypeRegistry.get(metaData.getProtocolVersion(), State.LOGIN));
+            origIn = replayFile.getPacketData(PacketTypeRegistry.get(metaData.getProtocolVersion(), State.LOGIN), LOCATION_PACKETS);
         }
 
         Map<Integer, NavigableMap<Long, Location>> entityPositions = new HashMap<>();
+        PacketBatch batch = new PacketBatch();
+        EntityMovementView movement = new EntityMovementView();
         try (ReplayInputStream in = origIn) {
-            PacketData packetData;
-            while ((packetData = in.readPacket()) != null) {
-                Packet packet = packetData.getPacket();
-
-                Integer entityID = PacketUtils.getEntityId(packet);
-                if (entityID == null) {
-                    packet.release();
-                    continue;
-                }
-
-                NavigableMap<Long, Location> positions = entityPositions.get(entityID);
-                if (positions == null) {
-                    entityPositions.put(entityID, positions = new TreeMap<>());
-                }
+            if (in.isConverting()) {
+                // Converting is expensive, do it on another thread while we're processing packets here
+                in.startReadAhead();
+            }
+            while (in.readBatch(batch) > 0) {
+                for (int i = 0; i < batch.size(); i++) {
+                    PacketType type = batch.getType(i);
+                    if (!LOCATION_PACKETS.contains(type)) {
+                        continue; // login phase
+                    }
 
-                Location oldPosition = positions.isEmpty() ? null : positions.lastEntry().getValue();
-                Location newPosition = PacketUtils.updateLocation(oldPosition, packet);
+                    NavigableMap<Long, Location> positions;
+                    Location newPosition;
+                    if (EntityMovementView.supports(type)) {
+                        // Read straight from the batch, these make up the vast majority of packets
+                        movement.wrap(batch.getRegistry(i), type, batch.getBuf(), batch.getOffset(i));
+                        positions = entityPositions.computeIfAbsent(movement.getEntityId(), id -> new TreeMap<>());
+                        newPosition = movement.update(positions.isEmpty() ? null : positions.lastEntry().getValue());
+                    } else {
+                        // Spawn packets differ a lot between versions and are comparatively rare
+                        Packet packet = batch.toPacket(i);
+                        try {
+                            Integer entityID = PacketUtils.getEntityId(packet);
+                            if (entityID == null) {
+                                continue;
+                            }
+                            positions = entityPositions.computeIfAbsent(entityID, id -> new TreeMap<>());
+                            Location oldPosition = positions.isEmpty() ? null : positions.lastEntry().getValue();
+                            newPosition = PacketUtils.updateLocation(oldPosition, packet);
+                        } finally {
+                            packet.release();
+                        }
+                    }
 
-                if (newPosition != null) {
-                    positions.put(packetData.getTime(), newPosition);
+                    if (newPosition != null) {
+                        long time = batch.getTime(i);
+                        positions.put(time, newPosition);
 
-                    double progress = (double) packetData.getTime() / replayLength;
-                    progressMonitor.accept(Math.min(1, Math.max(0, progress)));
+                        double progress = (double) time / replayLength;
+                        progressMonitor.accept(Math.min(1, Math.max(0, progress)));
+                    }
                 }
-
-                packet.release();
             }
+        } finally {
+            batch.release();
         }
 
         this.entityPositions = entityPositions;
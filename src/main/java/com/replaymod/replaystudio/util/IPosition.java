@@ -53,6 +53,39 @@ public class IPosition {
         return this.z;
     }
 
+    /**
+     * Packs this position into a single long, see {@link #pack(int, int, int)}.
+     * @return The packed position
+     */
+    public long pack() {
+        return pack(x, y, z);
+    }
+
+    /**
+     * Packs the given coordinates into a single long (26 bits x, 26 bits z, 12 bits y, same layout as used by the
+     * 1.14+ protocol). The y coordinate is treated as unsigned.
+     * @return The packed position
+     */
+    public static long pack(int x, int y, int z) {
+        return (x & 0x3ffffffL) << 38 | (z & 0x3ffffffL) << 12 | (y & 0xfffL);
+    }
+
+    public static int unpackX(long packed) {
+        return (int) (packed >> 38);
+    }
+
+    public static int unpackY(long packed) {
+        return (int) (packed & 0xfff);
+    }
+
+    public static int unpackZ(long packed) {
+        return (int) (packed << 26 >> 38);
+    }
+
+    public static IPosition unpack(long packed) {
+        return new IPosition(unpackX(packed), unpackY(packed), unpackZ(packed));
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
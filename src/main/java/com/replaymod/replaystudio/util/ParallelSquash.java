@@ -0,0 +1,202 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.util;
+
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.filter.SquashFilter;
+import com.replaymod.replaystudio.io.PacketIndex;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.replay.ReplayMetaData;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Squashes a whole replay like {@link SquashFilter} but splits the recording into time partitions (at points of its
+ * {@link PacketIndex}) which are squashed independently on a fork/join pool.
+ * The {@link SquashFilter#forPartition() partial} results are then merged pairwise, preserving their order.
+ * Recordings which need to be converted to another version can only be read from the very beginning and are
+ * therefore squashed as a single partition.
+ */
+public class ParallelSquash {
+    private final ZipReplayFile replayFile;
+    private final ForkJoinPool pool;
+    private final AtomicLong lastTimestamp = new AtomicLong();
+    private PacketTypeRegistry loginRegistry;
+    private PacketTypeRegistry playRegistry;
+    private long[] partitions;
+
+    public ParallelSquash(ZipReplayFile replayFile, ForkJoinPool pool) {
+        this.replayFile = replayFile;
+        this.pool = pool;
+    }
+
+    /**
+     * Squashes the replay.
+     * @param output Receives the squashed packets, see {@link SquashFilter#end(long, SquashFilter.Output)}
+     * @throws IOException if an I/O error occurs
+     */
+    public void squash(SquashFilter.Output output) throws IOException {
+        ReplayMetaData metaData = replayFile.getMetaData();
+        loginRegistry = PacketTypeRegistry.get(metaData.getProtocolVersion(), State.LOGIN);
+        playRegistry = PacketTypeRegistry.get(metaData.getProtocolVersion(), State.PLAY);
+        partitions = computePartitions(pool.getParallelism() * 4);
+
+        SquashFilter result = new SquashFilter();
+        try {
+            result.merge(pool.invoke(new SquashTask(0, partitions.length)));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        result.end(lastTimestamp.get(), output);
+    }
+
+    /**
+     * Chooses the start times of the partitions such that each one covers roughly the same amount of packet data.
+     * @param count The desired amount of partitions
+     * @return Start time of each partition, the first one always starts at the very beginning
+     */
+    private long[] computePartitions(int count) throws IOException {
+        PacketIndex index = replayFile.getPacketIndex();
+        if (index == null || index.size() < 2 || count < 2) {
+            return new long[]{0};
+        }
+        try (ReplayInputStream in = replayFile.getPacketData(loginRegistry)) {
+            if (in.isConverting()) {
+                return new long[]{0};
+            }
+        }
+        long total = index.getOffset(index.size() - 1);
+        List<Long> starts = new ArrayList<>();
+        starts.add(0L);
+        int point = 1;
+        for (int i = 1; i < count; i++) {
+            long target = total * i / count;
+            while (point < index.size() - 1 && index.getOffset(point) < target) {
+                point++;
+            }
+            long time = index.getTime(point);
+            if (time > starts.get(starts.size() - 1)) {
+                starts.add(time);
+            }
+        }
+        long[] result = new long[starts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = starts.get(i);
+        }
+        return result;
+    }
+
+    private SquashFilter squashPartition(int partition) throws IOException {
+        long end = partition + 1 < partitions.length ? partitions[partition + 1] : Long.MAX_VALUE;
+        SquashFilter filter = SquashFilter.forPartition();
+        ReplayInputStream in;
+        synchronized (replayFile) {
+            if (partition == 0) {
+                in = replayFile.getPacketData(loginRegistry);
+            } else {
+                // Continuing in the play phase, so this does not produce any login phase packets
+                in = replayFile.getPacketData(playRegistry, partitions[partition]);
+            }
+        }
+        if (in == null) {
+            return filter;
+        }
+        try {
+            PacketData data;
+            long time = 0;
+            while ((data = in.readPacket()) != null) {
+                if (data.getTime() >= end) {
+                    data.release();
+                    break;
+                }
+                time = data.getTime();
+                try {
+                    filter.onPacket(null, data);
+                } finally {
+                    data.release();
+                }
+            }
+            lastTimestamp.accumulateAndGet(time, Math::max);
+        } catch (IOException | RuntimeException e) {
+            filter.release();
+            throw e;
+        } finally {
+            in.close();
+        }
+        return filter;
+    }
+
+    private class SquashTask extends RecursiveTask<SquashFilter> {
+        private final int from, to;
+
+        SquashTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected SquashFilter compute() {
+            try {
+                if (to - from == 1) {
+                    return squashPartition(from);
+                }
+                int mid = (from + to) / 2;
+                SquashTask right = new SquashTask(mid, to);
+                right.fork();
+                SquashFilter result;
+                try {
+                    result = new SquashTask(from, mid).compute();
+                } catch (RuntimeException e) {
+                    try {
+                        right.join().release();
+                    } catch (RuntimeException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                    throw e;
+                }
+                SquashFilter later;
+                try {
+                    later = right.join();
+                } catch (RuntimeException e) {
+                    result.release();
+                    throw e;
+                }
+                result.merge(later);
+                return result;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
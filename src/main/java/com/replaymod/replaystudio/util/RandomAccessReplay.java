@@ -15,6 +15,8 @@ import com.replaymod.replaystudio.PacketData;
 import com.replaymod.replaystudio.io.ReplayInputStream;
 import com.replaymod.replaystudio.protocol.Packet;
 import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.BlockChangeView;
+import com.replaymod.replaystudio.protocol.packets.LightUpdateView;
 import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
 import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
 import com.replaymod.replaystudio.protocol.packets.PacketDestroyEntities;
@@ -24,7 +26,6 @@ import com.replaymod.replaystudio.protocol.packets.PacketJoinGame;
 import com.replaymod.replaystudio.protocol.packets.PacketNotifyClient;
 import com.replaymod.replaystudio.protocol.packets.PacketPlayerListEntry;
 import com.replaymod.replaystudio.protocol.packets.PacketSpawnPlayer;
-import com.replaymod.replaystudio.protocol.packets.PacketUpdateLight;
 import com.replaymod.replaystudio.protocol.packets.PacketUpdateViewDistance;
 import com.replaymod.replaystudio.protocol.packets.PacketUpdateViewPosition;
 import com.replaymod.replaystudio.replay.ReplayFile;
@@ -202,6 +203,8 @@ public abstract class RandomAccessReplay<T> {
         Map<Long, Chunk> activeChunks = new HashMap<>();
         Packet lastLightUpdate = null;
         Weather activeWeather = null;
+        BlockChangeView blockChangeView = new BlockChangeView();
+        LightUpdateView lightUpdateView = new LightUpdateView();
 
         double sysTimeStart = System.currentTimeMillis();
         double duration;
@@ -218,6 +221,7 @@ public abstract class RandomAccessReplay<T> {
             int index = 0;
             int time = 0;
             duration = replayFile.getMetaData().getDuration();
+            in.startReadAhead();
             PacketData packetData;
             while ((packetData = in.readPacket()) != null) {
                 com.replaymod.replaystudio.protocol.Packet packet = packetData.getPacket();
@@ -271,7 +275,7 @@ public abstract class RandomAccessReplay<T> {
                         if (column.isFull()) {
                             Packet initialLight = null;
                             if (lastLightUpdate != null) {
-                                PacketUpdateLight updateLight = PacketUpdateLight.read(lastLightUpdate);
+                                LightUpdateView updateLight = lightUpdateView.wrap(lastLightUpdate);
                                 if (column.x == updateLight.getX() && column.z == updateLight.getZ()) {
                                     initialLight = lastLightUpdate;
                                     lastLightUpdate = null;
@@ -318,7 +322,7 @@ public abstract class RandomAccessReplay<T> {
                         // The vanilla server appears to always send it immediately before the chunk packet.
                         // Third-party servers (e.g. Hypixel) may sent it after the corresponding chunk packet, hence
                         // why we must support both options here.
-                        PacketUpdateLight updateLight = PacketUpdateLight.read(packet);
+                        LightUpdateView updateLight = lightUpdateView.wrap(packet);
                         Chunk chunk = activeChunks.get(coordToLong(updateLight.getX(), updateLight.getZ()));
                         if (chunk != null && chunk.spawnPackets.size() == 1) {
                             // We we already know about the chunk and this is the first light update we receive for it,
@@ -346,15 +350,16 @@ public abstract class RandomAccessReplay<T> {
                     }
                     case BlockChange:
                     case MultiBlockChange: {
-                        for (PacketBlockChange record : PacketBlockChange.readSingleOrBulk(packet)) {
-                            IPosition pos = record.getPosition();
-                            Chunk chunk = activeChunks.get(coordToLong(pos.getX() >> 4, pos.getZ() >> 4));
+                        BlockChangeView record = blockChangeView.wrap(packet);
+                        while (record.next()) {
+                            Chunk chunk = activeChunks.get(coordToLong(record.getX() >> 4, record.getZ() >> 4));
                             if (chunk != null) {
-                                PacketChunkData.BlockStorage blockStorage = chunk.currentBlockState[pos.getY() >> 4];
-                                int x = pos.getX() & 15, y = pos.getY() & 15, z = pos.getZ() & 15;
+                                PacketChunkData.BlockStorage blockStorage = chunk.currentBlockState[record.getY() >> 4];
+                                int x = record.getX() & 15, y = record.getY() & 15, z = record.getZ() & 15;
                                 int prevState = blockStorage.get(x, y, z);
                                 int newState = record.getId();
                                 blockStorage.set(x, y, z, newState);
+                                IPosition pos = new IPosition(record.getX(), record.getY(), record.getZ());
                                 chunk.blocks.put(time, new BlockChange(pos, prevState, newState));
                             }
                         }
@@ -610,6 +615,7 @@ public abstract class RandomAccessReplay<T> {
     private final Inflater inflater = new Inflater();
     private final Deflater deflater = new Deflater();
 
+    // Takes ownership of (and releases) the passed packet
     private T toMC(Packet packet) {
         // We need to re-encode MCProtocolLib packets, so we can then decode them as NMS packets
         // The main reason we aren't reading them as NMS packets is that we want ReplayStudio to be able
@@ -624,6 +630,7 @@ public abstract class RandomAccessReplay<T> {
         } catch (Exception e) {
             throw new RuntimeException(e);
         } finally {
+            packet.release();
             byteBuf.readerIndex(readerIndex); // Reset reader & writer index for next use
             byteBuf.writerIndex(writerIndex);
         }
@@ -0,0 +1,302 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * Read-only view of the central directory of a zip file.
+ * Unlike {@link java.util.zip.ZipFile}, this exposes where exactly the (compressed) data of each entry is located
+ * within the file, so it can be accessed without going through an inflater (e.g. for memory-mapping STORED entries
+ * or for copying entries into another zip file without re-compressing them).
+ * Zip64 is supported, multi-disk archives are not.
+ */
+public class RawZipFile implements Closeable {
+    static final int LOCAL_HEADER_SIG = 0x04034b50;
+    static final int CENTRAL_HEADER_SIG = 0x02014b50;
+    static final int END_SIG = 0x06054b50;
+    static final int ZIP64_END_SIG = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+    static final int ZIP64_EXTRA_ID = 0x0001;
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_SIZE = 22;
+    static final int ZIP64_END_SIZE = 56;
+    static final int ZIP64_LOCATOR_SIZE = 20;
+    static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+    static final int FLAG_UTF8 = 1 << 11;
+
+    private final File file;
+    private final FileChannel channel;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private long centralDirectoryOffset;
+    private long centralDirectorySize;
+
+    public RawZipFile(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            readCentralDirectory();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, END_SIZE + 0xFFFF);
+        ByteBuffer tail = read(fileSize - tailSize, tailSize);
+
+        int endPos = -1;
+        for (int i = tailSize - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIG && i + END_SIZE + (tail.getShort(i + 20) & 0xffff) == tailSize) {
+                endPos = i;
+                break;
+            }
+        }
+        if (endPos == -1) {
+            throw new ZipException("End of central directory not found in " + file);
+        }
+
+        long count = tail.getShort(endPos + 10) & 0xffff;
+        centralDirectorySize = tail.getInt(endPos + 12) & ZIP64_MAGIC;
+        centralDirectoryOffset = tail.getInt(endPos + 16) & ZIP64_MAGIC;
+
+        if (count == ZIP64_MAGIC_COUNT || centralDirectorySize == ZIP64_MAGIC || centralDirectoryOffset == ZIP64_MAGIC) {
+            long locatorPos = fileSize - tailSize + endPos - ZIP64_LOCATOR_SIZE;
+            if (locatorPos >= 0) {
+                ByteBuffer locator = read(locatorPos, ZIP64_LOCATOR_SIZE);
+                if (locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+                    ByteBuffer end = read(locator.getLong(8), ZIP64_END_SIZE);
+                    if (end.getInt(0) != ZIP64_END_SIG) {
+                        throw new ZipException("Invalid Zip64 end of central directory in " + file);
+                    }
+                    count = end.getLong(32);
+                    centralDirectorySize = end.getLong(40);
+                    centralDirectoryOffset = end.getLong(48);
+                }
+            }
+        }
+
+        if (centralDirectorySize > Integer.MAX_VALUE) {
+            throw new ZipException("Central directory too large in " + file);
+        }
+        ByteBuffer cd = read(centralDirectoryOffset, (int) centralDirectorySize);
+        int pos = 0;
+        for (long i = 0; i < count; i++) {
+            if (cd.getInt(pos) != CENTRAL_HEADER_SIG) {
+                throw new ZipException("Invalid central directory header in " + file);
+            }
+            Entry entry = new Entry();
+            entry.flags = cd.getShort(pos + 8) & 0xffff;
+            entry.method = cd.getShort(pos + 10) & 0xffff;
+            entry.dosTime = cd.getInt(pos + 12) & ZIP64_MAGIC;
+            entry.crc = cd.getInt(pos + 16) & ZIP64_MAGIC;
+            entry.compressedSize = cd.getInt(pos + 20) & ZIP64_MAGIC;
+            entry.size = cd.getInt(pos + 24) & ZIP64_MAGIC;
+            int nameLength = cd.getShort(pos + 28) & 0xffff;
+            int extraLength = cd.getShort(pos + 30) & 0xffff;
+            int commentLength = cd.getShort(pos + 32) & 0xffff;
+            entry.localHeaderOffset = cd.getInt(pos + 42) & ZIP64_MAGIC;
+
+            byte[] name = new byte[nameLength];
+            cd.position(pos + CENTRAL_HEADER_SIZE);
+            cd.get(name);
+            entry.name = new String(name, StandardCharsets.UTF_8);
+
+            int extraPos = pos + CENTRAL_HEADER_SIZE + nameLength;
+            int extraEnd = extraPos + extraLength;
+            while (extraPos + 4 <= extraEnd) {
+                int id = cd.getShort(extraPos) & 0xffff;
+                int length = cd.getShort(extraPos + 2) & 0xffff;
+                if (id == ZIP64_EXTRA_ID) {
+                    int fieldPos = extraPos + 4;
+                    if (entry.size == ZIP64_MAGIC) {
+                        entry.size = cd.getLong(fieldPos);
+                        fieldPos += 8;
+                    }
+                    if (entry.compressedSize == ZIP64_MAGIC) {
+                        entry.compressedSize = cd.getLong(fieldPos);
+                        fieldPos += 8;
+                    }
+                    if (entry.localHeaderOffset == ZIP64_MAGIC) {
+                        entry.localHeaderOffset = cd.getLong(fieldPos);
+                    }
+                }
+                extraPos += 4 + length;
+            }
+
+            entries.put(entry.name, entry);
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) == -1) {
+                throw new EOFException();
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the channel this zip file is read from.
+     * The channel is owned by this zip file and must not be closed by the caller.
+     * @return The file channel
+     */
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns all entries in the order they appear in the central directory.
+     * @return Unmodifiable collection of entries
+     */
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Returns the offset of the central directory. All entry data is located before this offset.
+     * @return Offset in bytes from the start of the file
+     */
+    public long getCentralDirectoryOffset() {
+        return centralDirectoryOffset;
+    }
+
+    public long getCentralDirectorySize() {
+        return centralDirectorySize;
+    }
+
+    /**
+     * Returns the offset at which the (compressed) data of the specified entry starts.
+     * This requires reading the local file header of the entry as its extra field may differ from the one in the
+     * central directory.
+     * @param entry The entry
+     * @return Offset in bytes from the start of the file
+     * @throws IOException if an I/O error occurs or the local header is invalid
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        if (entry.dataOffset == -1) {
+            ByteBuffer header = read(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+            if (header.getInt(0) != LOCAL_HEADER_SIG) {
+                throw new ZipException("Invalid local header for " + entry.name + " in " + file);
+            }
+            int nameLength = header.getShort(26) & 0xffff;
+            int extraLength = header.getShort(28) & 0xffff;
+            entry.dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+        }
+        return entry.dataOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static final class Entry {
+        private String name;
+        private int flags;
+        private int method;
+        private long dosTime;
+        private long crc;
+        private long compressedSize;
+        private long size;
+        private long localHeaderOffset;
+        private long dataOffset = -1;
+
+        public String getName() {
+            return name;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        /**
+         * @return The compression method, either {@link java.util.zip.ZipEntry#STORED} or
+         *         {@link java.util.zip.ZipEntry#DEFLATED}
+         */
+        public int getMethod() {
+            return method;
+        }
+
+        /**
+         * @return Modification time and date in MS-DOS format (date in the upper 16 bits)
+         */
+        public long getDosTime() {
+            return dosTime;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        @Override
+        public String toString() {
+            return "RawZipFile.Entry[" + name + "]";
+        }
+    }
+}
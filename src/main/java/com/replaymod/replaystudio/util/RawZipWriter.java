@@ -0,0 +1,527 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.util;
+
+import com.replaymod.replaystudio.io.ParallelDeflaterOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+import static com.replaymod.replaystudio.util.RawZipFile.*;
+
+/**
+ * Writes zip files while giving more control over the compressed data than {@link java.util.zip.ZipOutputStream}.
+ * In particular, entries may be compressed on multiple threads via {@link ParallelDeflaterOutputStream}.
+ * Like the {@code ZipOutputStream}, sizes and CRC of deflated entries are written in a data descriptor after their
+ * data. Zip64 extensions are used where necessary.
+ */
+public class RawZipWriter implements Closeable {
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    private final CountingOutputStream out;
+    /**
+     * The channel {@link #out} eventually writes to, if known. Allows for raw entries to be copied without going
+     * through user space.
+     */
+    private final FileChannel channel;
+    private final List<WrittenEntry> entries = new ArrayList<>();
+    private final long dosTime = toDosTime(System.currentTimeMillis());
+
+    private WrittenEntry current;
+    private EntryOutputStream currentOut;
+    private DeflaterOutputStream currentDeflater;
+    private ParallelDeflaterOutputStream currentParallelDeflater;
+    private CRC32 currentCrc;
+    private long currentSize;
+    private Deflater deflater;
+    private boolean finished;
+
+    public RawZipWriter(OutputStream out) {
+        this.out = new CountingOutputStream(out);
+        this.channel = null;
+    }
+
+    /**
+     * Creates a new zip writer which writes to the current position of the given channel.
+     * Entries copied via {@link #copyEntry(RawZipFile, RawZipFile.Entry)} are transferred directly between the
+     * channels.
+     * If the position is not at the start of the file, the data before it is treated as part of the zip file, i.e.
+     * offsets in the central directory are relative to the start of the file.
+     * @param channel The channel, closed when the writer is closed
+     * @throws IOException if an I/O error occurs
+     */
+    public RawZipWriter(FileChannel channel) throws IOException {
+        this.out = new CountingOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        this.out.count = channel.position();
+        this.channel = channel;
+    }
+
+    /**
+     * Starts a new deflated entry, closing the previous one.
+     * @param name Name of the entry
+     * @return Output stream for the uncompressed content of the entry. Closing it closes the entry.
+     * @throws IOException if an I/O error occurs
+     */
+    public OutputStream putNextEntry(String name) throws IOException {
+        return putNextEntry(name, null, 0);
+    }
+
+    /**
+     * Starts a new deflated entry, closing the previous one.
+     * @param name Name of the entry
+     * @param executor Executor on which the content is compressed, or {@code null} to compress on the calling thread
+     * @param threads Number of threads of the executor
+     * @return Output stream for the uncompressed content of the entry. Closing it closes the entry.
+     * @throws IOException if an I/O error occurs
+     * @see ParallelDeflaterOutputStream
+     */
+    public OutputStream putNextEntry(String name, ExecutorService executor, int threads) throws IOException {
+        closeEntry();
+        if (finished) {
+            throw new IOException("Zip file already finished");
+        }
+
+        current = new WrittenEntry(name, FLAG_DATA_DESCRIPTOR | FLAG_UTF8, ZipEntry.DEFLATED, dosTime, out.count);
+        writeLocalHeader(current, 0, 0, 0);
+
+        OutputStream entryOut = new FilterOutputStream(out) {
+            @Override
+            public void close() {
+                // The underlying stream is closed by the RawZipWriter
+            }
+        };
+        if (executor != null) {
+            currentParallelDeflater = new ParallelDeflaterOutputStream(entryOut, executor, threads);
+            return currentOut = new EntryOutputStream(currentParallelDeflater, current);
+        } else {
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            } else {
+                deflater.reset();
+            }
+            currentDeflater = new DeflaterOutputStream(entryOut, deflater, 8192);
+            currentCrc = new CRC32();
+            currentSize = 0;
+            return currentOut = new EntryOutputStream(currentDeflater, current);
+        }
+    }
+
+    /**
+     * Closes the current entry. Has no effect if there is no current entry.
+     * @throws IOException if an I/O error occurs
+     */
+    public void closeEntry() throws IOException {
+        WrittenEntry entry = current;
+        if (entry == null) {
+            return;
+        }
+        current = null;
+        currentOut.flushBuffer();
+        currentOut = null;
+
+        long dataStart = entry.localHeaderOffset + LOCAL_HEADER_SIZE + entry.nameBytes.length;
+        if (currentParallelDeflater != null) {
+            currentParallelDeflater.finish();
+            entry.crc = currentParallelDeflater.getCrc();
+            entry.size = currentParallelDeflater.getSize();
+            currentParallelDeflater = null;
+        } else {
+            currentDeflater.finish();
+            entry.crc = currentCrc.getValue();
+            entry.size = currentSize;
+            currentDeflater = null;
+            currentCrc = null;
+        }
+        entry.compressedSize = out.count - dataStart;
+
+        boolean zip64 = entry.size >= ZIP64_MAGIC || entry.compressedSize >= ZIP64_MAGIC;
+        writeInt(DATA_DESCRIPTOR_SIG);
+        writeInt(entry.crc);
+        if (zip64) {
+            writeLong(entry.compressedSize);
+            writeLong(entry.size);
+        } else {
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+        }
+        entries.add(entry);
+    }
+
+    /**
+     * Writes an entry with already compressed content.
+     * The local header is generated with the known sizes and CRC, so no data descriptor is written.
+     * @param name Name of the entry
+     * @param method Compression method of the content
+     * @param dosTime Modification time in MS-DOS format
+     * @param crc CRC-32 of the uncompressed content
+     * @param compressedSize Size of the compressed content
+     * @param size Size of the uncompressed content
+     * @return Output stream to which exactly {@code compressedSize} bytes of compressed content must be written
+     *         before the next entry is started. Closing it has no effect.
+     * @throws IOException if an I/O error occurs
+     */
+    public OutputStream putRawEntry(String name, int method, long dosTime, long crc, long compressedSize, long size) throws IOException {
+        closeEntry();
+        if (finished) {
+            throw new IOException("Zip file already finished");
+        }
+        WrittenEntry entry = new WrittenEntry(name, FLAG_UTF8, method, dosTime, out.count);
+        entry.crc = crc;
+        entry.compressedSize = compressedSize;
+        entry.size = size;
+        writeLocalHeader(entry, crc, compressedSize, size);
+        entries.add(entry);
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                // The underlying stream is closed by the RawZipWriter
+            }
+        };
+    }
+
+    /**
+     * Adds an entry, which already exists in the file written to, to the central directory.
+     * Used when appending to an existing zip file.
+     * @param entry The existing entry
+     * @throws IOException if an I/O error occurs
+     */
+    public void keepEntry(RawZipFile.Entry entry) throws IOException {
+        closeEntry();
+        WrittenEntry written = new WrittenEntry(entry.getName(), entry.getFlags(), entry.getMethod(),
+                entry.getDosTime(), entry.getLocalHeaderOffset());
+        written.crc = entry.getCrc();
+        written.compressedSize = entry.getCompressedSize();
+        written.size = entry.getSize();
+        entries.add(written);
+    }
+
+    /**
+     * Copies an entry of another zip file without decompressing it.
+     * @param source The zip file containing the entry
+     * @param entry The entry
+     * @throws IOException if an I/O error occurs
+     */
+    public void copyEntry(RawZipFile source, RawZipFile.Entry entry) throws IOException {
+        OutputStream entryOut = putRawEntry(entry.getName(), entry.getMethod(), entry.getDosTime(),
+                entry.getCrc(), entry.getCompressedSize(), entry.getSize());
+        WritableByteChannel target;
+        if (channel != null) {
+            out.flush();
+            target = channel;
+        } else {
+            target = Channels.newChannel(entryOut);
+        }
+        long position = source.getDataOffset(entry);
+        long remaining = entry.getCompressedSize();
+        while (remaining > 0) {
+            long transferred = source.getChannel().transferTo(position, remaining, target);
+            if (transferred <= 0) {
+                throw new EOFException("Unexpected end of " + entry + " in " + source.getFile());
+            }
+            position += transferred;
+            remaining -= transferred;
+            if (channel != null) {
+                out.count += transferred;
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes written to the underlying stream so far
+     */
+    public long getPosition() {
+        return out.count;
+    }
+
+    /**
+     * Closes the current entry and writes the central directory without closing the underlying stream.
+     * Has no effect if already finished.
+     * @throws IOException if an I/O error occurs
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        closeEntry();
+        finished = true;
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+
+        long cdOffset = out.count;
+        for (WrittenEntry entry : entries) {
+            writeCentralHeader(entry);
+        }
+        long cdSize = out.count - cdOffset;
+        long count = entries.size();
+
+        if (count >= ZIP64_MAGIC_COUNT || cdOffset >= ZIP64_MAGIC || cdSize >= ZIP64_MAGIC) {
+            long zip64EndOffset = out.count;
+            writeInt(ZIP64_END_SIG);
+            writeLong(ZIP64_END_SIZE - 12);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(cdSize);
+            writeLong(cdOffset);
+
+            writeInt(ZIP64_LOCATOR_SIG);
+            writeInt(0);
+            writeLong(zip64EndOffset);
+            writeInt(1);
+        }
+
+        writeInt(END_SIG);
+        writeShort(0);
+        writeShort(0);
+        writeShort((int) Math.min(count, ZIP64_MAGIC_COUNT));
+        writeShort((int) Math.min(count, ZIP64_MAGIC_COUNT));
+        writeInt(Math.min(cdSize, ZIP64_MAGIC));
+        writeInt(Math.min(cdOffset, ZIP64_MAGIC));
+        writeShort(0);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeLocalHeader(WrittenEntry entry, long crc, long compressedSize, long size) throws IOException {
+        boolean zip64 = size >= ZIP64_MAGIC || compressedSize >= ZIP64_MAGIC;
+        writeInt(LOCAL_HEADER_SIG);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(crc);
+        writeInt(zip64 ? ZIP64_MAGIC : compressedSize);
+        writeInt(zip64 ? ZIP64_MAGIC : size);
+        writeShort(entry.nameBytes.length);
+        writeShort(zip64 ? 20 : 0);
+        out.write(entry.nameBytes);
+        if (zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(16);
+            writeLong(size);
+            writeLong(compressedSize);
+        }
+    }
+
+    private void writeCentralHeader(WrittenEntry entry) throws IOException {
+        boolean zip64Size = entry.size >= ZIP64_MAGIC;
+        boolean zip64CompressedSize = entry.compressedSize >= ZIP64_MAGIC;
+        boolean zip64Offset = entry.localHeaderOffset >= ZIP64_MAGIC;
+        int extraLength = (zip64Size ? 8 : 0) + (zip64CompressedSize ? 8 : 0) + (zip64Offset ? 8 : 0);
+        boolean zip64 = extraLength > 0;
+
+        writeInt(CENTRAL_HEADER_SIG);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        writeShort(zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(entry.crc);
+        writeInt(zip64CompressedSize ? ZIP64_MAGIC : entry.compressedSize);
+        writeInt(zip64Size ? ZIP64_MAGIC : entry.size);
+        writeShort(entry.nameBytes.length);
+        writeShort(zip64 ? extraLength + 4 : 0);
+        writeShort(0); // comment length
+        writeShort(0); // disk number
+        writeShort(0); // internal attributes
+        writeInt(0); // external attributes
+        writeInt(zip64Offset ? ZIP64_MAGIC : entry.localHeaderOffset);
+        out.write(entry.nameBytes);
+        if (zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(extraLength);
+            if (zip64Size) {
+                writeLong(entry.size);
+            }
+            if (zip64CompressedSize) {
+                writeLong(entry.compressedSize);
+            }
+            if (zip64Offset) {
+                writeLong(entry.localHeaderOffset);
+            }
+        }
+    }
+
+    private void writeShort(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+
+    private void writeInt(long value) throws IOException {
+        writeShort((int) (value & 0xffff));
+        writeShort((int) ((value >>> 16) & 0xffff));
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt(value & ZIP64_MAGIC);
+        writeInt(value >>> 32);
+    }
+
+    private static long toDosTime(long time) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(time);
+        int year = cal.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (cal.get(Calendar.MONTH) + 1) << 21 | cal.get(Calendar.DAY_OF_MONTH) << 16
+                | cal.get(Calendar.HOUR_OF_DAY) << 11 | cal.get(Calendar.MINUTE) << 5 | cal.get(Calendar.SECOND) >> 1;
+    }
+
+    private final class EntryOutputStream extends FilterOutputStream {
+        private final WrittenEntry entry;
+        // Collects single byte writes, so they reach the CRC and the deflater in bulk
+        private final byte[] buffer = new byte[512];
+        private int bufferLength;
+
+        EntryOutputStream(OutputStream out, WrittenEntry entry) {
+            super(out);
+            this.entry = entry;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (current != entry) {
+                throw new IOException("Entry already closed");
+            }
+            if (bufferLength == buffer.length) {
+                flushBuffer();
+            }
+            buffer[bufferLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (current != entry) {
+                throw new IOException("Entry already closed");
+            }
+            flushBuffer();
+            writeThrough(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            out.flush();
+        }
+
+        void flushBuffer() throws IOException {
+            if (bufferLength > 0) {
+                int length = bufferLength;
+                bufferLength = 0;
+                writeThrough(buffer, 0, length);
+            }
+        }
+
+        private void writeThrough(byte[] b, int off, int len) throws IOException {
+            if (currentCrc != null) {
+                currentCrc.update(b, off, len);
+                currentSize += len;
+            }
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current == entry) {
+                closeEntry();
+            }
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static final class WrittenEntry {
+        private final byte[] nameBytes;
+        private final int flags;
+        private final int method;
+        private final long dosTime;
+        private final long localHeaderOffset;
+        private long crc;
+        private long compressedSize;
+        private long size;
+
+        WrittenEntry(String name, int flags, int method, long dosTime, long localHeaderOffset) {
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            this.flags = flags;
+            this.method = method;
+            this.dosTime = dosTime;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.util;
+
+import com.github.steveice10.packetlib.io.NetInput;
+import com.github.steveice10.packetlib.io.NetOutput;
+import com.github.steveice10.packetlib.io.stream.StreamNetInput;
+import com.github.steveice10.packetlib.io.stream.StreamNetOutput;
+import com.google.common.base.Optional;
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.filter.SquashFilter;
+import com.replaymod.replaystudio.io.PacketIndex;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.replay.ReplayMetaData;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores the state of a {@link SquashFilter} at regular points in time in the cache of a replay, so the squashed
+ * packets up to any time can be computed by resuming from the closest prior checkpoint instead of from the very
+ * beginning of the recording.
+ *
+ * The state at each checkpoint is stored as the {@link SquashFilter#checkpoint(long, SquashFilter.Output) checkpoint
+ * output} of the filter at that time. That output is a regular packet sequence which, when passed through a new
+ * filter, results in the same state.
+ * Checkpoints are placed at points of the {@link PacketIndex}, so the recording can be resumed right after them.
+ *
+ * This is a library API only: neither {@link RandomAccessReplay} nor the squash filter of the
+ * {@link com.replaymod.replaystudio.launcher.StreamLauncher} use it. Applications need to {@link #build(int) build}
+ * the checkpoints themselves and call {@link #squash(long, SquashFilter.Output)} where they need the squashed state.
+ */
+public class SquashCheckpoints {
+    /**
+     * Default minimum distance in milliseconds between two checkpoints.
+     */
+    public static final int DEFAULT_INTERVAL = 60_000;
+
+    private static final int VERSION = 2;
+    private static final String ENTRY_PREFIX = "squash/";
+    private static final String ENTRY_CHECKPOINTS = ENTRY_PREFIX + "checkpoints";
+
+    private final ZipReplayFile replayFile;
+    private long[] times;
+    private long[] lastTimes;
+
+    public SquashCheckpoints(ZipReplayFile replayFile) {
+        this.replayFile = replayFile;
+    }
+
+    /**
+     * Returns the times of all checkpoints which have been stored for the replay.
+     * @return Sorted times in milliseconds, empty if no checkpoints have been built yet
+     * @throws IOException if an I/O error occurs
+     */
+    public long[] getTimes() throws IOException {
+        if (times == null) {
+            readTimes();
+        }
+        return times.clone();
+    }
+
+    private void readTimes() throws IOException {
+        times = lastTimes = new long[0];
+        Optional<InputStream> cached = replayFile.getCache(ENTRY_CHECKPOINTS);
+        if (!cached.isPresent()) {
+            return;
+        }
+        try (InputStream rawIn = cached.get()) {
+            NetInput in = new StreamNetInput(rawIn);
+            if (in.readVarInt() != VERSION) {
+                return;
+            }
+            long[] times = new long[in.readVarInt()];
+            long[] lastTimes = new long[times.length];
+            long time = 0;
+            for (int i = 0; i < times.length; i++) {
+                times[i] = time += in.readVarLong();
+                lastTimes[i] = time - in.readVarLong();
+            }
+            this.times = times;
+            this.lastTimes = lastTimes;
+        } catch (IOException ignored) {
+            // Corrupted or incomplete, needs to be rebuilt
+        }
+    }
+
+    /**
+     * Squashes the whole recording once, storing a checkpoint roughly every {@code interval} milliseconds.
+     * Any previously stored checkpoints are replaced.
+     * @param interval Minimum distance in milliseconds between two checkpoints
+     * @throws IOException if an I/O error occurs
+     */
+    public void build(int interval) throws IOException {
+        PacketIndex index = replayFile.getPacketIndex();
+        if (index == null) {
+            return;
+        }
+        List<Long> candidates = new ArrayList<>();
+        for (int i = 0; i < index.size(); i++) {
+            long time = index.getTime(i);
+            if (time > 0 && (candidates.isEmpty() || time - candidates.get(candidates.size() - 1) >= interval)) {
+                candidates.add(time);
+            }
+        }
+
+        List<Long> written = new ArrayList<>();
+        List<Long> writtenLastTimes = new ArrayList<>();
+        SquashFilter filter = new SquashFilter();
+        boolean complete = false;
+        try (ReplayInputStream in = replayFile.getPacketData(getRegistry(State.LOGIN))) {
+            int next = 0;
+            long lastTime = 0;
+            PacketData data;
+            while ((data = in.readPacket()) != null) {
+                if (next < candidates.size() && data.getTime() >= candidates.get(next)) {
+                    // Multiple checkpoints without any packets in between would all have the same state
+                    while (next + 1 < candidates.size() && data.getTime() >= candidates.get(next + 1)) {
+                        next++;
+                    }
+                    long time = candidates.get(next++);
+                    try {
+                        writeCheckpoint(time, filter.copy(), lastTime);
+                    } catch (IOException | RuntimeException e) {
+                        data.release();
+                        throw e;
+                    }
+                    written.add(time);
+                    writtenLastTimes.add(lastTime);
+                }
+                lastTime = data.getTime();
+                try {
+                    filter.onPacket(null, data);
+                } finally {
+                    data.release();
+                }
+            }
+        } finally {
+            filter.release();
+        }
+
+        long[] times = new long[written.size()];
+        long[] lastTimes = new long[written.size()];
+        try (OutputStream rawOut = replayFile.writeCache(ENTRY_CHECKPOINTS)) {
+            NetOutput out = new StreamNetOutput(rawOut);
+            out.writeVarInt(VERSION);
+            out.writeVarInt(times.length);
+            long prev = 0;
+            for (int i = 0; i < times.length; i++) {
+                times[i] = written.get(i);
+                lastTimes[i] = writtenLastTimes.get(i);
+                out.writeVarLong(times[i] - prev);
+                out.writeVarLong(times[i] - lastTimes[i]);
+                prev = times[i];
+            }
+        }
+        this.times = times;
+        this.lastTimes = lastTimes;
+    }
+
+    private void writeCheckpoint(long time, SquashFilter state, long lastTime) throws IOException {
+        try (ReplayOutputStream out = new ReplayOutputStream(replayFile.writeCache(ENTRY_PREFIX + time))) {
+            state.checkpoint(lastTime, out::write);
+        }
+    }
+
+    /**
+     * Squashes all packets up to and including the given time.
+     * Resumes from the closest prior checkpoint if there is one. The result is the same as that of passing all
+     * packets up to that time through a single {@link SquashFilter}.
+     * @param time Time in milliseconds
+     * @param output Receives the squashed packets, see {@link SquashFilter#end(long, SquashFilter.Output)}
+     * @throws IOException if an I/O error occurs
+     */
+    public void squash(long time, SquashFilter.Output output) throws IOException {
+        long[] times = getTimes();
+        int checkpoint = Arrays.binarySearch(times, time);
+        if (checkpoint < 0) {
+            checkpoint = -checkpoint - 2;
+        }
+
+        SquashFilter filter = checkpoint >= 0 ? readCheckpoint(times[checkpoint]) : null;
+        boolean resumed = filter != null;
+        if (!resumed) {
+            filter = new SquashFilter();
+        }
+        try {
+            long lastTime;
+            ReplayInputStream replayIn;
+            if (resumed) {
+                lastTime = lastTimes[checkpoint];
+                // Continuing in the play phase, so this does not produce any login phase packets
+                replayIn = replayFile.getPacketData(getRegistry(State.PLAY), times[checkpoint]);
+            } else {
+                lastTime = 0;
+                replayIn = replayFile.getPacketData(getRegistry(State.LOGIN));
+            }
+            if (replayIn != null) {
+                try (ReplayInputStream in = replayIn) {
+                    PacketData data;
+                    while ((data = in.readPacket()) != null) {
+                        if (data.getTime() > time) {
+                            data.release();
+                            break;
+                        }
+                        lastTime = data.getTime();
+                        try {
+                            filter.onPacket(null, data);
+                        } finally {
+                            data.release();
+                        }
+                    }
+                }
+            }
+            SquashFilter result = filter;
+            filter = null;
+            result.end(lastTime, output);
+        } finally {
+            if (filter != null) {
+                filter.release();
+            }
+        }
+    }
+
+    /**
+     * Reads the specified checkpoint into a new filter.
+     * @return The filter, or {@code null} if the checkpoint could not be found or is truncated or corrupted
+     */
+    private SquashFilter readCheckpoint(long time) throws IOException {
+        Optional<InputStream> cached = replayFile.getCache(ENTRY_PREFIX + time);
+        if (!cached.isPresent()) {
+            return null;
+        }
+        PacketTypeRegistry registry = getRegistry(State.LOGIN);
+        SquashFilter filter = new SquashFilter();
+        boolean complete = false;
+        try (ReplayInputStream in = new ReplayInputStream(registry, cached.get(),
+                ReplayMetaData.CURRENT_FILE_FORMAT_VERSION, registry.getVersion().getId(), true)) {
+            PacketData data;
+            while ((data = in.readPacket()) != null) {
+                try {
+                    filter.onPacket(null, data);
+                } finally {
+                    data.release();
+                }
+            }
+            complete = true;
+        } catch (IOException e) {
+            // Truncated or corrupted, the state of the filter is incomplete, so start from the beginning instead
+        } finally {
+            if (!complete) {
+                filter.release();
+            }
+        }
+        return complete ? filter : null;
+    }
+
+    private PacketTypeRegistry getRegistry(State state) throws IOException {
+        return PacketTypeRegistry.get(replayFile.getMetaData().getProtocolVersion(), state);
+    }
+}
@@ -24,6 +24,7 @@
  */
 package com.replaymod.replaystudio.util;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -50,6 +51,42 @@ public class Utils {
         return b0 << 24 | b1 << 16 | b2 << 8 | b3;
     }
 
+    /**
+     * Reads a variable-length integer (as used for packet ids) from the input stream.
+     * @param in The input stream
+     * @return The integer
+     * @throws EOFException if the end of the stream is reached
+     * @throws IOException if an I/O error occurs or the integer is longer than 5 bytes.
+     */
+    public static int readVarInt(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("VarInt too long (length must be <= 5)");
+    }
+
+    /**
+     * Returns the amount of bytes the specified integer occupies when written as variable-length integer.
+     * @param value The integer
+     * @return Length in bytes
+     */
+    public static int varIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
     /**
      * Writes an integer to the output stream.
      * @param out The output stream
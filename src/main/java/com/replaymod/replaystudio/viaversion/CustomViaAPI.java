@@ -38,6 +38,11 @@ import java.util.SortedSet;
 import java.util.UUID;
 
 class CustomViaAPI implements ViaAPI<Void> {
+    /**
+     * The API of the converter which most recently converted a packet on the current thread.
+     * Every converter binds itself before passing a packet to ViaVersion, so this is always the right one while
+     * ViaVersion is running, even if multiple converters are in use concurrently or on the same thread.
+     */
     static final ThreadLocal<CustomViaAPI> INSTANCE = new ThreadLocal<>();
 
     private final int sourceVersion;
@@ -43,16 +43,27 @@ public class CustomViaManager extends ViaManager {
         super(new CustomViaPlatform(), new CustomViaInjector(), null, null);
     }
 
+    // Multiple converters may be in use concurrently, each on its own thread. The only connection visible to
+    // ViaVersion is the one of the converter currently bound to the calling thread (if any).
+
     @Override
     public Map<UUID, UserConnection> getPortedPlayers() {
-        UserConnection user = CustomViaAPI.INSTANCE.get().user();
+        CustomViaAPI api = CustomViaAPI.INSTANCE.get();
+        if (api == null) {
+            return Collections.emptyMap();
+        }
+        UserConnection user = api.user();
         UUID uuid = user.get(ProtocolInfo.class).getUuid();
         return Collections.singletonMap(uuid, user);
     }
 
     @Override
     public UserConnection getConnection(UUID playerUUID) {
-        UserConnection user = CustomViaAPI.INSTANCE.get().user();
+        CustomViaAPI api = CustomViaAPI.INSTANCE.get();
+        if (api == null) {
+            return null;
+        }
+        UserConnection user = api.user();
         if (playerUUID.equals(user.get(ProtocolInfo.class).getUuid())) {
             return user;
         }
@@ -40,9 +40,14 @@ import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
 import com.replaymod.replaystudio.us.myles.ViaVersion.protocols.base.ProtocolInfo;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import static com.replaymod.replaystudio.replay.ReplayMetaData.PROTOCOL_FOR_FILE_FORMAT;
@@ -63,7 +68,15 @@ public class ViaVersionPacketConverter {
     }
 
     public static ViaVersionPacketConverter createForProtocolVersion(int input, int output) {
-        return new ViaVersionPacketConverter(input, output);
+        return new ViaVersionPacketConverter(input, output, true);
+    }
+
+    /**
+     * Creates a converter which passes every packet through the ViaVersion pipeline, even those which would leave it
+     * unchanged. Only useful to check the results of the fast path against.
+     */
+    static ViaVersionPacketConverter createWithoutFastPath(int input, int output) {
+        return new ViaVersionPacketConverter(input, output, false);
     }
 
     @Deprecated
@@ -87,15 +100,29 @@ public class ViaVersionPacketConverter {
         return ProtocolRegistry.getProtocolPath(output, input) != null;
     }
 
+    private static Field outgoing;
+
     private final UserConnection user;
     private final CustomViaAPI viaAPI;
     private final ProtocolPipeline pipeline;
+    /**
+     * Per state, the ids of packets which are handled by at least one protocol in the pipeline.
+     * {@code null} if some protocol in the pipeline may touch any packet.
+     */
+    private final EnumMap<State, BitSet> handledIds;
     private List<ByteBuf> out = new ArrayList<>();
+    private long fastPathCount;
+    private long fullPathCount;
 
-    private ViaVersionPacketConverter(int inputProtocol, int outputProtocol) {
-        CustomViaManager.initialize();
-
-        List<Pair<Integer, Protocol>> path = ProtocolRegistry.getProtocolPath(outputProtocol, inputProtocol);
+    private ViaVersionPacketConverter(int inputProtocol, int outputProtocol, boolean fastPath) {
+        List<Pair<Integer, Protocol>> path;
+        if (inputProtocol == outputProtocol) {
+            // Nothing to convert, so there's no need to pay for setting up ViaVersion
+            path = null;
+        } else {
+            CustomViaManager.initialize();
+            path = ProtocolRegistry.getProtocolPath(outputProtocol, inputProtocol);
+        }
         if (path != null) {
             user = new DummyUserConnection();
             viaAPI = new CustomViaAPI(inputProtocol, user);
@@ -105,13 +132,91 @@ public class ViaVersionPacketConverter {
             protocolInfo.setUsername("$Camera$");
             protocolInfo.setUuid(UUID.randomUUID());
             path.stream().map(Pair::getValue).forEachOrdered(pipeline::add);
+            handledIds = fastPath ? getHandledIds(pipeline.pipes()) : null;
         } else {
             user = null;
             viaAPI = null;
             pipeline = null;
+            handledIds = null;
         }
     }
 
+    /**
+     * Collects the ids of all outgoing packets for which any of the given protocols has a mapping.
+     * ViaVersion passes packets without a mapping through a protocol unchanged (same id, same content), so packets
+     * whose id is not in the result leave the whole pipeline as they entered it.
+     * @return Handled ids per state or {@code null} if one of the protocols overrides the default transform logic
+     */
+    @SuppressWarnings("unchecked")
+    private static EnumMap<State, BitSet> getHandledIds(List<Protocol> protocols) {
+        EnumMap<State, BitSet> result = new EnumMap<>(State.class);
+        for (State state : State.values()) {
+            result.put(state, new BitSet());
+        }
+        try {
+            if (outgoing == null) {
+                Field field = Protocol.class.getDeclaredField("outgoing");
+                field.setAccessible(true);
+                outgoing = field;
+            }
+            for (Protocol protocol : protocols) {
+                Method transform = protocol.getClass().getMethod("transform", Direction.class, State.class, PacketWrapper.class);
+                if (transform.getDeclaringClass() != Protocol.class) {
+                    return null; // custom transform logic, can't know which packets it touches
+                }
+                for (Protocol.Packet packet : ((Map<Protocol.Packet, Protocol.ProtocolPacket>) outgoing.get(protocol)).keySet()) {
+                    result.get(packet.getState()).set(packet.getPacketId());
+                }
+            }
+        } catch (NoSuchFieldException | NoSuchMethodException | IllegalAccessException e) {
+            return null; // different ViaVersion internals, always take the full path
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether this converter actually modifies packets.
+     * If it does not, {@link #convertPacket(ByteBuf, State)} returns its input unchanged and does not need to see
+     * every packet.
+     * @return {@code true} if input and output protocol differ, {@code false} otherwise
+     */
+    public boolean isConverting() {
+        return user != null;
+    }
+
+    /**
+     * Checks whether the packet with the given id would leave the conversion pipeline unchanged.
+     * If so, the caller may use the packet as is instead of passing it to {@link #convertPacket(ByteBuf, State)} and
+     * the packet is accounted for in {@link #getFastPathCount()}.
+     * No protocol in the pipeline has any state associated with such packets, so skipping them is safe.
+     * @param packetId Id of the packet in the input protocol
+     * @param state Protocol state of the packet
+     * @return {@code true} if the packet does not need to be converted, {@code false} otherwise
+     */
+    public boolean passThrough(int packetId, State state) {
+        if (user != null && (handledIds == null || handledIds.get(state).get(packetId))) {
+            return false;
+        }
+        fastPathCount++;
+        return true;
+    }
+
+    /**
+     * Returns the amount of packets which were passed through without conversion.
+     * @return Amount of packets
+     */
+    public long getFastPathCount() {
+        return fastPathCount;
+    }
+
+    /**
+     * Returns the amount of packets which went through the ViaVersion pipeline.
+     * @return Amount of packets
+     */
+    public long getFullPathCount() {
+        return fullPathCount;
+    }
+
     /**
      * @deprecated Use {@link #convertPacket(ByteBuf,State)} instead.
      */
@@ -127,12 +232,24 @@ public class ViaVersionPacketConverter {
      */
     public List<ByteBuf> convertPacket(ByteBuf buf, State state) throws IOException {
         if (user == null) {
+            fastPathCount++;
+            buf.retain();
+            return Collections.singletonList(buf);
+        }
+        int readerIndex = buf.readerIndex();
+        int packetId = new ByteBufNetInput(buf).readVarInt();
+        if (handledIds != null && !handledIds.get(state).get(packetId)) {
+            fastPathCount++;
+            buf.readerIndex(readerIndex);
             buf.retain();
             return Collections.singletonList(buf);
         }
-        CustomViaAPI.INSTANCE.set(viaAPI);
+        fullPathCount++;
+        if (CustomViaAPI.INSTANCE.get() != viaAPI) {
+            // Stays bound after this packet, so converting a sequence of packets on the same thread only binds once
+            CustomViaAPI.INSTANCE.set(viaAPI);
+        }
         try {
-            int packetId = new ByteBufNetInput(buf).readVarInt();
             PacketWrapper packetWrapper = new PacketWrapper(packetId, buf, user);
 
             try {
@@ -157,7 +274,16 @@ public class ViaVersionPacketConverter {
             throw e;
         } catch (Exception e) {
             throw new IOException("Exception during ViaVersion conversion:", e);
-        } finally {
+        }
+    }
+
+    /**
+     * Unbinds this converter from the calling thread if it was the last one used on it.
+     * Calling this is optional, otherwise the converter is retained until another converter is used on the same
+     * thread or the thread dies.
+     */
+    public void release() {
+        if (viaAPI != null && CustomViaAPI.INSTANCE.get() == viaAPI) {
             CustomViaAPI.INSTANCE.remove();
         }
     }
@@ -0,0 +1,113 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.benchmark;
+
+import com.github.steveice10.netty.buffer.ByteBufAllocator;
+import com.github.steveice10.netty.buffer.PooledByteBufAllocator;
+import com.github.steveice10.netty.buffer.UnpooledByteBufAllocator;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityTeleport;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.util.IPosition;
+import com.replaymod.replaystudio.util.Location;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of synthesizing packets (as done by the squash filter and quick mode) with pooled and unpooled
+ * packet buffers. Run with {@code -prof gc} to compare the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketAllocationBenchmark {
+    private static final int PACKETS = 1024;
+
+    @Param({"pooled", "unpooled"})
+    public String allocator;
+
+    private ByteBufAllocator previousAllocator;
+    private PacketTypeRegistry registry;
+    private Location[] locations;
+    private IPosition[] positions;
+
+    @Setup
+    public void setup() {
+        previousAllocator = Packet.getAllocator();
+        Packet.setAllocator("pooled".equals(allocator) ? PooledByteBufAllocator.DEFAULT : UnpooledByteBufAllocator.DEFAULT);
+        registry = PacketTypeRegistry.get(ProtocolVersion.v1_14, com.replaymod.replaystudio.us.myles.ViaVersion.packets.State.PLAY);
+        locations = new Location[PACKETS];
+        positions = new IPosition[PACKETS];
+        for (int i = 0; i < PACKETS; i++) {
+            locations[i] = new Location(i * 0.5, 64, -i * 0.25, i % 360, 0);
+            positions[i] = new IPosition(i, i % 256, -i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        Packet.setAllocator(previousAllocator);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void entityTeleport(Blackhole blackhole) throws IOException {
+        for (int i = 0; i < PACKETS; i++) {
+            Packet packet = PacketEntityTeleport.write(registry, i, locations[i], true);
+            blackhole.consume(packet.getBuf().readableBytes());
+            packet.release();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public void blockChange(Blackhole blackhole) throws IOException {
+        for (int i = 0; i < PACKETS; i++) {
+            Packet packet = PacketBlockChange.write(registry, positions[i], i);
+            blackhole.consume(packet.getBuf().readableBytes());
+            packet.release();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.benchmark;
+
+import com.google.gson.JsonObject;
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.filter.StreamFilter;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.stream.AbstractPacketStream;
+import com.replaymod.replaystudio.stream.PacketStream;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes synthetic packets through a chain of cheap filters to measure the overhead of {@link AbstractPacketStream}
+ * itself. {@code chain} runs five filters which apply to the whole stream, {@code windowed} runs many filters each of
+ * which only applies to a short time window.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PacketStreamBenchmark {
+    private static final int PACKETS = 10_000_000;
+
+    @Param({"50"})
+    public int windowedFilters;
+
+    private Packet packet;
+
+    @Setup
+    public void setup() {
+        PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_14,
+                com.replaymod.replaystudio.us.myles.ViaVersion.packets.State.PLAY);
+        packet = new Packet(registry, PacketType.KeepAlive);
+        packet.getBuf().writeLong(0);
+    }
+
+    private long drain(PacketStream stream) throws IOException {
+        long count = 0;
+        while (stream.next() != null) {
+            count++;
+        }
+        return count + stream.end().size();
+    }
+
+    private AbstractPacketStream source() {
+        int[] time = {0};
+        return AbstractPacketStream.of(() -> time[0] < PACKETS ? new PacketData(time[0]++, packet) : null);
+    }
+
+    @Benchmark
+    public long chain() throws IOException {
+        AbstractPacketStream stream = source();
+        for (int i = 0; i < 5; i++) {
+            stream.addFilter(new PassFilter(i == 2));
+        }
+        return drain(stream);
+    }
+
+    @Benchmark
+    public long windowed() throws IOException {
+        AbstractPacketStream stream = source();
+        long window = PACKETS / windowedFilters;
+        for (int i = 0; i < windowedFilters; i++) {
+            stream.addFilter(new PassFilter(false), i * window, i * window + window / 10);
+        }
+        return drain(stream);
+    }
+
+    private static class PassFilter implements StreamFilter {
+        private final boolean insert;
+
+        PassFilter(boolean insert) {
+            this.insert = insert;
+        }
+
+        @Override
+        public String getName() {
+            return "pass";
+        }
+
+        @Override
+        public void init(Studio studio, JsonObject config) {
+        }
+
+        @Override
+        public void onStart(PacketStream stream) {
+        }
+
+        @Override
+        public boolean onPacket(PacketStream stream, PacketData data) {
+            if (insert && (data.getTime() & 0xff) == 0) {
+                stream.insert(new PacketData(data.getTime(), data.getPacket()));
+            }
+            return true;
+        }
+
+        @Override
+        public void onEnd(PacketStream stream, long timestamp) {
+        }
+    }
+}
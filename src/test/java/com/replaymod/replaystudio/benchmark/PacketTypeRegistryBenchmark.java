@@ -0,0 +1,125 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.benchmark;
+
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-packet cost of looking up packet types by id and ids by type in {@link PacketTypeRegistry}.
+ * The {@code hashMap*} benchmarks replicate the previous boxed {@link HashMap} based lookup for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketTypeRegistryBenchmark {
+    private static final int LOOKUPS = 4096;
+
+    private PacketTypeRegistry registry;
+    private Map<Integer, PacketType> typeForId;
+    private Map<PacketType, Integer> idForType;
+    private int[] ids;
+    private PacketType[] types;
+
+    @Setup
+    public void setup() {
+        registry = PacketTypeRegistry.get(ProtocolVersion.v1_14, com.replaymod.replaystudio.us.myles.ViaVersion.packets.State.PLAY);
+        typeForId = new HashMap<>();
+        idForType = new HashMap<>();
+        List<Integer> knownIds = new ArrayList<>();
+        for (int id = 0; id < 256; id++) {
+            PacketType type = registry.getType(id);
+            if (!type.isUnknown()) {
+                typeForId.put(id, type);
+                idForType.put(type, id);
+                knownIds.add(id);
+            }
+        }
+
+        Random random = new Random(42);
+        ids = new int[LOOKUPS];
+        types = new PacketType[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            ids[i] = knownIds.get(random.nextInt(knownIds.size()));
+            types[i] = typeForId.get(ids[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void hashMapGetType(Blackhole blackhole) {
+        PacketType unknown = PacketType.UnknownPlay;
+        for (int id : ids) {
+            blackhole.consume(typeForId.getOrDefault(id, unknown));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void arrayGetType(Blackhole blackhole) {
+        for (int id : ids) {
+            blackhole.consume(registry.getType(id));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void hashMapGetId(Blackhole blackhole) {
+        for (PacketType type : types) {
+            blackhole.consume(idForType.get(type));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public void arrayGetIdOrMinusOne(Blackhole blackhole) {
+        for (PacketType type : types) {
+            blackhole.consume(registry.getIdOrMinusOne(type));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.benchmark;
+
+import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.replaymod.replaystudio.util.Utils.writeInt;
+
+/**
+ * Compares the throughput of writing a replay via the single-threaded {@link java.util.zip.ZipOutputStream}
+ * (threads = 0) with the parallel compression mode of {@link ReplayOutputStream} for varying numbers of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParallelDeflateBenchmark {
+    private static final int DATA_SIZE = 64 * 1024 * 1024;
+
+    @Param({"0", "1", "2", "4", "8", "16", "32"})
+    public int threads;
+
+    private byte[] data;
+    private ExecutorService executor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        data = generateRecording(DATA_SIZE);
+        if (threads > 0) {
+            executor = Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        CountingNullOutputStream sink = new CountingNullOutputStream();
+        ReplayOutputStream out;
+        if (threads > 0) {
+            out = new ReplayOutputStream(ProtocolVersion.v1_14, sink, null, executor, threads);
+        } else {
+            out = new ReplayOutputStream(ProtocolVersion.v1_14, sink, null);
+        }
+        for (int i = 0; i < data.length; i += 8192) {
+            out.write(data, i, Math.min(8192, data.length - i));
+        }
+        out.close();
+        return sink.count;
+    }
+
+    /**
+     * Generates framed packet data which compresses roughly as well as real recordings: mostly small packets with
+     * repetitive headers and somewhat random content.
+     */
+    static byte[] generateRecording(int size) throws IOException {
+        Random random = new Random(42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 4096);
+        int time = 0;
+        byte[] payload = new byte[4096];
+        while (out.size() < size) {
+            time += random.nextInt(5);
+            int length = 1 + (random.nextInt(16) == 0 ? random.nextInt(payload.length) : random.nextInt(40));
+            payload[0] = (byte) random.nextInt(0x60);
+            for (int i = 1; i < length; i++) {
+                payload[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(256) : i % 16);
+            }
+            writeInt(out, time);
+            writeInt(out, length);
+            out.write(payload, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    private static final class CountingNullOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
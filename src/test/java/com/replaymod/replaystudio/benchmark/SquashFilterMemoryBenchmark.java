@@ -0,0 +1,171 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.benchmark;
+
+import com.github.steveice10.opennbt.tag.builtin.CompoundTag;
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.filter.SquashFilter;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.BlockStorage;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.Chunk;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.Column;
+import com.replaymod.replaystudio.protocol.packets.PacketUpdateLight;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.util.IPosition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the {@link SquashFilter} state of a synthetic world with many loaded chunks, each with a few sections, light
+ * and a number of pending block changes, and prints the heap retained by that state after each iteration.
+ * The reported time is mostly spent encoding and decoding the synthetic packets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class SquashFilterMemoryBenchmark {
+    @Param({"50000"})
+    public int chunks;
+
+    @Param({"2"})
+    public int sections;
+
+    @Param({"64"})
+    public int blockChangesPerChunk;
+
+    private PacketTypeRegistry registry;
+    private SquashFilter filter;
+
+    @Setup
+    public void setup() {
+        registry = PacketTypeRegistry.get(ProtocolVersion.v1_14,
+                com.replaymod.replaystudio.us.myles.ViaVersion.packets.State.PLAY);
+    }
+
+    @Benchmark
+    public SquashFilter buildWorld() throws IOException {
+        Random random = new Random(0);
+        int size = (int) Math.ceil(Math.sqrt(chunks));
+        SquashFilter filter = new SquashFilter();
+        long time = 0;
+        for (int i = 0; i < chunks; i++) {
+            int x = i % size - size / 2;
+            int z = i / size - size / 2;
+            feed(filter, time, PacketChunkData.load(column(random, x, z)).write(registry));
+            feed(filter, time, light(x, z).write(registry));
+            time++;
+        }
+        for (int i = 0; i < chunks; i++) {
+            int x = i % size - size / 2;
+            int z = i / size - size / 2;
+            for (int j = 0; j < blockChangesPerChunk; j++) {
+                IPosition pos = new IPosition(x << 4 | random.nextInt(16), random.nextInt(sections * 16), z << 4 | random.nextInt(16));
+                feed(filter, time, PacketBlockChange.write(registry, pos, random.nextInt(4096)));
+            }
+            time++;
+        }
+        return this.filter = filter;
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportRetainedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long withState = usedHeap(runtime);
+        filter.release();
+        filter = null;
+        long withoutState = usedHeap(runtime);
+        System.out.println();
+        System.out.println(String.format("Retained by squash state: %.1f MB", (withState - withoutState) / 1e6));
+    }
+
+    private static long usedHeap(Runtime runtime) {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void feed(SquashFilter filter, long time, Packet packet) throws IOException {
+        PacketData data = new PacketData(time, packet);
+        try {
+            filter.onPacket(null, data);
+        } finally {
+            data.release();
+        }
+    }
+
+    private Column column(Random random, int x, int z) {
+        Chunk[] chunks = new Chunk[16];
+        for (int i = 0; i < sections; i++) {
+            Chunk chunk = new Chunk();
+            chunk.blocks = new BlockStorage(registry);
+            for (int y = 0; y < 16; y++) {
+                // Layers of a few different blocks, so the palette is of a realistic size
+                int state = random.nextInt(32);
+                for (int bz = 0; bz < 16; bz++) {
+                    for (int bx = 0; bx < 16; bx++) {
+                        chunk.blocks.set(bx, y, bz, state);
+                    }
+                }
+            }
+            chunks[i] = chunk;
+        }
+        return new Column(x, z, chunks, new byte[1024], new CompoundTag[0], new CompoundTag(""), null, true);
+    }
+
+    private PacketUpdateLight light(int x, int z) {
+        List<byte[]> skyLight = new ArrayList<>(Collections.nCopies(18, null));
+        List<byte[]> blockLight = new ArrayList<>(Collections.nCopies(18, null));
+        for (int i = 0; i < sections; i++) {
+            skyLight.set(i + 1, new byte[2048]);
+            blockLight.set(i + 1, new byte[2048]);
+        }
+        return new PacketUpdateLight(x, z, skyLight, blockLight);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.filter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class BlockChangeMapTest {
+
+    @Test
+    public void testIndexRoundTrip() {
+        for (int i = 0; i < 4096; i++) {
+            int x = i & 15, y = i >> 8, z = i >> 4 & 15;
+            int index = BlockChangeMap.index(x, y, z);
+            assertEquals(x, BlockChangeMap.x(index));
+            assertEquals(y, BlockChangeMap.y(index));
+            assertEquals(z, BlockChangeMap.z(index));
+        }
+    }
+
+    @Test
+    public void testLatestChangeWins() throws IOException {
+        Random random = new Random(0);
+        BlockChangeMap first = new BlockChangeMap();
+        BlockChangeMap second = new BlockChangeMap();
+        Map<Integer, long[]> expected = new HashMap<>();
+        long time = 0;
+        for (int i = 0; i < 10000; i++) {
+            int index = random.nextInt(4096);
+            int state = random.nextInt(1000);
+            time += random.nextInt(3);
+            (i < 5000 ? first : second).update(index, time, state);
+            expected.put(index, new long[]{time, state});
+        }
+
+        first.merge(second);
+        assertEquals(expected.size(), first.size());
+        first.forEach((index, changeTime, state) -> {
+            long[] change = expected.get(index);
+            assertNotNull(change);
+            assertEquals(change[0], changeTime);
+            assertEquals(change[1], state);
+        });
+    }
+
+    @Test
+    public void testOlderChangeIgnored() throws IOException {
+        BlockChangeMap map = new BlockChangeMap();
+        map.update(42, 10, 1);
+        map.update(42, 5, 2);
+        assertEquals(1, map.size());
+        map.forEach((index, time, state) -> {
+            assertEquals(42, index);
+            assertEquals(10, time);
+            assertEquals(1, state);
+        });
+    }
+}
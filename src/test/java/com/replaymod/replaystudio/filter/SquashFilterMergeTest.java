@@ -0,0 +1,259 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.filter;
+
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.TestPackets;
+import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
+import com.replaymod.replaystudio.protocol.packets.PacketDestroyEntities;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityMovement;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityTeleport;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.Pair;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import com.replaymod.replaystudio.util.DPosition;
+import com.replaymod.replaystudio.util.IPosition;
+import com.replaymod.replaystudio.util.Location;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static com.replaymod.replaystudio.protocol.TestPackets.chunk;
+import static com.replaymod.replaystudio.protocol.TestPackets.describe;
+import static com.replaymod.replaystudio.protocol.TestPackets.respawn;
+import static com.replaymod.replaystudio.protocol.TestPackets.spawn;
+import static com.replaymod.replaystudio.protocol.TestPackets.updateTime;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Checks that squashing a stream in partitions and merging them yields exactly the same result as squashing it in one
+ * go, regardless of where the stream is split and in which order the partitions are merged.
+ * Every packet has its own timestamp, so the output order of the squashed state is fully determined.
+ */
+public class SquashFilterMergeTest {
+    private static final long END = Long.MAX_VALUE / 2;
+
+    private final PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_14, State.PLAY);
+    private List<PacketData> stream;
+    private List<String> expected;
+
+    @Before
+    public void setup() throws IOException {
+        stream = stream();
+        SquashFilter filter = new SquashFilter();
+        feed(filter, 0, stream.size());
+        expected = end(filter);
+        assertFalse(expected.isEmpty());
+    }
+
+    @After
+    public void cleanup() {
+        stream.forEach(PacketData::release);
+    }
+
+    @Test
+    public void testTwoPartitionsAtEverySplit() throws IOException {
+        for (int split = 0; split <= stream.size(); split++) {
+            SquashFilter first = SquashFilter.forPartition();
+            feed(first, 0, split);
+            SquashFilter second = SquashFilter.forPartition();
+            feed(second, split, stream.size());
+
+            SquashFilter result = new SquashFilter();
+            result.merge(first);
+            result.merge(second);
+            assertEquals("Split at " + split, expected, end(result));
+        }
+    }
+
+    @Test
+    public void testPartitionAfterRegularFilterAtEverySplit() throws IOException {
+        for (int split = 0; split <= stream.size(); split++) {
+            SquashFilter first = new SquashFilter();
+            feed(first, 0, split);
+            SquashFilter second = SquashFilter.forPartition();
+            feed(second, split, stream.size());
+
+            first.merge(second);
+            assertEquals("Split at " + split, expected, end(first));
+        }
+    }
+
+    @Test
+    public void testUnmergedPartition() throws IOException {
+        SquashFilter partition = SquashFilter.forPartition();
+        feed(partition, 0, stream.size());
+        assertEquals(expected, end(partition));
+    }
+
+    @Test
+    public void testGroupings() throws IOException {
+        Random random = new Random(0);
+        for (int run = 0; run < 200; run++) {
+            int count = 2 + random.nextInt(5);
+            int[] bounds = new int[count + 1];
+            for (int i = 1; i < count; i++) {
+                bounds[i] = random.nextInt(stream.size() + 1);
+            }
+            bounds[count] = stream.size();
+            Arrays.sort(bounds);
+
+            List<SquashFilter> partitions = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                SquashFilter partition = SquashFilter.forPartition();
+                feed(partition, bounds[i], bounds[i + 1]);
+                partitions.add(partition);
+            }
+
+            // Merge random neighbours until only one is left, so partitions get merged into merged partitions
+            while (partitions.size() > 1) {
+                int i = random.nextInt(partitions.size() - 1);
+                partitions.get(i).merge(partitions.remove(i + 1));
+            }
+            SquashFilter result = new SquashFilter();
+            result.merge(partitions.get(0));
+            assertEquals("Bounds " + Arrays.toString(bounds), expected, end(result));
+        }
+    }
+
+    private void feed(SquashFilter filter, int from, int to) throws IOException {
+        for (PacketData data : stream.subList(from, to)) {
+            PacketData copy = data.copy();
+            try {
+                filter.onPacket(null, copy);
+            } finally {
+                copy.release();
+            }
+        }
+    }
+
+    private static List<String> end(SquashFilter filter) throws IOException {
+        List<String> result = new ArrayList<>();
+        filter.end(END, data -> {
+            result.add(describe(data));
+            data.release();
+        });
+        return result;
+    }
+
+    private List<PacketData> stream() throws IOException {
+        List<Packet> packets = new ArrayList<>();
+
+        // Initial world with two entities which move around and a third one which is gone again soon
+        packets.add(chunk(registry, new Random(1), 0, 0, 1));
+        packets.add(light(0, 0, 1));
+        packets.add(chunk(registry, new Random(2), 1, 0, 1));
+        packets.add(light(1, 0, 2));
+        packets.add(spawn(registry, 1, 0, 64, 0));
+        packets.add(spawn(registry, 2, 20, 64, 0));
+        packets.add(spawn(registry, 3, 0, 64, 20));
+        packets.add(blockChange(3, 2, 5, 10));
+        packets.add(move(1, 0.5, 0, 0.25, null));
+        packets.add(move(2, -1, 0, 0, null));
+        packets.add(move(1, 0, 0, 0.5, new Pair<>(90f, 0f)));
+        packets.add(blockChange(17, 10, 3, 11));
+        packets.add(updateTime(registry, 1000, 1000));
+        packets.add(teleport(1, 8, 70, 8));
+        packets.add(move(1, 6, -1, 0, null));
+        packets.add(move(1, 6, -1, 0, new Pair<>(180f, 45f)));
+
+        // Destroy and re-spawn the same entity id, twice
+        packets.add(PacketDestroyEntities.write(registry, 2));
+        packets.add(chunk(registry, new Random(3), 2, 0, 1));
+        packets.add(PacketDestroyEntities.write(registry, 3));
+        packets.add(spawn(registry, 2, 40, 64, 0));
+        packets.add(move(2, 0, 0.5, 0, null));
+        packets.add(blockChange(35, 1, 1, 12));
+
+        // Unload a chunk, change the ones still loaded and load it again
+        packets.add(PacketChunkData.unload(1, 0).write(registry));
+        packets.add(blockChange(3, 2, 5, 13));
+        packets.add(move(1, -2, 0, 0, null));
+        packets.add(light(0, 0, 4));
+        packets.add(PacketDestroyEntities.write(registry, 2, 3));
+        packets.add(spawn(registry, 2, 30, 64, 0));
+        packets.add(move(2, 1, 0, 1, null));
+        packets.add(chunk(registry, new Random(5), 1, 0, 1));
+        packets.add(blockChange(18, 4, 6, 14));
+        packets.add(light(1, 0, 6));
+        packets.add(updateTime(registry, 2000, 2000));
+
+        // New world, previous state only matters where it is not reset by this
+        packets.add(respawn(registry));
+        packets.add(chunk(registry, new Random(7), 0, 0, 1));
+        packets.add(spawn(registry, 1, 1, 64, 1));
+        packets.add(move(1, 1, 0, 0, null));
+        packets.add(blockChange(4, 3, 2, 15));
+        packets.add(PacketChunkData.unload(2, 0).write(registry));
+        packets.add(move(1, 1, 0, 0, new Pair<>(0f, 10f)));
+        packets.add(light(0, 0, 8));
+        packets.add(PacketDestroyEntities.write(registry, 1));
+        packets.add(spawn(registry, 1, 2, 64, 2));
+        packets.add(teleport(1, 3, 65, 3));
+        packets.add(spawn(registry, 3, 5, 64, 5));
+        packets.add(blockChange(5, 3, 2, 16));
+
+        List<PacketData> result = new ArrayList<>();
+        for (int i = 0; i < packets.size(); i++) {
+            result.add(new PacketData(i * 10, packets.get(i)));
+        }
+        return result;
+    }
+
+    private Packet light(int x, int z, int seed) throws IOException {
+        Random random = new Random(seed);
+        byte[] skyLight = new byte[2048];
+        random.nextBytes(skyLight);
+        byte[] blockLight = null;
+        if (seed % 2 == 0) {
+            // Only some updates touch both, so the other one has to be kept from an earlier update
+            blockLight = new byte[2048];
+            random.nextBytes(blockLight);
+        }
+        return TestPackets.light(registry, x, z, 1, skyLight, blockLight);
+    }
+
+    private Packet blockChange(int x, int y, int z, int state) throws IOException {
+        return PacketBlockChange.write(registry, new IPosition(x, y, z), state);
+    }
+
+    private Packet move(int id, double dx, double dy, double dz, Pair<Float, Float> yawPitch) throws IOException {
+        return PacketEntityMovement.write(registry, id, new DPosition(dx, dy, dz), yawPitch, true);
+    }
+
+    private Packet teleport(int id, double x, double y, double z) throws IOException {
+        return PacketEntityTeleport.write(registry, id, new Location(x, y, z, 0, 0), true);
+    }
+}
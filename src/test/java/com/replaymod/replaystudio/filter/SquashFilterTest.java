@@ -0,0 +1,317 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.filter;
+
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.Column;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityMovement;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityTeleport;
+import com.replaymod.replaystudio.protocol.packets.PacketUpdateLight;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.Pair;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.Triple;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import com.replaymod.replaystudio.util.DPosition;
+import com.replaymod.replaystudio.util.IPosition;
+import com.replaymod.replaystudio.util.Location;
+import com.replaymod.replaystudio.util.PacketUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static com.replaymod.replaystudio.protocol.TestPackets.chunk;
+import static com.replaymod.replaystudio.protocol.TestPackets.joinGame;
+import static com.replaymod.replaystudio.protocol.TestPackets.light;
+import static com.replaymod.replaystudio.protocol.TestPackets.spawn;
+import static com.replaymod.replaystudio.protocol.TestPackets.updateTime;
+import static org.junit.Assert.assertEquals;
+
+public class SquashFilterTest {
+    private static final PacketTypeRegistry REGISTRY = PacketTypeRegistry.get(ProtocolVersion.v1_14, State.PLAY);
+    // Relative movement is encoded in 1/32 bytes before 1.9 and in 1/4096 shorts since
+    private static final ProtocolVersion[] MOVEMENT_VERSIONS = {ProtocolVersion.v1_8, ProtocolVersion.v1_14};
+
+    /**
+     * Checks that merging the parts of the state yields the same order as sorting all of them at once, with ties in
+     * time between most kinds of parts and with chunks and entities which only start later.
+     */
+    @Test
+    public void testEndOrderMatchesStableSort() throws IOException {
+        // All packets of the state in the order of the parts they belong to, which is how they were concatenated
+        // before being sorted by time. Chunks and entities are in the iteration order of their maps.
+        List<Map.Entry<Long, String>> state = Arrays.asList(
+                entry(10, "Chat"), // unhandled
+                entry(10, "UpdateTime 1"), // world
+                entry(20, "UpdateTime 2"),
+                entry(30, "UpdateTime 3"),
+                entry(40, "UpdateTime 4"),
+                entry(50, "SetSlot"), // main inventory
+                entry(50, "Difficulty"), // latest only
+                entry(10, "SpawnMob 1"), // entities
+                entry(20, "move 1"),
+                entry(10, "SpawnMob 2"),
+                entry(40, "SpawnMob 3"),
+                entry(30, "UnloadChunk 5,5"), // unloaded chunks
+                entry(10, "ChunkData 0,0"), // chunks
+                entry(20, "BlockChange 1,2,3"),
+                entry(10, "UpdateLight 0,0"),
+                entry(10, "ChunkData 1,0"),
+                entry(30, "BlockChange 17,2,3"),
+                entry(50, "BlockChange 33,2,3"),
+                entry(40, "UpdateLight 2,0")
+        );
+        List<Map.Entry<Long, String>> sorted = new ArrayList<>(state);
+        sorted.sort(Comparator.comparingLong(Map.Entry::getKey)); // stable
+        List<String> expectedEnd = new ArrayList<>();
+        List<String> expectedCheckpoint = new ArrayList<>();
+        expectedEnd.add("JoinGame");
+        expectedCheckpoint.add("0 JoinGame");
+        for (Map.Entry<Long, String> e : sorted) {
+            expectedEnd.add(e.getValue());
+            expectedCheckpoint.add(e.getKey() + " " + e.getValue());
+        }
+
+        List<String> actualEnd = new ArrayList<>();
+        tiedStream().end(50, data -> {
+            actualEnd.add(label(data));
+            data.release();
+        });
+        assertEquals(expectedEnd, actualEnd);
+
+        List<String> actualCheckpoint = new ArrayList<>();
+        tiedStream().checkpoint(50, data -> {
+            actualCheckpoint.add(data.getTime() + " " + label(data));
+            data.release();
+        });
+        assertEquals(expectedCheckpoint, actualCheckpoint);
+    }
+
+    @Test
+    public void testSingleAxisMovementIsKept() throws IOException {
+        for (ProtocolVersion version : MOVEMENT_VERSIONS) {
+            PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+            assertEquals(version.getName(), Collections.singletonList("move 0.5,0.0,0.0 -"), movements(registry,
+                    spawn(registry, 1, 0, 64, 0), move(registry, 0.5, 0, 0, null)));
+            assertEquals(version.getName(), Collections.singletonList("move 0.0,-1.25,0.0 -"), movements(registry,
+                    spawn(registry, 1, 0, 64, 0), move(registry, 0, -1.25, 0, null)));
+            assertEquals(version.getName(), Collections.singletonList("move 0.0,0.0,2.0 -"), movements(registry,
+                    spawn(registry, 1, 0, 64, 0), move(registry, 0, 0, 1.5, null), move(registry, 0, 0, 0.5, null)));
+        }
+    }
+
+    @Test
+    public void testFineMovementIsExact() throws IOException {
+        PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_14, State.PLAY);
+        // Both are below the 1/32 resolution of older versions
+        assertEquals(Collections.singletonList("move " + 8 / 4096.0 + ",0.0," + -1 / 4096.0 + " -"), movements(registry,
+                spawn(registry, 1, 0, 64, 0), move(registry, 3 / 4096.0, 0, 0, null),
+                move(registry, 5 / 4096.0, 0, -1 / 4096.0, null)));
+    }
+
+    @Test
+    public void testLongRotatedMoveBecomesTeleport() throws IOException {
+        for (ProtocolVersion version : MOVEMENT_VERSIONS) {
+            PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+            List<Packet> packets = new ArrayList<>();
+            packets.add(spawn(registry, 1, 0, 64, 0));
+            for (int i = 0; i < 13; i++) {
+                packets.add(move(registry, 3, 0, 0, null));
+            }
+            packets.add(move(registry, 3, 0, 0, new Pair<>(90f, 45f)));
+            // Would take several relative moves in either version, so a single teleport is smaller
+            assertEquals(version.getName(), Collections.singletonList("teleport 42.0,64.0,0.0 90.0,45.0"),
+                    movements(registry, packets.toArray(new Packet[0])));
+        }
+    }
+
+    @Test
+    public void testRotationIsSentWithLastMove() throws IOException {
+        for (ProtocolVersion version : MOVEMENT_VERSIONS) {
+            PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+            // Without spawn the location is unknown, so this has to be split into relative moves
+            List<String> expected = version == ProtocolVersion.v1_8
+                    ? Arrays.asList("move " + 127 / 32.0 + ",0.0,0.0 -", "move " + 127 / 32.0 + ",0.0,0.0 -",
+                            "move " + 66 / 32.0 + ",0.0,0.0 90.0,45.0")
+                    : Arrays.asList("move " + 32767 / 4096.0 + ",0.0,0.0 -", "move " + 8193 / 4096.0 + ",0.0,0.0 90.0,45.0");
+            assertEquals(version.getName(), expected, movements(registry,
+                    move(registry, 0, 0, 0, new Pair<>(90f, 45f)), move(registry, 3, 0, 0, null),
+                    move(registry, 3, 0, 0, null), move(registry, 3, 0, 0, null), move(registry, 1, 0, 0, null)));
+
+            // With spawn, a single move with rotation is still smaller than a teleport
+            assertEquals(version.getName(), Collections.singletonList("move 1.0,0.0,0.0 90.0,45.0"), movements(registry,
+                    spawn(registry, 1, 0, 64, 0), move(registry, 1, 0, 0, new Pair<>(90f, 45f))));
+        }
+    }
+
+    /**
+     * Squashes the given packets, all of entity 1, and describes the movement of the entity in the output.
+     */
+    private static List<String> movements(PacketTypeRegistry registry, Packet... packets) throws IOException {
+        SquashFilter filter = new SquashFilter();
+        long time = 0;
+        for (Packet packet : packets) {
+            PacketData data = new PacketData(time += 10, packet);
+            try {
+                filter.onPacket(null, data);
+            } finally {
+                data.release();
+            }
+        }
+        List<String> result = new ArrayList<>();
+        filter.end(time, data -> {
+            Packet packet = data.getPacket();
+            if (packet.getType() == PacketType.EntityTeleport) {
+                Location location = PacketEntityTeleport.getLocation(packet);
+                result.add("teleport " + location.getX() + "," + location.getY() + "," + location.getZ()
+                        + " " + location.getYaw() + "," + location.getPitch());
+            } else if (!PacketUtils.isSpawnEntityPacket(packet)) {
+                Triple<DPosition, Pair<Float, Float>, Boolean> movement = PacketEntityMovement.getMovement(packet);
+                DPosition delta = movement.getFirst();
+                Pair<Float, Float> rotation = movement.getSecond();
+                result.add("move " + (delta == null ? "-" : delta.getX() + "," + delta.getY() + "," + delta.getZ())
+                        + " " + (rotation == null ? "-" : rotation.getKey() + "," + rotation.getValue()));
+            }
+            data.release();
+        });
+        return result;
+    }
+
+    private static Packet move(PacketTypeRegistry registry, double dx, double dy, double dz, Pair<Float, Float> rotation) throws IOException {
+        DPosition delta = dx != 0 || dy != 0 || dz != 0 ? new DPosition(dx, dy, dz) : null;
+        return PacketEntityMovement.write(registry, 1, delta, rotation, true);
+    }
+
+    private static Map.Entry<Long, String> entry(long time, String label) {
+        return new SimpleEntry<>(time, label);
+    }
+
+    private static SquashFilter tiedStream() throws IOException {
+        List<PacketData> packets = new ArrayList<>();
+        packets.add(new PacketData(0, joinGame(REGISTRY)));
+        packets.add(new PacketData(10, updateTime(REGISTRY, 1, 1)));
+        packets.add(new PacketData(10, chunk(REGISTRY, new Random(1), 1, 0, 1)));
+        packets.add(new PacketData(10, chunk(REGISTRY, new Random(0), 0, 0, 1)));
+        packets.add(new PacketData(10, spawn(REGISTRY, 2, 20, 64, 0)));
+        packets.add(new PacketData(10, spawn(REGISTRY, 1, 0, 64, 0)));
+        packets.add(new PacketData(10, chat()));
+        packets.add(new PacketData(20, PacketBlockChange.write(REGISTRY, new IPosition(1, 2, 3), 5)));
+        packets.add(new PacketData(20, updateTime(REGISTRY, 2, 2)));
+        packets.add(new PacketData(20, PacketEntityMovement.write(REGISTRY, 1, new DPosition(1, 0, 0), null, true)));
+        packets.add(new PacketData(30, PacketChunkData.unload(5, 5).write(REGISTRY)));
+        packets.add(new PacketData(30, light(REGISTRY, 0, 0, 1, new byte[2048], null)));
+        packets.add(new PacketData(30, PacketBlockChange.write(REGISTRY, new IPosition(17, 2, 3), 6)));
+        packets.add(new PacketData(30, updateTime(REGISTRY, 3, 3)));
+        packets.add(new PacketData(40, spawn(REGISTRY, 3, 0, 64, 20)));
+        packets.add(new PacketData(40, light(REGISTRY, 2, 0, 1, new byte[2048], null)));
+        packets.add(new PacketData(40, updateTime(REGISTRY, 4, 4)));
+        packets.add(new PacketData(50, difficulty()));
+        packets.add(new PacketData(50, PacketBlockChange.write(REGISTRY, new IPosition(33, 2, 3), 7)));
+        packets.add(new PacketData(50, setSlot()));
+
+        SquashFilter filter = new SquashFilter();
+        for (PacketData data : packets) {
+            try {
+                filter.onPacket(null, data);
+            } finally {
+                data.release();
+            }
+        }
+        return filter;
+    }
+
+    /**
+     * Names a packet by its type and, where there can be more than one in the output, by what it applies to.
+     */
+    private static String label(PacketData data) throws IOException {
+        Packet packet = data.getPacket();
+        switch (packet.getType()) {
+            case UpdateTime:
+                return "UpdateTime " + packet.getBuf().getLong(packet.getBuf().readerIndex());
+            case SpawnMob:
+                return "SpawnMob " + PacketUtils.getEntityId(packet);
+            case EntityMovement:
+            case EntityPosition:
+            case EntityRotation:
+            case EntityPositionRotation:
+            case EntityTeleport:
+                return "move " + PacketUtils.getEntityId(packet);
+            case ChunkData:
+                Column column = PacketChunkData.read(packet).getColumn();
+                return "ChunkData " + column.x + "," + column.z;
+            case UnloadChunk:
+                PacketChunkData unload = PacketChunkData.read(packet);
+                return "UnloadChunk " + unload.getUnloadX() + "," + unload.getUnloadZ();
+            case BlockChange:
+                IPosition pos = PacketBlockChange.read(packet).getPosition();
+                return "BlockChange " + pos.getX() + "," + pos.getY() + "," + pos.getZ();
+            case UpdateLight:
+                PacketUpdateLight light = PacketUpdateLight.read(packet);
+                return "UpdateLight " + light.getX() + "," + light.getZ();
+            default:
+                return packet.getType().toString();
+        }
+    }
+
+    private static Packet chat() throws IOException {
+        Packet packet = new Packet(REGISTRY, PacketType.Chat);
+        try (Packet.Writer out = packet.overwrite()) {
+            out.writeString("{\"text\":\"hi\"}");
+            out.writeByte(0); // position
+        }
+        return packet;
+    }
+
+    private static Packet difficulty() throws IOException {
+        Packet packet = new Packet(REGISTRY, PacketType.Difficulty);
+        try (Packet.Writer out = packet.overwrite()) {
+            out.writeByte(2); // difficulty
+            out.writeBoolean(false); // locked
+        }
+        return packet;
+    }
+
+    private static Packet setSlot() throws IOException {
+        Packet packet = new Packet(REGISTRY, PacketType.SetSlot);
+        try (Packet.Writer out = packet.overwrite()) {
+            out.writeByte(0); // window id
+            out.writeShort(36); // slot
+            out.writeBoolean(false); // empty
+        }
+        return packet;
+    }
+}
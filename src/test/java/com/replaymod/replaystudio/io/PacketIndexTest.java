@@ -0,0 +1,149 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.io;
+
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.replay.ReplayMetaData;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class PacketIndexTest {
+    private static final int INTERVAL = 100;
+
+    private final PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_14, State.PLAY);
+
+    private byte[] recording;
+    // Time and offset of every play phase frame, in order
+    private final List<long[]> frames = new ArrayList<>();
+
+    @Before
+    public void setup() throws IOException {
+        Random random = new Random(0);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ReplayOutputStream out = new ReplayOutputStream(bytes)) {
+            long time = 0;
+            for (int i = 0; i < 2000; i++) {
+                // Mix of packets sharing a timestamp, small steps and gaps larger than the interval
+                int step = random.nextInt(10);
+                time += step < 3 ? 0 : step < 9 ? random.nextInt(50) : random.nextInt(1000);
+                Packet packet = new Packet(registry, PacketType.KeepAlive);
+                packet.getBuf().writeLong(i);
+                out.write(new PacketData(time, packet));
+            }
+        }
+        recording = bytes.toByteArray();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(recording));
+        long offset = 0;
+        boolean loginPhase = true;
+        while (true) {
+            int time, length;
+            try {
+                time = in.readInt();
+                length = in.readInt();
+            } catch (EOFException e) {
+                break;
+            }
+            in.skipBytes(length);
+            if (loginPhase) {
+                // ReplayOutputStream starts with a single LoginSuccess packet
+                loginPhase = false;
+            } else {
+                frames.add(new long[]{time, offset});
+            }
+            offset += 8 + length;
+        }
+    }
+
+    private PacketIndex build() throws IOException {
+        return PacketIndex.build(new ByteArrayInputStream(recording), ReplayMetaData.CURRENT_FILE_FORMAT_VERSION, INTERVAL);
+    }
+
+    @Test
+    public void testPointsMatchFrames() throws IOException {
+        PacketIndex index = build();
+        assertTrue("Index is empty", index.size() > 0);
+        assertEquals("First point is not at the first play phase frame", frames.get(0)[1], index.getOffset(0));
+
+        int frame = 0;
+        for (int i = 0; i < index.size(); i++) {
+            long time = index.getTime(i);
+            if (i > 0) {
+                assertTrue("Points closer than the interval", time >= index.getTime(i - 1) + INTERVAL);
+            }
+            // The point must be the first frame at or after its time
+            while (frames.get(frame)[0] < time) {
+                frame++;
+            }
+            assertEquals("Point " + i + " has the wrong offset", frames.get(frame)[1], index.getOffset(i));
+            assertEquals("Point " + i + " has the wrong time", frames.get(frame)[0], time);
+        }
+    }
+
+    @Test
+    public void testFloorIndexMatchesLinearScan() throws IOException {
+        PacketIndex index = build();
+        long end = frames.get(frames.size() - 1)[0];
+        for (long time = -1; time <= end + 1; time++) {
+            int expected = -1;
+            for (int i = 0; i < index.size() && index.getTime(i) <= time; i++) {
+                expected = i;
+            }
+            assertEquals("Wrong point for time " + time, expected, index.floorIndex(time));
+        }
+    }
+
+    @Test
+    public void testWriteReadRoundTrip() throws IOException {
+        PacketIndex index = build();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.write(out);
+        PacketIndex read = PacketIndex.read(new ByteArrayInputStream(out.toByteArray()));
+        assertNotNull(read);
+        assertEquals(index.size(), read.size());
+        for (int i = 0; i < index.size(); i++) {
+            assertEquals(index.getTime(i), read.getTime(i));
+            assertEquals(index.getOffset(i), read.getOffset(i));
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.io;
+
+import com.google.common.io.ByteStreams;
+import com.replaymod.replaystudio.util.RawZipWriter;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelDeflaterOutputStreamTest {
+    private static final int THREADS = 4;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void cleanup() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Generates compressible data with repetitions spanning block boundaries.
+     */
+    private static byte[] generate(int length, long seed) {
+        Random random = new Random(seed);
+        byte[] data = new byte[length];
+        int i = 0;
+        while (i < length) {
+            int n = Math.min(length - i, 1 + random.nextInt(200));
+            if (i > 0 && random.nextBoolean()) {
+                int from = random.nextInt(i);
+                for (int j = 0; j < n; j++) {
+                    data[i + j] = data[from + j];
+                }
+            } else {
+                for (int j = 0; j < n; j++) {
+                    data[i + j] = (byte) ('a' + random.nextInt(8));
+                }
+            }
+            i += n;
+        }
+        return data;
+    }
+
+    /**
+     * Writes the data in chunks of random size, some of them byte by byte.
+     */
+    private static void write(OutputStream out, byte[] data, long seed) throws IOException {
+        Random random = new Random(seed);
+        int i = 0;
+        while (i < data.length) {
+            int n = Math.min(data.length - i, random.nextInt(3000));
+            if (random.nextInt(4) == 0) {
+                for (int j = 0; j < n; j++) {
+                    out.write(data[i + j]);
+                }
+            } else {
+                out.write(data, i, n);
+            }
+            i += n;
+        }
+    }
+
+    private static long crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    @Test
+    public void testRawDeflateRoundTrip() throws IOException, DataFormatException {
+        byte[] data = generate(5 * 40000 + 123, 0);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelDeflaterOutputStream out = new ParallelDeflaterOutputStream(compressed, executor, THREADS,
+                6, 40000);
+        write(out, data, 1);
+        assertEquals(crc(data), out.getCrc());
+        out.finish();
+        assertEquals(crc(data), out.getCrc());
+        assertEquals(data.length, out.getSize());
+        assertEquals(compressed.size(), out.getCompressedSize());
+
+        Inflater inflater = new Inflater(true);
+        inflater.setInput(compressed.toByteArray());
+        byte[] result = new byte[data.length];
+        int length = 0;
+        while (!inflater.finished()) {
+            int n = inflater.inflate(result, length, result.length - length);
+            assertTrue("Inflater stalled", n > 0 || inflater.finished());
+            length += n;
+        }
+        inflater.end();
+        assertEquals(data.length, length);
+        assertArrayEquals(data, result);
+    }
+
+    @Test
+    public void testZipEntriesReadableByZipFile() throws IOException {
+        byte[] parallel = generate(5 * ParallelDeflaterOutputStream.DEFAULT_BLOCK_SIZE + 4567, 2);
+        byte[] sequential = generate(100000, 3);
+        byte[] empty = new byte[0];
+
+        File file = folder.newFile("test.zip");
+        try (RawZipWriter writer = new RawZipWriter(new FileOutputStream(file))) {
+            write(writer.putNextEntry("parallel", executor, THREADS), parallel, 4);
+            write(writer.putNextEntry("sequential"), sequential, 5);
+            writer.putNextEntry("empty", executor, THREADS).close();
+        }
+
+        try (ZipFile zipFile = new ZipFile(file)) {
+            assertEntry(zipFile, "parallel", parallel);
+            assertEntry(zipFile, "sequential", sequential);
+            assertEntry(zipFile, "empty", empty);
+        }
+
+        // ZipInputStream only knows the sizes and CRC from the data descriptors and fails if they do not match
+        try (ZipFile zipFile = new ZipFile(file);
+             ZipInputStream in = new ZipInputStream(new FileInputStream(file))) {
+            ZipEntry entry;
+            int count = 0;
+            while ((entry = in.getNextEntry()) != null) {
+                byte[] read = ByteStreams.toByteArray(in);
+                ZipEntry expected = zipFile.getEntry(entry.getName());
+                assertEquals(expected.getSize(), read.length);
+                assertEquals(expected.getSize(), entry.getSize());
+                assertEquals(expected.getCompressedSize(), entry.getCompressedSize());
+                assertEquals(expected.getCrc(), entry.getCrc());
+                count++;
+            }
+            assertEquals(3, count);
+        }
+    }
+
+    private static void assertEntry(ZipFile zipFile, String name, byte[] data) throws IOException {
+        ZipEntry entry = zipFile.getEntry(name);
+        assertNotNull("Missing entry " + name, entry);
+        assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+        assertEquals(data.length, entry.getSize());
+        assertEquals(crc(data), entry.getCrc());
+        try (InputStream in = zipFile.getInputStream(entry)) {
+            assertArrayEquals("Wrong content of " + name, data, ByteStreams.toByteArray(in));
+        }
+    }
+}
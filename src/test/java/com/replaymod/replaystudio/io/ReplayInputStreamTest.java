@@ -0,0 +1,267 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.io;
+
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketAccounting;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityMovement;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityTeleport;
+import com.replaymod.replaystudio.replay.ReplayMetaData;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import com.replaymod.replaystudio.util.DPosition;
+import com.replaymod.replaystudio.util.IPosition;
+import com.replaymod.replaystudio.util.Location;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.replaymod.replaystudio.protocol.TestPackets.describe;
+import static com.replaymod.replaystudio.protocol.TestPackets.joinGame;
+import static com.replaymod.replaystudio.protocol.TestPackets.updateTime;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReplayInputStreamTest {
+    private static final ProtocolVersion VERSION = ProtocolVersion.v1_14;
+    // Packets of this version have to be converted to be read as the one above
+    private static final ProtocolVersion OLD_VERSION = ProtocolVersion.v1_12_2;
+
+    @Before
+    public void setup() {
+        PacketAccounting.reset();
+        PacketAccounting.setEnabled(true);
+    }
+
+    @After
+    public void cleanup() {
+        PacketAccounting.setEnabled(false);
+        PacketAccounting.reset();
+    }
+
+    /**
+     * Writes a raw recording with a few kinds of packets, including KeepAlive ones which are dropped when reading.
+     */
+    private static byte[] recording(ProtocolVersion version, int count) throws IOException {
+        PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ReplayOutputStream out = new ReplayOutputStream(bytes)) {
+            out.write(0, joinGame(registry));
+            for (int i = 0; i < count; i++) {
+                long time = i / 3;
+                switch (i % 6) {
+                    case 0:
+                        out.write(time, updateTime(registry, i, i));
+                        break;
+                    case 1: {
+                        Packet packet = new Packet(registry, PacketType.KeepAlive);
+                        try (Packet.Writer writer = packet.overwrite()) {
+                            writer.writeLong(i);
+                        }
+                        out.write(time, packet);
+                        break;
+                    }
+                    case 2: {
+                        Packet packet = new Packet(registry, PacketType.Chat);
+                        try (Packet.Writer writer = packet.overwrite()) {
+                            writer.writeString("{\"text\":\"" + i + "\"}");
+                            writer.writeByte(0); // position
+                        }
+                        out.write(time, packet);
+                        break;
+                    }
+                    case 3: {
+                        int stone = registry.atLeast(ProtocolVersion.v1_13) ? 1 : 1 << 4;
+                        out.write(time, PacketBlockChange.write(registry, new IPosition(i % 16, 64, i / 16 % 16), stone));
+                        break;
+                    }
+                    case 4:
+                        out.write(time, PacketEntityMovement.write(registry, 1 + i % 3, new DPosition(0.5, 0, 0), null, true));
+                        break;
+                    default:
+                        out.write(time, PacketEntityTeleport.write(registry, 1 + i % 3, new Location(i, 64, 0, 0, 0), true));
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ReplayInputStream open(ProtocolVersion fileVersion, InputStream in) throws IOException {
+        return new ReplayInputStream(PacketTypeRegistry.get(VERSION, State.PLAY), in,
+                ReplayMetaData.CURRENT_FILE_FORMAT_VERSION, fileVersion.getId());
+    }
+
+    private static ReplayInputStream open(ProtocolVersion fileVersion, byte[] bytes, EnumSet<PacketType> types) throws IOException {
+        return new ReplayInputStream(PacketTypeRegistry.get(VERSION, State.PLAY), new ByteArrayInputStream(bytes),
+                ReplayMetaData.CURRENT_FILE_FORMAT_VERSION, fileVersion.getId(), types);
+    }
+
+    private static List<String> readAll(ReplayInputStream in) throws IOException {
+        List<String> result = new ArrayList<>();
+        try {
+            PacketData data;
+            while ((data = in.readPacket()) != null) {
+                result.add(describe(data));
+                data.release();
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    private static boolean readAheadThreadAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("ReplayInputStream read-ahead") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testReadAheadMatchesPlainReading() throws IOException {
+        for (ProtocolVersion fileVersion : new ProtocolVersion[]{VERSION, OLD_VERSION}) {
+            byte[] bytes = recording(fileVersion, 3000);
+            List<String> expected = readAll(open(fileVersion, new ByteArrayInputStream(bytes)));
+            assertFalse(expected.isEmpty());
+            for (int batchSize : new int[]{1, 7, ReplayInputStream.DEFAULT_READ_AHEAD_BATCH_SIZE}) {
+                for (int capacity : new int[]{1, 4}) {
+                    ReplayInputStream in = open(fileVersion, new ByteArrayInputStream(bytes));
+                    in.startReadAhead(batchSize, capacity);
+                    assertEquals(fileVersion + ", " + batchSize + " per batch, " + capacity + " batches",
+                            expected, readAll(in));
+                }
+            }
+        }
+        assertFalse("Read-ahead thread still running", readAheadThreadAlive());
+        PacketAccounting.checkNoLeaks();
+    }
+
+    @Test
+    public void testCloseStopsReadAhead() throws IOException, InterruptedException {
+        ReplayInputStream in = open(VERSION, new ByteArrayInputStream(recording(VERSION, 30000)));
+        in.startReadAhead(16, 4);
+        for (int i = 0; i < 100; i++) {
+            in.readPacket().release();
+        }
+        // Give it time to fill the queue, so there are packets waiting in it when it is closed
+        Thread.sleep(100);
+        in.close();
+
+        assertFalse("Read-ahead thread still running", readAheadThreadAlive());
+        PacketAccounting.checkNoLeaks();
+        try {
+            in.readPacket();
+            fail("Stream still usable after close");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testReadAheadErrorReachesConsumer() throws IOException {
+        byte[] bytes = recording(VERSION, 3000);
+        List<String> all = readAll(open(VERSION, new ByteArrayInputStream(bytes)));
+        IOException failure = new IOException("Failed on purpose");
+        InputStream failing = new FilterInputStream(new ByteArrayInputStream(bytes, 0, bytes.length / 2)) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b == -1) {
+                    throw failure;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read == -1) {
+                    throw failure;
+                }
+                return read;
+            }
+        };
+
+        ReplayInputStream in = open(VERSION, failing);
+        in.startReadAhead(16, 4);
+        List<String> read = new ArrayList<>();
+        try {
+            PacketData data;
+            while ((data = in.readPacket()) != null) {
+                read.add(describe(data));
+                data.release();
+            }
+            fail("Read error was not propagated");
+        } catch (IOException e) {
+            assertSame(failure, e);
+        } finally {
+            in.close();
+        }
+        // Everything up to the error is still returned
+        assertTrue("Only " + read.size() + " packets were read", read.size() > all.size() / 3);
+        assertEquals(all.subList(0, read.size()), read);
+        assertFalse("Read-ahead thread still running", readAheadThreadAlive());
+        PacketAccounting.checkNoLeaks();
+    }
+
+    @Test
+    public void testFilteredReadingReturnsSubset() throws IOException {
+        List<EnumSet<PacketType>> filters = new ArrayList<>();
+        filters.add(EnumSet.of(PacketType.UpdateTime));
+        filters.add(EnumSet.of(PacketType.Chat, PacketType.BlockChange));
+        filters.add(EnumSet.of(PacketType.JoinGame, PacketType.EntityPosition, PacketType.EntityTeleport));
+        filters.add(EnumSet.of(PacketType.KeepAlive));
+        filters.add(EnumSet.noneOf(PacketType.class));
+        for (ProtocolVersion fileVersion : new ProtocolVersion[]{VERSION, OLD_VERSION}) {
+            byte[] bytes = recording(fileVersion, 3000);
+            List<String> all = readAll(open(fileVersion, new ByteArrayInputStream(bytes)));
+            for (EnumSet<PacketType> types : filters) {
+                List<String> expected = all.stream()
+                        .filter(it -> types.contains(PacketType.valueOf(it.split(" ")[1])))
+                        .collect(Collectors.toList());
+                assertEquals(fileVersion + ", " + types, expected, readAll(open(fileVersion, bytes, types)));
+            }
+        }
+        PacketAccounting.checkNoLeaks();
+    }
+}
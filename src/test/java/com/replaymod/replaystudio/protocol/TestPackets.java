@@ -0,0 +1,183 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.protocol;
+
+import com.github.steveice10.netty.buffer.ByteBuf;
+import com.github.steveice10.opennbt.tag.builtin.CompoundTag;
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.BlockStorage;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.Chunk;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.Column;
+import com.replaymod.replaystudio.protocol.packets.PacketUpdateLight;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds packets for tests which need a somewhat realistic stream of world and entity packets.
+ * Where a layout differs between versions and only one is supported, the method says so.
+ */
+public final class TestPackets {
+    private TestPackets() {}
+
+    /**
+     * Describes a packet by its time, its type and its content, so two lists of packets can be compared as strings.
+     */
+    public static String describe(PacketData data) {
+        Packet packet = data.getPacket();
+        ByteBuf buf = packet.getBuf();
+        StringBuilder sb = new StringBuilder();
+        sb.append(data.getTime()).append(' ').append(packet.getType()).append(' ');
+        for (int i = buf.readerIndex(); i < buf.writerIndex(); i++) {
+            sb.append(String.format("%02x", buf.getByte(i)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates a chunk column whose lowest sections are filled with layers of random blocks.
+     */
+    public static Packet chunk(PacketTypeRegistry registry, Random random, int x, int z, int sections) throws IOException {
+        Chunk[] chunks = new Chunk[16];
+        for (int section = 0; section < sections; section++) {
+            Chunk chunk = new Chunk();
+            chunk.blocks = new BlockStorage(registry);
+            for (int y = 0; y < 16; y++) {
+                int state = 1 + random.nextInt(32);
+                for (int bz = 0; bz < 16; bz++) {
+                    for (int bx = 0; bx < 16; bx++) {
+                        chunk.blocks.set(bx, y, bz, state);
+                    }
+                }
+            }
+            chunks[section] = chunk;
+        }
+        Column column = new Column(x, z, chunks, new byte[1024], new CompoundTag[0], new CompoundTag(""), null, true);
+        return PacketChunkData.load(column).write(registry);
+    }
+
+    /**
+     * Creates a light update for a single section.
+     * @param section Index into the light arrays, i.e. one above the chunk section
+     * @param skyLight Sky light of the section, or {@code null} to leave it untouched
+     * @param blockLight Block light of the section, or {@code null} to leave it untouched
+     */
+    public static Packet light(PacketTypeRegistry registry, int x, int z, int section, byte[] skyLight, byte[] blockLight) throws IOException {
+        List<byte[]> sky = new ArrayList<>(Collections.nCopies(18, null));
+        List<byte[]> block = new ArrayList<>(Collections.nCopies(18, null));
+        sky.set(section, skyLight);
+        block.set(section, blockLight);
+        return new PacketUpdateLight(x, z, sky, block).write(registry);
+    }
+
+    /**
+     * Creates a mob spawn packet without rotation, velocity or metadata.
+     */
+    public static Packet spawn(PacketTypeRegistry registry, int id, double x, double y, double z) throws IOException {
+        Packet packet = new Packet(registry, PacketType.SpawnMob);
+        try (Packet.Writer out = packet.overwrite()) {
+            out.writeVarInt(id);
+            if (packet.atLeast(ProtocolVersion.v1_9)) {
+                out.writeLong(0); // uuid
+                out.writeLong(id);
+            }
+            if (packet.atLeast(ProtocolVersion.v1_11)) {
+                out.writeVarInt(1); // type
+            } else {
+                out.writeByte(50); // type
+            }
+            if (packet.atLeast(ProtocolVersion.v1_9)) {
+                out.writeDouble(x);
+                out.writeDouble(y);
+                out.writeDouble(z);
+            } else {
+                out.writeInt((int) (x * 32));
+                out.writeInt((int) (y * 32));
+                out.writeInt((int) (z * 32));
+            }
+            out.writeByte(0); // yaw
+            out.writeByte(0); // pitch
+            out.writeByte(0); // head pitch
+            out.writeShort(0); // velocity
+            out.writeShort(0);
+            out.writeShort(0);
+            if (!packet.atLeast(ProtocolVersion.v1_9)) {
+                out.writeByte(0x7f); // end of metadata
+            } else if (!packet.atLeast(ProtocolVersion.v1_15)) {
+                out.writeByte(0xff); // end of metadata
+            }
+        }
+        return packet;
+    }
+
+    public static Packet updateTime(PacketTypeRegistry registry, long worldAge, long timeOfDay) throws IOException {
+        Packet packet = new Packet(registry, PacketType.UpdateTime);
+        try (Packet.Writer out = packet.overwrite()) {
+            out.writeLong(worldAge);
+            out.writeLong(timeOfDay);
+        }
+        return packet;
+    }
+
+    /**
+     * Creates a join game packet. Only supports the 1.9.1 to 1.14 layouts.
+     */
+    public static Packet joinGame(PacketTypeRegistry registry) throws IOException {
+        Packet packet = new Packet(registry, PacketType.JoinGame);
+        try (Packet.Writer out = packet.overwrite()) {
+            out.writeInt(0); // entity id
+            out.writeByte(0); // gamemode
+            out.writeInt(0); // dimension
+            if (!packet.atLeast(ProtocolVersion.v1_14)) {
+                out.writeByte(0); // difficulty
+            }
+            out.writeByte(0); // max players
+            out.writeString("default"); // level type
+            if (packet.atLeast(ProtocolVersion.v1_14)) {
+                out.writeVarInt(2); // view distance
+            }
+            out.writeBoolean(false); // reduced debug info
+        }
+        return packet;
+    }
+
+    /**
+     * Creates a respawn packet into the nether. Only supports the 1.14 layout.
+     */
+    public static Packet respawn(PacketTypeRegistry registry) throws IOException {
+        Packet packet = new Packet(registry, PacketType.Respawn);
+        try (Packet.Writer out = packet.overwrite()) {
+            out.writeInt(-1); // dimension
+            out.writeByte(0); // gamemode
+            out.writeString("default"); // level type
+        }
+        return packet;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.protocol.packets;
+
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import com.replaymod.replaystudio.util.IPosition;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlockChangeViewTest {
+
+    /**
+     * Writes a MultiBlockChange packet in the layout of the given registry.
+     * @param records Each record as {x, y, z, id} with x and z relative to the chunk and, since 1.16.2, y relative
+     *                to the section
+     */
+    private static Packet multiBlockChange(PacketTypeRegistry registry, int chunkX, int chunkY, int chunkZ,
+                                           List<int[]> records) throws IOException {
+        Packet packet = new Packet(registry, PacketType.MultiBlockChange);
+        try (Packet.Writer out = packet.overwrite()) {
+            if (registry.atLeast(ProtocolVersion.v1_16_2)) {
+                out.writeLong(((long) chunkX & 0x3FFFFF) << 42 | ((long) chunkZ & 0x3FFFFF) << 20 | chunkY & 0xFFFFF);
+                out.writeBoolean(false); // skip light updates
+            } else {
+                out.writeInt(chunkX);
+                out.writeInt(chunkZ);
+            }
+            if (registry.atLeast(ProtocolVersion.v1_8)) {
+                out.writeVarInt(records.size());
+            } else {
+                out.writeShort(records.size());
+                out.writeInt(records.size() * 4);
+            }
+            for (int[] record : records) {
+                if (registry.atLeast(ProtocolVersion.v1_16_2)) {
+                    long change = (long) record[3] << 12 | record[0] << 8 | record[2] << 4 | record[1];
+                    while ((change & ~0x7FL) != 0) {
+                        out.writeByte((int) (change & 0x7F) | 0x80);
+                        change >>>= 7;
+                    }
+                    out.writeByte((int) change);
+                } else {
+                    out.writeShort(record[0] << 12 | record[2] << 8 | record[1]);
+                    if (registry.atLeast(ProtocolVersion.v1_8)) {
+                        out.writeVarInt(record[3]);
+                    } else {
+                        out.writeShort(record[3]);
+                    }
+                }
+            }
+        }
+        return packet;
+    }
+
+    private static void testMatchesReadSingleOrBulk(ProtocolVersion version) throws IOException {
+        PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+        boolean sections = registry.atLeast(ProtocolVersion.v1_16_2);
+        Random random = new Random(0);
+        BlockChangeView view = new BlockChangeView();
+        for (int i = 0; i < 1000; i++) {
+            List<String> expected = new ArrayList<>();
+            Packet packet;
+            if (random.nextInt(3) == 0) {
+                IPosition pos = new IPosition(random.nextInt(200000) - 100000, random.nextInt(256),
+                        random.nextInt(200000) - 100000);
+                int id = random.nextInt(1 << 15);
+                packet = PacketBlockChange.write(registry, pos, id);
+                expected.add(pos.getX() + " " + pos.getY() + " " + pos.getZ() + " " + id);
+            } else {
+                int chunkX = random.nextInt(20000) - 10000;
+                int chunkY = sections ? random.nextInt(20) - 4 : 0;
+                int chunkZ = random.nextInt(20000) - 10000;
+                List<int[]> records = new ArrayList<>();
+                for (int j = random.nextInt(64); j > 0; j--) {
+                    int[] record = {random.nextInt(16), random.nextInt(sections ? 16 : 256), random.nextInt(16),
+                            random.nextInt(1 << 15)};
+                    records.add(record);
+                    expected.add((chunkX * 16 + record[0]) + " " + (chunkY * 16 + record[1]) + " "
+                            + (chunkZ * 16 + record[2]) + " " + record[3]);
+                }
+                packet = multiBlockChange(registry, chunkX, chunkY, chunkZ, records);
+            }
+            try {
+                List<String> read = new ArrayList<>();
+                for (PacketBlockChange change : PacketBlockChange.readSingleOrBulk(packet)) {
+                    IPosition pos = change.getPosition();
+                    read.add(pos.getX() + " " + pos.getY() + " " + pos.getZ() + " " + change.getId());
+                }
+                assertEquals(expected, read);
+
+                int readerIndex = packet.getBuf().readerIndex();
+                List<String> viewed = new ArrayList<>();
+                view.wrap(packet);
+                while (view.next()) {
+                    viewed.add(view.getX() + " " + view.getY() + " " + view.getZ() + " " + view.getId());
+                    assertEquals(IPosition.pack(view.getX(), view.getY(), view.getZ()), view.getPackedPosition());
+                }
+                assertEquals(read, viewed);
+                assertEquals("View moved the reader index", readerIndex, packet.getBuf().readerIndex());
+            } finally {
+                packet.release();
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesReadSingleOrBulk1_7() throws IOException {
+        testMatchesReadSingleOrBulk(ProtocolVersion.v1_7_6);
+    }
+
+    @Test
+    public void testMatchesReadSingleOrBulk1_8() throws IOException {
+        testMatchesReadSingleOrBulk(ProtocolVersion.v1_8);
+    }
+
+    @Test
+    public void testMatchesReadSingleOrBulk1_14() throws IOException {
+        testMatchesReadSingleOrBulk(ProtocolVersion.v1_14);
+    }
+
+    @Test
+    public void testMatchesReadSingleOrBulk1_16() throws IOException {
+        testMatchesReadSingleOrBulk(ProtocolVersion.v1_16);
+    }
+
+    @Test
+    public void testMatchesReadSingleOrBulk1_16_2() throws IOException {
+        testMatchesReadSingleOrBulk(ProtocolVersion.v1_16_2);
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.protocol.packets;
+
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData.BlockStorage;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlockStorageTest {
+
+    private static void testGlobalPaletteSwitch(ProtocolVersion version) {
+        BlockStorage storage = new BlockStorage(PacketTypeRegistry.get(version, State.PLAY));
+        int[] expected = new int[4096];
+        // Enough distinct states to outgrow the largest section palette (256 entries)
+        for (int i = 0; i < 300; i++) {
+            int x = i & 15, y = i >> 8, z = i >> 4 & 15;
+            int state = 1000 + i * 7;
+            storage.set(x, y, z, state);
+            expected[y << 8 | z << 4 | x] = state;
+            assertStates(expected, storage);
+        }
+    }
+
+    private static void assertStates(int[] expected, BlockStorage storage) {
+        for (int index = 0; index < 4096; index++) {
+            int x = index & 15, y = index >> 8, z = index >> 4 & 15;
+            assertEquals(expected[index], storage.get(x, y, z));
+        }
+    }
+
+    @Test
+    public void testGlobalPaletteSwitch() {
+        testGlobalPaletteSwitch(ProtocolVersion.v1_14);
+    }
+
+    @Test
+    public void testGlobalPaletteSwitchPadded() {
+        testGlobalPaletteSwitch(ProtocolVersion.v1_16);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.protocol.packets;
+
+import com.github.steveice10.netty.buffer.ByteBuf;
+import com.github.steveice10.netty.buffer.Unpooled;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.Pair;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import com.replaymod.replaystudio.util.DPosition;
+import com.replaymod.replaystudio.util.Location;
+import com.replaymod.replaystudio.util.PacketUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class EntityMovementViewTest {
+
+    private static void testMatchesUpdateLocation(ProtocolVersion version) throws IOException {
+        PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+        Random random = new Random(0);
+        EntityMovementView view = new EntityMovementView();
+        ByteBuf batch = Unpooled.buffer();
+        Location expected = null;
+        Location actual = null;
+        for (int i = 0; i < 1000; i++) {
+            int entityId = random.nextInt(100000);
+            Packet packet;
+            if (random.nextInt(10) == 0) {
+                packet = PacketEntityTeleport.write(registry, entityId, new Location(
+                        random.nextInt(2000) - 1000, random.nextInt(256), random.nextInt(2000) - 1000,
+                        random.nextInt(256) * 360f / 256, random.nextInt(256) * 360f / 256), random.nextBoolean());
+            } else {
+                DPosition delta = random.nextBoolean() ? null : new DPosition(
+                        (random.nextInt(255) - 127) / 32.0, (random.nextInt(255) - 127) / 32.0, (random.nextInt(255) - 127) / 32.0);
+                Pair<Float, Float> rotation = random.nextBoolean() ? null
+                        : new Pair<>(random.nextInt(256) * 360f / 256, random.nextInt(128) * 360f / 256);
+                packet = PacketEntityMovement.write(registry, entityId, delta, rotation, random.nextBoolean());
+            }
+            try {
+                expected = PacketUtils.updateLocation(expected, packet);
+
+                // Read the packet from the middle of a shared buffer, as is the case for packets in a batch
+                ByteBuf content = packet.getBuf();
+                batch.writeZero(random.nextInt(16));
+                int offset = batch.writerIndex();
+                batch.writeBytes(content, content.readerIndex(), content.readableBytes());
+                view.wrap(registry, packet.getType(), batch, offset);
+                assertEquals(entityId, view.getEntityId());
+                actual = view.update(actual);
+
+                assertEquals(expected.getX(), actual.getX(), 0);
+                assertEquals(expected.getY(), actual.getY(), 0);
+                assertEquals(expected.getZ(), actual.getZ(), 0);
+                assertEquals(expected.getYaw(), actual.getYaw(), 0);
+                assertEquals(expected.getPitch(), actual.getPitch(), 0);
+                assertEquals("View moved the reader index", 0, batch.readerIndex());
+            } finally {
+                packet.release();
+            }
+        }
+        batch.release();
+    }
+
+    @Test
+    public void testMatchesUpdateLocation1_7() throws IOException {
+        testMatchesUpdateLocation(ProtocolVersion.v1_7_6);
+    }
+
+    @Test
+    public void testMatchesUpdateLocation1_8() throws IOException {
+        testMatchesUpdateLocation(ProtocolVersion.v1_8);
+    }
+
+    @Test
+    public void testMatchesUpdateLocation1_14() throws IOException {
+        testMatchesUpdateLocation(ProtocolVersion.v1_14);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.protocol.packets;
+
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class LightUpdateViewTest {
+
+    private static List<byte[]> randomLight(Random random) {
+        List<byte[]> light = new ArrayList<>(18);
+        for (int i = 0; i < 18; i++) {
+            switch (random.nextInt(3)) {
+                case 0:
+                    light.add(null);
+                    break;
+                case 1:
+                    light.add(new byte[2048]); // sent as part of the empty mask
+                    break;
+                default:
+                    byte[] bytes = new byte[2048];
+                    random.nextBytes(bytes);
+                    light.add(bytes);
+            }
+        }
+        return light;
+    }
+
+    private static void testMatchesRead(ProtocolVersion version) throws IOException {
+        PacketTypeRegistry registry = PacketTypeRegistry.get(version, State.PLAY);
+        Random random = new Random(0);
+        LightUpdateView view = new LightUpdateView();
+        for (int i = 0; i < 200; i++) {
+            int x = random.nextInt(20000) - 10000;
+            int z = random.nextInt(20000) - 10000;
+            List<byte[]> skyLight = randomLight(random);
+            List<byte[]> blockLight = randomLight(random);
+            Packet packet = new PacketUpdateLight(x, z, skyLight, blockLight).write(registry);
+            try {
+                PacketUpdateLight read = PacketUpdateLight.read(packet);
+                assertEquals(x, read.getX());
+                assertEquals(z, read.getZ());
+
+                int readerIndex = packet.getBuf().readerIndex();
+                view.wrap(packet);
+                assertEquals(x, view.getX());
+                assertEquals(z, view.getZ());
+                // Out of order, the view must not depend on the sections being requested one after the other
+                for (int section = 17; section >= 0; section--) {
+                    assertArrayEquals("Sky light " + section, skyLight.get(section), read.getSkyLight().get(section));
+                    assertArrayEquals("Sky light " + section, read.getSkyLight().get(section), view.getSkyLight(section));
+                    assertArrayEquals("Block light " + section, blockLight.get(section), read.getBlockLight().get(section));
+                    assertArrayEquals("Block light " + section, read.getBlockLight().get(section), view.getBlockLight(section));
+                }
+                assertEquals("View moved the reader index", readerIndex, packet.getBuf().readerIndex());
+            } finally {
+                packet.release();
+            }
+        }
+    }
+
+    @Test
+    public void testMatchesRead1_14() throws IOException {
+        testMatchesRead(ProtocolVersion.v1_14);
+    }
+
+    @Test
+    public void testMatchesRead1_16() throws IOException {
+        testMatchesRead(ProtocolVersion.v1_16);
+    }
+
+    @Test
+    public void testMatchesRead1_16_2() throws IOException {
+        testMatchesRead(ProtocolVersion.v1_16_2);
+    }
+}
@@ -0,0 +1,470 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.replay;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.io.ByteStreams;
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.io.PacketIndex;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+import com.replaymod.replaystudio.util.RawZipFile;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipInputStream;
+
+import static com.replaymod.replaystudio.protocol.TestPackets.describe;
+import static com.replaymod.replaystudio.protocol.TestPackets.joinGame;
+import static com.replaymod.replaystudio.protocol.TestPackets.updateTime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ZipReplayFileTest {
+    private final PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_14, State.PLAY);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Writes a replay consisting of numbered UpdateTime packets with irregular timestamps spanning about a minute.
+     * @param extraEntries Names of additional entries, each containing its own name
+     */
+    private File writeReplay(String name, String...extraEntries) throws IOException {
+        File file = folder.newFile(name);
+        Random random = new Random(0);
+        try (ReplayOutputStream out = new ReplayOutputStream(ProtocolVersion.v1_14, new FileOutputStream(file), null)) {
+            long time = 0;
+            for (int i = 0; i < 5000; i++) {
+                time += random.nextInt(4) == 0 ? 0 : random.nextInt(25);
+                // Not KeepAlive, those are dropped when reading
+                Packet packet = new Packet(registry, PacketType.UpdateTime);
+                packet.getBuf().writeLong(i); // world age
+                packet.getBuf().writeLong(i); // time of day
+                out.write(new PacketData(time, packet));
+            }
+            for (String entry : extraEntries) {
+                out.nextEntry(entry);
+                out.write(entry.getBytes(Charsets.UTF_8));
+            }
+        }
+        return file;
+    }
+
+    private static byte[] read(ReplayFile replayFile, String entry) throws IOException {
+        Optional<InputStream> in = replayFile.get(entry);
+        assertTrue("Missing entry " + entry, in.isPresent());
+        try (InputStream is = in.get()) {
+            return ByteStreams.toByteArray(is);
+        }
+    }
+
+    /**
+     * Returns the raw, possibly compressed, data of each entry.
+     */
+    private static Map<String, byte[]> readRaw(File file) throws IOException {
+        Map<String, byte[]> result = new HashMap<>();
+        try (RawZipFile zipFile = new RawZipFile(file)) {
+            for (RawZipFile.Entry entry : zipFile.getEntries()) {
+                ByteBuffer buf = ByteBuffer.allocate((int) entry.getCompressedSize());
+                long offset = zipFile.getDataOffset(entry);
+                while (buf.hasRemaining()) {
+                    if (zipFile.getChannel().read(buf, offset + buf.position()) < 0) {
+                        throw new EOFException();
+                    }
+                }
+                result.put(entry.getName(), buf.array());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads all packets as pairs of timestamp and packet number.
+     */
+    private static List<String> readAll(ReplayInputStream in) throws IOException {
+        assertNotNull(in);
+        List<String> result = new ArrayList<>();
+        try {
+            PacketData data;
+            while ((data = in.readPacket()) != null) {
+                Packet packet = data.getPacket();
+                result.add(data.getTime() + ":" + packet.getBuf().getLong(packet.getBuf().readerIndex()));
+                data.release();
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    @Test
+    public void testGetPacketDataFromTimeMatchesLinearScan() throws IOException {
+        File file = writeReplay("test.mcpr");
+        try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), file)) {
+            List<String> all = readAll(replayFile.getPacketData(registry));
+            assertFalse("No packets were read", all.isEmpty());
+            long end = Long.parseLong(all.get(all.size() - 1).split(":")[0]);
+            // Arbitrary times as well as those right at and around the points of the index
+            Set<Long> times = new TreeSet<>();
+            for (long time = 0; time <= end + 1; time += 97) {
+                times.add(time);
+            }
+            PacketIndex index = replayFile.getPacketIndex();
+            for (int i = 0; i < index.size(); i++) {
+                times.add(index.getTime(i) - 1);
+                times.add(index.getTime(i));
+                times.add(index.getTime(i) + 1);
+            }
+
+            // Compressed in the zip file, so this skips without the index
+            assertPacketDataFrom(replayFile, all, times);
+
+            // Changed entries are stored uncompressed, so this skips via the index once it has been built again
+            byte[] recording = read(replayFile, "recording.tmcpr");
+            try (OutputStream out = replayFile.write("recording.tmcpr")) {
+                out.write(recording);
+            }
+            assertPacketDataFrom(replayFile, all, times);
+            assertNotNull(replayFile.getPacketIndex());
+            assertPacketDataFrom(replayFile, all, times);
+        }
+    }
+
+    private void assertPacketDataFrom(ZipReplayFile replayFile, List<String> all, Set<Long> times) throws IOException {
+        for (long time : times) {
+            List<String> expected = new ArrayList<>();
+            for (String packet : all) {
+                if (Long.parseLong(packet.split(":")[0]) >= time) {
+                    expected.add(packet);
+                }
+            }
+            assertEquals("Wrong packets from " + time, expected, readAll(replayFile.getPacketData(registry, time)));
+        }
+    }
+
+    @Test
+    public void testSaveToCopiesUnchangedEntries() throws IOException {
+        File file = writeReplay("test.mcpr", "unchanged.txt", "changed.txt", "removed.txt");
+        File target = new File(folder.getRoot(), "saved.mcpr");
+        List<String> packets;
+        try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), file)) {
+            packets = readAll(replayFile.getPacketData(registry));
+            assertFalse("No packets were read", packets.isEmpty());
+            try (OutputStream out = replayFile.write("changed.txt")) {
+                out.write("new content".getBytes(Charsets.UTF_8));
+            }
+            try (OutputStream out = replayFile.write("added.txt")) {
+                out.write("added".getBytes(Charsets.UTF_8));
+            }
+            replayFile.remove("removed.txt");
+            replayFile.saveTo(target);
+        }
+
+        // Unchanged entries must be copied byte for byte, without being re-compressed
+        Map<String, byte[]> before = readRaw(file);
+        Map<String, byte[]> after = readRaw(target);
+        for (String entry : Arrays.asList("recording.tmcpr", "metaData.json", "unchanged.txt")) {
+            assertArrayEquals("Entry " + entry + " was not copied as is", before.get(entry), after.get(entry));
+        }
+        assertEquals(new HashSet<>(Arrays.asList("recording.tmcpr", "metaData.json",
+                "unchanged.txt", "changed.txt", "added.txt")), after.keySet());
+
+        // ZipInputStream checks sizes and CRC of every entry
+        try (ZipInputStream in = new ZipInputStream(new FileInputStream(target))) {
+            while (in.getNextEntry() != null) {
+                ByteStreams.toByteArray(in);
+            }
+        }
+
+        try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), target)) {
+            assertEquals(packets, readAll(replayFile.getPacketData(registry)));
+            assertArrayEquals("unchanged.txt".getBytes(Charsets.UTF_8), read(replayFile, "unchanged.txt"));
+            assertArrayEquals("new content".getBytes(Charsets.UTF_8), read(replayFile, "changed.txt"));
+            assertArrayEquals("added".getBytes(Charsets.UTF_8), read(replayFile, "added.txt"));
+            assertFalse(replayFile.get("removed.txt").isPresent());
+        }
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void write(ReplayFile replayFile, String entry, byte[] content) throws IOException {
+        try (OutputStream out = replayFile.write(entry)) {
+            out.write(content);
+        }
+    }
+
+    @Test
+    public void testIncrementalSaveRecoversFromTornAppend() throws IOException {
+        File file = writeReplay("test.mcpr", "unchanged.txt", "changed.txt");
+        File tmpFolder = new File(file.getParentFile(), file.getName() + ".tmp");
+        File appendMarker = new File(tmpFolder, "append");
+        Random random = new Random(0);
+        byte[] first = randomBytes(random, 4096);
+        byte[] second = randomBytes(random, 4096);
+
+        List<String> packets;
+        try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), file)) {
+            packets = readAll(replayFile.getPacketData(registry));
+            assertFalse("No packets were read", packets.isEmpty());
+            replayFile.setIncrementalSave(true);
+            write(replayFile, "changed.txt", first);
+            replayFile.save();
+        }
+        byte[] saved = Files.readAllBytes(file.toPath());
+
+        // A successful incremental save only appends to the file
+        try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), file)) {
+            replayFile.setIncrementalSave(true);
+            write(replayFile, "changed.txt", second);
+            replayFile.save();
+        }
+        byte[] appended = Files.readAllBytes(file.toPath());
+        assertTrue("Nothing was appended", appended.length > saved.length);
+        assertArrayEquals("Existing data was modified", saved, Arrays.copyOf(appended, saved.length));
+
+        // Simulate a crash half way through appending the second change. The changed entry is still in the tmp
+        // folder, as is the marker with the length of the file before the append started.
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate((saved.length + appended.length) / 2);
+        }
+        File changedFile = new File(tmpFolder, "changed/changed.txt");
+        Files.createDirectories(changedFile.getParentFile().toPath());
+        Files.write(changedFile.toPath(), second);
+        Files.write(appendMarker.toPath(), String.valueOf(saved.length).getBytes(Charsets.UTF_8));
+
+        try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), file)) {
+            assertFalse("Append marker was not removed", appendMarker.exists());
+            assertArrayEquals("File was not truncated to its length before the append",
+                    saved, Files.readAllBytes(file.toPath()));
+            assertArrayEquals("Pending change was not recovered", second, read(replayFile, "changed.txt"));
+
+            replayFile.setIncrementalSave(true);
+            replayFile.save();
+        }
+
+        try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), file)) {
+            assertEquals(packets, readAll(replayFile.getPacketData(registry)));
+            assertArrayEquals("unchanged.txt".getBytes(Charsets.UTF_8), read(replayFile, "unchanged.txt"));
+            assertArrayEquals(second, read(replayFile, "changed.txt"));
+        }
+    }
+
+    @Test
+    public void testIncrementalSaveCompactsGarbage() throws IOException {
+        File file = writeReplay("test.mcpr", "unchanged.txt", "changed.txt");
+        Random random = new Random(0);
+        long initialLength = file.length();
+
+        List<String> packets = null;
+        long previousLength = initialLength;
+        boolean compacted = false;
+        for (int i = 0; i < 100 && !compacted; i++) {
+            byte[] content = randomBytes(random, 4096);
+            try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), file)) {
+                if (packets == null) {
+                    packets = readAll(replayFile.getPacketData(registry));
+                    assertFalse("No packets were read", packets.isEmpty());
+                }
+                replayFile.setIncrementalSave(true);
+                write(replayFile, "changed.txt", content);
+                replayFile.save();
+            }
+
+            long length = file.length();
+            if (length < previousLength) {
+                // Replaced entries made up more than half of the file, so it was rewritten completely
+                compacted = true;
+                assertTrue("Garbage was not removed", length < initialLength + 2 * content.length);
+            }
+            previousLength = length;
+
+            try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), file)) {
+                assertEquals(packets, readAll(replayFile.getPacketData(registry)));
+                assertArrayEquals("unchanged.txt".getBytes(Charsets.UTF_8), read(replayFile, "unchanged.txt"));
+                assertArrayEquals(content, read(replayFile, "changed.txt"));
+            }
+        }
+        assertTrue("File was never compacted", compacted);
+    }
+
+    /**
+     * Writes a 1.12.2 recording, which has to be converted to be read as {@link #registry}.
+     */
+    private static void writeOldRecording(ReplayFile replayFile, int firstAge) throws IOException {
+        PacketTypeRegistry oldRegistry = PacketTypeRegistry.get(ProtocolVersion.v1_12_2, State.PLAY);
+        replayFile.writeMetaData(oldRegistry, new ReplayMetaData());
+        try (ReplayOutputStream out = replayFile.writePacketData()) {
+            out.write(0, joinGame(oldRegistry));
+            for (int i = 0; i < 1000; i++) {
+                out.write(i * 10, updateTime(oldRegistry, firstAge + i, i));
+            }
+        }
+    }
+
+    private static List<String> describeAll(ReplayInputStream in) throws IOException {
+        assertNotNull(in);
+        List<String> result = new ArrayList<>();
+        try {
+            PacketData data;
+            while ((data = in.readPacket()) != null) {
+                result.add(describe(data));
+                data.release();
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    private static List<String> readUncached(ZipReplayFile replayFile, PacketTypeRegistry registry) throws IOException {
+        boolean conversionCache = replayFile.isConversionCache();
+        replayFile.setConversionCache(false);
+        try {
+            return describeAll(replayFile.getPacketData(registry));
+        } finally {
+            replayFile.setConversionCache(conversionCache);
+        }
+    }
+
+    @Test
+    public void testConversionCache() throws IOException {
+        File file = new File(folder.getRoot(), "test.mcpr");
+        try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), file)) {
+            writeOldRecording(replayFile, 0);
+            replayFile.setConversionCache(true);
+            List<String> expected = readUncached(replayFile, registry);
+            assertFalse("No packets were read", expected.isEmpty());
+
+            String hash = replayFile.getRecordingHash();
+            assertNotNull(hash);
+            String entry = "converted/" + hash + "_" + registry.getVersion().getId() + ".tmcpr";
+            String doneEntry = "converted/" + hash + "_" + registry.getVersion().getId() + ".done";
+            assertFalse(replayFile.getCache(doneEntry).isPresent());
+
+            // Miss, converts the recording into the cache
+            assertEquals(expected, describeAll(replayFile.getPacketData(registry)));
+            assertTrue("Conversion was not marked as done", replayFile.getCache(doneEntry).isPresent());
+            assertTrue(replayFile.getCache(entry).isPresent());
+            assertEquals(expected, describeAll(replayFile.getPacketData(registry)));
+
+            // Hit, returns whatever is in the cache instead of converting again
+            PacketData marker = new PacketData(0, updateTime(registry, -1, -1));
+            try (ReplayOutputStream out = new ReplayOutputStream(replayFile.writeCache(entry))) {
+                out.write(marker.retain());
+            }
+            assertEquals(Arrays.asList(describe(marker)), describeAll(replayFile.getPacketData(registry)));
+
+            // Without the done marker, the entry is the remains of an incomplete conversion and is rebuilt
+            replayFile.removeCache(doneEntry);
+            assertEquals(expected, describeAll(replayFile.getPacketData(registry)));
+            assertTrue(replayFile.getCache(doneEntry).isPresent());
+
+            // Once the recording changes, its hash does as well and the old conversion is no longer used
+            try (ReplayOutputStream out = new ReplayOutputStream(replayFile.writeCache(entry))) {
+                out.write(marker.retain());
+            }
+            writeOldRecording(replayFile, 5000);
+            List<String> changed = readUncached(replayFile, registry);
+            assertFalse(changed.equals(expected));
+            assertFalse(hash.equals(replayFile.getRecordingHash()));
+            assertEquals(changed, describeAll(replayFile.getPacketData(registry)));
+            marker.release();
+
+            // Reading in the version of the recording does not need any conversion
+            PacketTypeRegistry oldRegistry = PacketTypeRegistry.get(ProtocolVersion.v1_12_2, State.PLAY);
+            String oldEntry = "converted/" + replayFile.getRecordingHash() + "_" + oldRegistry.getVersion().getId() + ".done";
+            assertEquals(readUncached(replayFile, oldRegistry), describeAll(replayFile.getPacketData(oldRegistry)));
+            assertFalse(replayFile.getCache(oldEntry).isPresent());
+        }
+    }
+
+    @Test
+    public void testConversionCacheDisabled() throws IOException {
+        String property = "replaystudio.conversionCache";
+        String previous = System.getProperty(property);
+        File file = new File(folder.getRoot(), "test.mcpr");
+        try {
+            System.setProperty(property, "true");
+            try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), file)) {
+                assertTrue(replayFile.isConversionCache());
+            }
+
+            System.setProperty(property, "false");
+            try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), file)) {
+                assertFalse(replayFile.isConversionCache());
+                writeOldRecording(replayFile, 0);
+                List<String> expected = readUncached(replayFile, registry);
+                assertFalse("No packets were read", expected.isEmpty());
+
+                String doneEntry = "converted/" + replayFile.getRecordingHash() + "_" + registry.getVersion().getId() + ".done";
+                assertEquals(expected, describeAll(replayFile.getPacketData(registry)));
+                assertFalse("Conversion was cached", replayFile.getCache(doneEntry).isPresent());
+            }
+        } finally {
+            if (previous == null) {
+                System.clearProperty(property);
+            } else {
+                System.setProperty(property, previous);
+            }
+        }
+    }
+}
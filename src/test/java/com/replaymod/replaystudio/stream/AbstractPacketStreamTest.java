@@ -0,0 +1,306 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.stream;
+
+import com.google.gson.JsonObject;
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.filter.StreamFilter;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketAccounting;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.replaymod.replaystudio.protocol.TestPackets.describe;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class AbstractPacketStreamTest {
+    private static final PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_14, State.PLAY);
+
+    @Before
+    public void setup() {
+        PacketAccounting.reset();
+        PacketAccounting.setEnabled(true);
+    }
+
+    @After
+    public void cleanup() {
+        PacketAccounting.setEnabled(false);
+        PacketAccounting.reset();
+    }
+
+    private static PacketData keepAlive(long time, long id) {
+        Packet packet = new Packet(registry, PacketType.KeepAlive);
+        packet.getBuf().writeLong(id);
+        return new PacketData(time, packet);
+    }
+
+    /**
+     * Filter which logs everything it sees, inserts packets every few packets and at its end, and drops some packets.
+     */
+    static class RecordingFilter implements StreamFilter {
+        final List<String> log = new ArrayList<>();
+        private final long idBase;
+        private final int insertEvery;
+        private final int dropEvery;
+        private final int failAfter;
+        private int count;
+
+        RecordingFilter(long idBase, int insertEvery, int dropEvery, int failAfter) {
+            this.idBase = idBase;
+            this.insertEvery = insertEvery;
+            this.dropEvery = dropEvery;
+            this.failAfter = failAfter;
+        }
+
+        RecordingFilter(long idBase, int insertEvery, int dropEvery) {
+            this(idBase, insertEvery, dropEvery, -1);
+        }
+
+        @Override public String getName() { return "recording" + idBase; }
+        @Override public void init(Studio studio, JsonObject config) {}
+
+        @Override
+        public void onStart(PacketStream stream) {
+            log.add("start");
+        }
+
+        @Override
+        public boolean onPacket(PacketStream stream, PacketData data) {
+            String packet = describe(data);
+            log.add(packet);
+            count++;
+            if (count == failAfter) {
+                data.release();
+                throw new IllegalStateException("Filter failed on purpose");
+            }
+            if (insertEvery > 0 && count % insertEvery == 0) {
+                stream.insert(keepAlive(data.getTime(), idBase + count));
+            }
+            return dropEvery <= 0 || packet.hashCode() % dropEvery != 0;
+        }
+
+        @Override
+        public void onEnd(PacketStream stream, long timestamp) {
+            log.add("end@" + timestamp);
+            stream.insert(keepAlive(timestamp, idBase - 1));
+        }
+    }
+
+    /**
+     * Creates a stream of KeepAlive packets with irregular timestamps. Packets are created lazily, so those which
+     * are never read do not show up as leaks.
+     */
+    static AbstractPacketStream input(int count, long seed) {
+        Random random = new Random(seed);
+        long[] time = {0};
+        int[] i = {0};
+        return AbstractPacketStream.of(() -> {
+            if (i[0] >= count) {
+                return null;
+            }
+            time[0] += random.nextInt(5);
+            return keepAlive(time[0], i[0]++);
+        });
+    }
+
+    /**
+     * Adds filters applying to the whole stream and ones limited to (possibly overlapping) time windows.
+     */
+    static List<RecordingFilter> addFilters(PacketStream stream) {
+        List<RecordingFilter> filters = new ArrayList<>();
+        RecordingFilter filter;
+        stream.addFilter(filter = new RecordingFilter(1_000_000, 7, 11));
+        filters.add(filter);
+        stream.addFilter(filter = new RecordingFilter(2_000_000, 3, 0), 1000, 3000);
+        filters.add(filter);
+        stream.addFilter(filter = new RecordingFilter(3_000_000, 0, 2), 2500, 2600);
+        filters.add(filter);
+        stream.addFilter(filter = new RecordingFilter(4_000_000, 0, 13));
+        filters.add(filter);
+        stream.addFilter(filter = new RecordingFilter(5_000_000, 5, 0), 5000, 6000);
+        filters.add(filter);
+        stream.addFilter(filter = new RecordingFilter(6_000_000, 2, 3), 5500, 5500);
+        filters.add(filter);
+        return filters;
+    }
+
+    static List<String> drain(PacketStream stream) throws IOException {
+        List<String> output = new ArrayList<>();
+        PacketData data;
+        while ((data = stream.next()) != null) {
+            output.add(describe(data));
+            data.release();
+        }
+        for (PacketData d : stream.end()) {
+            output.add(describe(d));
+            d.release();
+        }
+        return output;
+    }
+
+    private static boolean pipelineThreadsAlive() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("PacketStream-") && thread.isAlive()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testPipelinedMatchesSequential() throws IOException {
+        AbstractPacketStream sequential = input(3000, 0);
+        List<RecordingFilter> sequentialFilters = addFilters(sequential);
+        List<String> sequentialOutput = drain(sequential);
+
+        AbstractPacketStream pipelined = input(3000, 0);
+        pipelined.setPipelined(true);
+        List<RecordingFilter> pipelinedFilters = addFilters(pipelined);
+        List<String> pipelinedOutput = drain(pipelined);
+        pipelined.cleanup();
+
+        assertEquals(sequentialOutput, pipelinedOutput);
+        for (int i = 0; i < sequentialFilters.size(); i++) {
+            assertEquals("Filter " + i + " saw different packets",
+                    sequentialFilters.get(i).log, pipelinedFilters.get(i).log);
+        }
+        assertFalse("Pipeline threads still running", pipelineThreadsAlive());
+        PacketAccounting.checkNoLeaks();
+    }
+
+    @Test
+    public void testCleanupStopsPipeline() throws IOException {
+        AbstractPacketStream stream = input(100000, 0);
+        stream.setPipelined(true);
+        addFilters(stream);
+        for (int i = 0; i < 1000; i++) {
+            stream.next().release();
+        }
+        // Packets are now waiting in the queues between the filters
+        stream.cleanup();
+
+        assertFalse("Pipeline threads still running", pipelineThreadsAlive());
+        PacketAccounting.checkNoLeaks();
+        try {
+            stream.next();
+            fail("Stream still usable after cleanup");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testFailingFilterStopsPipeline() {
+        AbstractPacketStream stream = input(100000, 0);
+        stream.setPipelined(true);
+        addFilters(stream);
+        stream.addFilter(new RecordingFilter(7_000_000, 0, 0, 5000));
+        try {
+            drain(stream);
+            fail("Failure of filter was not propagated");
+        } catch (IOException expected) {
+        }
+
+        assertFalse("Pipeline threads still running", pipelineThreadsAlive());
+        PacketAccounting.checkNoLeaks();
+    }
+
+    /**
+     * Adds a filter with random behavior and a random time window (possibly open on either end).
+     */
+    private static RecordingFilter addRandomFilter(PacketStream stream, Random random, long idBase, long maxTime) {
+        RecordingFilter filter = new RecordingFilter(idBase, random.nextInt(6), random.nextInt(5));
+        long from = random.nextInt(4) == 0 ? -1 : random.nextInt((int) maxTime);
+        long to = random.nextInt(4) == 0 ? -1 : Math.max(from, 0) + random.nextInt(2000);
+        stream.addFilter(filter, from, to);
+        return filter;
+    }
+
+    /**
+     * Runs a random filter chain, partially added while the stream is already running.
+     * @return The output followed by what each filter saw, one list per filter
+     */
+    private static List<List<String>> runRandom(long seed, boolean routing) throws IOException {
+        Random random = new Random(seed);
+        int packets = 1000 + random.nextInt(2000);
+        long maxTime = packets * 2;
+        AbstractPacketStream stream = input(packets, seed);
+        if (!routing) {
+            stream.disableRouting();
+        }
+
+        List<RecordingFilter> filters = new ArrayList<>();
+        int initialFilters = random.nextInt(8);
+        for (int i = 0; i < initialFilters; i++) {
+            filters.add(addRandomFilter(stream, random, (filters.size() + 1) * 1_000_000L, maxTime));
+        }
+
+        List<String> output = new ArrayList<>();
+        int lateFilters = random.nextInt(4);
+        for (int i = 0; i < lateFilters; i++) {
+            int read = random.nextInt(packets / 4);
+            PacketData data;
+            for (int j = 0; j < read && (data = stream.next()) != null; j++) {
+                output.add(describe(data));
+                data.release();
+            }
+            filters.add(addRandomFilter(stream, random, (filters.size() + 1) * 1_000_000L, maxTime));
+        }
+        output.addAll(drain(stream));
+
+        List<List<String>> result = new ArrayList<>();
+        result.add(output);
+        for (RecordingFilter filter : filters) {
+            result.add(filter.log);
+        }
+        return result;
+    }
+
+    @Test
+    public void testRoutingMatchesUnrouted() throws IOException {
+        for (long seed = 0; seed < 200; seed++) {
+            List<List<String>> expected = runRandom(seed, false);
+            List<List<String>> actual = runRandom(seed, true);
+            assertEquals("Output differs for seed " + seed, expected.get(0), actual.get(0));
+            for (int i = 1; i < expected.size(); i++) {
+                // Includes the order of packets as well as the onStart and onEnd calls with their timestamps
+                assertEquals("Filter " + i + " saw different packets for seed " + seed, expected.get(i), actual.get(i));
+            }
+        }
+        PacketAccounting.checkNoLeaks();
+    }
+}
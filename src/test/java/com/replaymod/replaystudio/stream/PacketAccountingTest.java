@@ -0,0 +1,135 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.stream;
+
+import com.google.gson.JsonObject;
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.Studio;
+import com.replaymod.replaystudio.filter.RemoveFilter;
+import com.replaymod.replaystudio.filter.StreamFilter;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketAccounting;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class PacketAccountingTest {
+    private final PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_14, State.PLAY);
+
+    @Before
+    public void setup() {
+        PacketAccounting.reset();
+        PacketAccounting.setEnabled(true);
+    }
+
+    @After
+    public void cleanup() {
+        PacketAccounting.setEnabled(false);
+        PacketAccounting.reset();
+    }
+
+    private PacketStream stream(StreamFilter filter) {
+        List<PacketData> input = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Packet packet = new Packet(registry, i % 2 == 0 ? PacketType.KeepAlive : PacketType.UpdateTime);
+            packet.getBuf().writeLong(i);
+            input.add(new PacketData(i, packet));
+        }
+        Iterator<PacketData> iter = input.iterator();
+        PacketStream stream = AbstractPacketStream.of(() -> iter.hasNext() ? iter.next() : null);
+        stream.start();
+        stream.addFilter(filter);
+        return stream;
+    }
+
+    private int drain(PacketStream stream) throws IOException {
+        int count = 0;
+        PacketData data;
+        while ((data = stream.next()) != null) {
+            data.release();
+            count++;
+        }
+        for (PacketData d : stream.end()) {
+            d.release();
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testDroppedPacketsAreReleased() throws IOException {
+        RemoveFilter filter = new RemoveFilter();
+        JsonObject config = new JsonObject();
+        config.addProperty("type", PacketType.KeepAlive.name());
+        filter.init(null, config);
+
+        assertEquals("Wrong number of packets passed through", 5, drain(stream(filter)));
+        PacketAccounting.checkNoLeaks();
+    }
+
+    @Test
+    public void testLeakingFilterIsDetected() throws IOException {
+        List<PacketData> leaked = new ArrayList<>();
+        StreamFilter filter = new StreamFilter() {
+            @Override public String getName() { return "leak"; }
+            @Override public void init(Studio studio, JsonObject config) {}
+            @Override public void onStart(PacketStream stream) {}
+            @Override public void onEnd(PacketStream stream, long timestamp) {}
+
+            @Override
+            public boolean onPacket(PacketStream stream, PacketData data) {
+                if (data.getPacket().getType() == PacketType.UpdateTime) {
+                    leaked.add(data.copy());
+                }
+                return true;
+            }
+        };
+
+        assertEquals("Wrong number of packets passed through", 10, drain(stream(filter)));
+        assertEquals("Leaked packets were not tracked", 5, PacketAccounting.getLiveCount());
+        assertEquals("Leaked packets were not grouped by type", 5,
+                PacketAccounting.getLiveByType().get(PacketType.UpdateTime).getCount());
+        try {
+            PacketAccounting.checkNoLeaks();
+            fail("Leak was not detected");
+        } catch (IllegalStateException expected) {
+        }
+
+        leaked.forEach(PacketData::release);
+        PacketAccounting.checkNoLeaks();
+    }
+}
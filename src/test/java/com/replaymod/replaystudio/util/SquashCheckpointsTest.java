@@ -0,0 +1,292 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.util;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
+import com.replaymod.replaystudio.PacketData;
+import com.replaymod.replaystudio.filter.SquashFilter;
+import com.replaymod.replaystudio.io.ReplayInputStream;
+import com.replaymod.replaystudio.io.ReplayOutputStream;
+import com.replaymod.replaystudio.protocol.Packet;
+import com.replaymod.replaystudio.protocol.PacketAccounting;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.protocol.TestPackets;
+import com.replaymod.replaystudio.protocol.packets.PacketBlockChange;
+import com.replaymod.replaystudio.protocol.packets.PacketChunkData;
+import com.replaymod.replaystudio.protocol.packets.PacketDestroyEntities;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityMovement;
+import com.replaymod.replaystudio.protocol.packets.PacketEntityTeleport;
+import com.replaymod.replaystudio.replay.ZipReplayFile;
+import com.replaymod.replaystudio.studio.ReplayStudio;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.Pair;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static com.replaymod.replaystudio.protocol.TestPackets.chunk;
+import static com.replaymod.replaystudio.protocol.TestPackets.describe;
+import static com.replaymod.replaystudio.protocol.TestPackets.joinGame;
+import static com.replaymod.replaystudio.protocol.TestPackets.respawn;
+import static com.replaymod.replaystudio.protocol.TestPackets.spawn;
+import static com.replaymod.replaystudio.protocol.TestPackets.updateTime;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SquashCheckpointsTest {
+    private final PacketTypeRegistry registry = PacketTypeRegistry.get(ProtocolVersion.v1_14, State.PLAY);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSquashMatchesSequentialSquash() throws IOException {
+        File file = writeReplay();
+        try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), file)) {
+            SquashCheckpoints checkpoints = new SquashCheckpoints(replayFile);
+            checkpoints.build(3000);
+            long[] times = checkpoints.getTimes();
+            assertTrue("Too few checkpoints: " + times.length, times.length >= 3);
+
+            Set<Long> targets = new TreeSet<>();
+            targets.add(0L);
+            targets.add(times[0] / 2); // before the first checkpoint
+            targets.add(times[0] - 1);
+            for (long time : times) {
+                targets.add(time); // exactly on a checkpoint
+                targets.add(time + 1);
+                targets.add(time + 1234);
+            }
+            targets.add(Long.MAX_VALUE / 2); // after the end of the recording
+
+            for (long time : targets) {
+                List<String> expected = squashSequentially(replayFile, time);
+                List<String> actual = new ArrayList<>();
+                checkpoints.squash(time, data -> {
+                    actual.add(describe(data));
+                    data.release();
+                });
+                assertEquals("Squashed up to " + time, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testCheckpointsAreReadFromCache() throws IOException {
+        File file = writeReplay();
+        long[] times;
+        try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), file)) {
+            SquashCheckpoints checkpoints = new SquashCheckpoints(replayFile);
+            checkpoints.build(3000);
+            times = checkpoints.getTimes();
+        }
+        try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), file)) {
+            SquashCheckpoints checkpoints = new SquashCheckpoints(replayFile);
+            assertEquals(times.length, checkpoints.getTimes().length);
+            for (long time : new long[]{times[0], times[times.length / 2] + 1, Long.MAX_VALUE / 2}) {
+                List<String> actual = new ArrayList<>();
+                checkpoints.squash(time, data -> {
+                    actual.add(describe(data));
+                    data.release();
+                });
+                assertEquals("Squashed up to " + time, squashSequentially(replayFile, time), actual);
+            }
+        }
+    }
+
+    @Test
+    public void testTruncatedCheckpointFallsBackToStart() throws IOException {
+        File file = writeReplay();
+        PacketAccounting.reset();
+        PacketAccounting.setEnabled(true);
+        try (ZipReplayFile replayFile = new ZipReplayFile(new ReplayStudio(), file)) {
+            SquashCheckpoints checkpoints = new SquashCheckpoints(replayFile);
+            checkpoints.build(3000);
+            long time = checkpoints.getTimes()[1];
+
+            byte[] bytes;
+            try (InputStream in = replayFile.getCache("squash/" + time).get()) {
+                bytes = ByteStreams.toByteArray(in);
+            }
+            // Cut it in the middle of a packet, after a few have already been passed to the filter
+            int offset = 0;
+            while (true) {
+                int length = Ints.fromByteArray(Arrays.copyOfRange(bytes, offset + 4, offset + 8));
+                if (offset + 8 + length >= bytes.length / 2) {
+                    offset += 8 + length / 2;
+                    break;
+                }
+                offset += 8 + length;
+            }
+            try (OutputStream out = replayFile.writeCache("squash/" + time)) {
+                out.write(bytes, 0, offset);
+            }
+
+            for (long target : new long[]{time, time + 1234}) {
+                List<String> actual = new ArrayList<>();
+                checkpoints.squash(target, data -> {
+                    actual.add(describe(data));
+                    data.release();
+                });
+                assertEquals("Squashed up to " + target, squashSequentially(replayFile, target), actual);
+            }
+            PacketAccounting.checkNoLeaks();
+        } finally {
+            PacketAccounting.setEnabled(false);
+            PacketAccounting.reset();
+        }
+    }
+
+    private List<String> squashSequentially(ZipReplayFile replayFile, long time) throws IOException {
+        SquashFilter filter = new SquashFilter();
+        long lastTime = 0;
+        try (ReplayInputStream in = replayFile.getPacketData(PacketTypeRegistry.get(ProtocolVersion.v1_14, State.LOGIN))) {
+            PacketData data;
+            while ((data = in.readPacket()) != null) {
+                if (data.getTime() > time) {
+                    data.release();
+                    break;
+                }
+                lastTime = data.getTime();
+                try {
+                    filter.onPacket(null, data);
+                } finally {
+                    data.release();
+                }
+            }
+        }
+        List<String> result = new ArrayList<>();
+        filter.end(lastTime, data -> {
+            result.add(describe(data));
+            data.release();
+        });
+        return result;
+    }
+
+    /**
+     * Writes a replay of about 30 seconds in which entities are spawned, moved, teleported and destroyed, and chunks
+     * are loaded, unloaded, changed and lit, with a respawn half way through.
+     * Every packet has its own timestamp, so the output order of the squashed state is fully determined.
+     */
+    private File writeReplay() throws IOException {
+        File file = folder.newFile();
+        Random random = new Random(0);
+        Set<Integer> entities = new HashSet<>();
+        Set<Long> chunks = new HashSet<>();
+        try (ReplayOutputStream out = new ReplayOutputStream(ProtocolVersion.v1_14, new FileOutputStream(file), null)) {
+            long time = 1;
+            out.write(new PacketData(time, joinGame(registry)));
+            for (int i = 0; i < 3000; i++) {
+                time += 1 + random.nextInt(19);
+                Packet packet;
+                if (i == 1500) {
+                    packet = respawn(registry);
+                    entities.clear();
+                    chunks.clear();
+                } else if (random.nextInt(2) == 0) {
+                    packet = entityPacket(random, entities);
+                } else {
+                    packet = worldPacket(random, chunks);
+                }
+                out.write(new PacketData(time, packet));
+            }
+        }
+        return file;
+    }
+
+    private Packet entityPacket(Random random, Set<Integer> entities) throws IOException {
+        int id = 1 + random.nextInt(6);
+        if (!entities.contains(id)) {
+            if (random.nextInt(5) == 0) {
+                return PacketDestroyEntities.write(registry, id);
+            }
+            entities.add(id);
+            return spawn(registry, id, random.nextInt(48), 64, random.nextInt(48));
+        }
+        switch (random.nextInt(10)) {
+            case 0:
+                entities.remove(id);
+                return PacketDestroyEntities.write(registry, id);
+            case 1:
+                return PacketEntityTeleport.write(registry, id,
+                        new Location(random.nextInt(48), 64, random.nextInt(48), 0, 0), true);
+            case 2:
+                return PacketEntityMovement.write(registry, id, null, rotation(random), random.nextBoolean());
+            default:
+                DPosition delta = new DPosition(
+                        (random.nextInt(65) - 32) / 16.0, (random.nextInt(9) - 4) / 16.0, (random.nextInt(65) - 32) / 16.0);
+                return PacketEntityMovement.write(registry, id, delta,
+                        random.nextInt(4) == 0 ? rotation(random) : null, random.nextBoolean());
+        }
+    }
+
+    private static Pair<Float, Float> rotation(Random random) {
+        return new Pair<>(random.nextInt(8) * 45f, random.nextInt(4) * 22.5f);
+    }
+
+    private Packet worldPacket(Random random, Set<Long> chunks) throws IOException {
+        int x = random.nextInt(3);
+        int z = random.nextInt(3);
+        long coord = (long) x << 32 | z;
+        switch (random.nextInt(8)) {
+            case 0:
+                if (chunks.remove(coord)) {
+                    return PacketChunkData.unload(x, z).write(registry);
+                }
+                chunks.add(coord);
+                return chunk(registry, random, x, z, 2);
+            case 1:
+                return light(random, x, z);
+            case 2:
+                return updateTime(registry, random.nextInt(24000), random.nextInt(24000));
+            default:
+                IPosition pos = new IPosition(x << 4 | random.nextInt(16), random.nextInt(32), z << 4 | random.nextInt(16));
+                return PacketBlockChange.write(registry, pos, 1 + random.nextInt(100));
+        }
+    }
+
+    private Packet light(Random random, int x, int z) throws IOException {
+        byte[] light = new byte[2048];
+        random.nextBytes(light);
+        // Each update only covers one section of one kind, so the others have to be kept from earlier ones
+        boolean sky = random.nextBoolean();
+        return TestPackets.light(registry, x, z, 1 + random.nextInt(2), sky ? light : null, sky ? null : light);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * This file is part of ReplayStudio, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2020 johni0702 <https://github.com/johni0702>
+ * Copyright (c) ReplayStudio contributors (see git)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.replaymod.replaystudio.viaversion;
+
+import com.github.steveice10.netty.buffer.ByteBuf;
+import com.github.steveice10.netty.buffer.Unpooled;
+import com.github.steveice10.packetlib.tcp.io.ByteBufNetOutput;
+import com.replaymod.replaystudio.protocol.PacketType;
+import com.replaymod.replaystudio.protocol.PacketTypeRegistry;
+import com.replaymod.replaystudio.us.myles.ViaVersion.api.protocol.ProtocolVersion;
+import com.replaymod.replaystudio.us.myles.ViaVersion.packets.State;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that packets which skip the ViaVersion pipeline come out exactly as if they had gone through it.
+ */
+public class ViaVersionPacketConverterTest {
+    // Each spans several protocols, some of which remap most packet ids and some of which hardly touch any
+    private static final ProtocolVersion[][] PATHS = {
+            {ProtocolVersion.v1_8, ProtocolVersion.v1_9_3},
+            {ProtocolVersion.v1_9, ProtocolVersion.v1_12_2},
+            {ProtocolVersion.v1_12_2, ProtocolVersion.v1_14_4},
+            {ProtocolVersion.v1_13_2, ProtocolVersion.v1_15_2},
+            {ProtocolVersion.v1_8, ProtocolVersion.v1_16_2},
+    };
+
+    @Test
+    public void testPassThroughMatchesFullConversion() throws IOException {
+        Random random = new Random(0);
+        int passedThrough = 0;
+        for (ProtocolVersion[] path : PATHS) {
+            ViaVersionPacketConverter fast = ViaVersionPacketConverter.createForProtocolVersion(path[0].getId(), path[1].getId());
+            ViaVersionPacketConverter full = ViaVersionPacketConverter.createWithoutFastPath(path[0].getId(), path[1].getId());
+            try {
+                for (int id = 0; id < 0x80; id++) {
+                    if (!fast.passThrough(id, State.PLAY)) {
+                        continue;
+                    }
+                    passedThrough++;
+                    byte[] payload = new byte[random.nextInt(64)];
+                    random.nextBytes(payload);
+                    String name = path[0] + " to " + path[1] + ", id " + id;
+                    List<String> expected = Collections.singletonList(hex(id, payload));
+                    assertEquals(name, expected, convert(full, id, payload));
+                    assertEquals(name, expected, convert(fast, id, payload));
+                }
+            } finally {
+                fast.release();
+                full.release();
+            }
+        }
+        assertTrue("No packet took the fast path", passedThrough > 0);
+    }
+
+    @Test
+    public void testRemappedPacketIsConverted() throws IOException {
+        Random random = new Random(0);
+        for (ProtocolVersion[] path : PATHS) {
+            // Its content has not changed since 1.7, only its id has
+            int inputId = PacketTypeRegistry.get(path[0], State.PLAY).getId(PacketType.UpdateTime);
+            int outputId = PacketTypeRegistry.get(path[1], State.PLAY).getId(PacketType.UpdateTime);
+            String name = path[0] + " to " + path[1];
+            assertTrue(name + " does not remap UpdateTime", inputId != outputId);
+
+            ViaVersionPacketConverter fast = ViaVersionPacketConverter.createForProtocolVersion(path[0].getId(), path[1].getId());
+            ViaVersionPacketConverter full = ViaVersionPacketConverter.createWithoutFastPath(path[0].getId(), path[1].getId());
+            try {
+                assertFalse(name, fast.passThrough(inputId, State.PLAY));
+                byte[] payload = new byte[16]; // world age and time of day
+                random.nextBytes(payload);
+                List<String> expected = Collections.singletonList(hex(outputId, payload));
+                assertEquals(name, expected, convert(full, inputId, payload));
+                assertEquals(name, expected, convert(fast, inputId, payload));
+            } finally {
+                fast.release();
+                full.release();
+            }
+        }
+    }
+
+    private static List<String> convert(ViaVersionPacketConverter converter, int id, byte[] payload) throws IOException {
+        ByteBuf buf = packet(id, payload);
+        try {
+            List<String> result = new ArrayList<>();
+            for (ByteBuf packet : converter.convertPacket(buf, State.PLAY)) {
+                result.add(hex(packet));
+                packet.release();
+            }
+            return result;
+        } finally {
+            buf.release();
+        }
+    }
+
+    private static String hex(int id, byte[] payload) throws IOException {
+        ByteBuf buf = packet(id, payload);
+        try {
+            return hex(buf);
+        } finally {
+            buf.release();
+        }
+    }
+
+    private static String hex(ByteBuf buf) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = buf.readerIndex(); i < buf.writerIndex(); i++) {
+            sb.append(String.format("%02x", buf.getByte(i)));
+        }
+        return sb.toString();
+    }
+
+    private static ByteBuf packet(int id, byte[] payload) throws IOException {
+        ByteBuf buf = Unpooled.buffer();
+        new ByteBufNetOutput(buf).writeVarInt(id);
+        buf.writeBytes(payload);
+        return buf;
+    }
+}